@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many datagrams per second a connector pair moves over the
+ * loopback interface.
+ *
+ * The client keeps up to {@link #WINDOW} datagrams in flight, each of which is
+ * released once the server has received it. A window slot that is not
+ * released within a second is considered lost and reclaimed, so kernel drops
+ * show up as a throughput loss rather than a stalled benchmark. The number of
+ * lost datagrams is reported as the secondary result <code>lost</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class AbstractUdpThroughputBenchmark {
+
+	/** The maximum number of datagrams in flight. */
+	private static final int WINDOW = 256;
+
+	/**
+	 * Counts the datagrams lost during an iteration.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Losses {
+
+		public long lost;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			lost = 0;
+		}
+	}
+
+	@Param({"64", "512", "1400"})
+	public int packetSize;
+
+	private Connector server;
+	private Connector client;
+	private RawData message;
+
+	private final Semaphore window = new Semaphore(WINDOW);
+
+	/**
+	 * Creates an unstarted connector of the configuration to measure.
+	 *
+	 * @return the connector
+	 */
+	protected abstract Connector createConnector();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		server = createConnector();
+		server.setRawDataReceiver(new RawDataChannel() {
+			@Override
+			public void receiveData(RawData raw) {
+				raw.release();
+				window.release();
+			}
+		});
+		client = createConnector();
+		client.setRawDataReceiver(new RawDataChannel() {
+			@Override
+			public void receiveData(RawData raw) {
+				raw.release();
+			}
+		});
+		server.start();
+		client.start();
+		message = new RawData(new byte[packetSize], server.getAddress());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.destroy();
+		server.destroy();
+	}
+
+	@Benchmark
+	public void send(Losses losses) throws InterruptedException {
+		if (!window.tryAcquire(1, TimeUnit.SECONDS)) {
+			// the datagrams in flight have been dropped, start over
+			int inFlight = WINDOW - window.availablePermits();
+			losses.lost += inFlight;
+			window.release(inFlight);
+			window.acquire();
+		}
+		client.send(message);
+	}
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements.benchmark;
+
+import java.net.InetSocketAddress;
+
+import org.eclipse.californium.elements.BufferPool;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.NioUDPConnector;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RingBufferQueue;
+import org.eclipse.californium.elements.UDPConnector;
+
+/**
+ * Creates the connector configurations compared by the benchmarks.
+ * 
+ * <ul>
+ * <li><code>udp</code>: a {@link UDPConnector} with default settings</li>
+ * <li><code>udp-ring</code>: a {@link UDPConnector} with a {@link RingBufferQueue}
+ * as outgoing queue</li>
+ * <li><code>udp-pool</code>: a {@link UDPConnector} receiving into a {@link BufferPool}</li>
+ * <li><code>nio</code>: a {@link NioUDPConnector}, which serves all I/O from a
+ * single selector thread</li>
+ * </ul>
+ */
+final class ConnectorModes {
+
+	/** The capacity of bounded outgoing queues and buffer pools. */
+	static final int CAPACITY = 4096;
+
+	private ConnectorModes() {
+	}
+
+	/**
+	 * Creates an unstarted connector bound to an ephemeral loopback port, with
+	 * one receiver and one sender thread if the configuration has threads to
+	 * count.
+	 * 
+	 * @param mode the configuration
+	 * @return the connector
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	static Connector create(String mode) {
+		if ("nio".equals(mode)) {
+			return new NioUDPConnector(new InetSocketAddress("127.0.0.1", 0));
+		}
+		return create(mode, 1, 1);
+	}
+
+	/**
+	 * Creates an unstarted {@link UDPConnector} bound to an ephemeral loopback
+	 * port.
+	 * 
+	 * @param mode the configuration, any but <code>nio</code>
+	 * @param receiverThreads the number of receiver threads
+	 * @param senderThreads the number of sender threads
+	 * @return the connector
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	static Connector create(String mode, int receiverThreads, int senderThreads) {
+		UDPConnector connector = new UDPConnector(new InetSocketAddress("127.0.0.1", 0));
+		connector.setReceiverThreadCount(receiverThreads);
+		connector.setSenderThreadCount(senderThreads);
+		if ("udp-ring".equals(mode)) {
+			connector.setOutgoingQueue(new RingBufferQueue<RawData>(CAPACITY));
+		} else if ("udp-pool".equals(mode)) {
+			connector.setReceiveBufferPool(new BufferPool(2048, CAPACITY, true));
+		} else if (!"udp".equals(mode)) {
+			throw new IllegalArgumentException("Unknown connector mode " + mode);
+		}
+		return connector;
+	}
+}
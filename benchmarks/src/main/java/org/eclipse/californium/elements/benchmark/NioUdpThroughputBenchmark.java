@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements.benchmark;
+
+import org.eclipse.californium.elements.Connector;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the throughput of the {@link org.eclipse.californium.elements.NioUDPConnector}.
+ *
+ * It serves all I/O from its selector thread and thus has no thread counts to
+ * vary.
+ */
+@State(Scope.Benchmark)
+public class NioUdpThroughputBenchmark extends AbstractUdpThroughputBenchmark {
+
+	@Override
+	protected Connector createConnector() {
+		return ConnectorModes.create("nio");
+	}
+}
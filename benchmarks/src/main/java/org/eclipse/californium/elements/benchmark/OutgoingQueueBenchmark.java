@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements.benchmark;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RingBufferQueue;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the outgoing queue under contention of many producers, i.e.
+ * application threads calling <code>send()</code>, and a single consumer
+ * draining batches like a connector's sender thread.
+ * 
+ * Producers use <code>offer()</code>, so a full queue does not block the
+ * benchmark. Failed offers still count as producer operations, though; the
+ * <code>queued</code>, <code>full</code> and <code>drained</code> counters tell
+ * how many messages actually made it through the queue. All queues are
+ * bounded, as eight producers outpace the consumer and would grow an
+ * unbounded queue until the heap is exhausted.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutgoingQueueBenchmark {
+
+	@Param({"linked", "ring-spin", "ring-yield", "ring-park"})
+	public String queueType;
+
+	private BlockingQueue<RawData> queue;
+	private RawData message;
+
+	@Setup
+	public void setUp() {
+		int capacity = ConnectorModes.CAPACITY;
+		if ("linked".equals(queueType)) {
+			queue = new LinkedBlockingQueue<RawData>(capacity);
+		} else if ("ring-spin".equals(queueType)) {
+			queue = new RingBufferQueue<RawData>(capacity, RingBufferQueue.WaitStrategy.SPIN);
+		} else if ("ring-yield".equals(queueType)) {
+			queue = new RingBufferQueue<RawData>(capacity, RingBufferQueue.WaitStrategy.YIELD);
+		} else if ("ring-park".equals(queueType)) {
+			queue = new RingBufferQueue<RawData>(capacity, RingBufferQueue.WaitStrategy.PARK);
+		} else {
+			throw new IllegalArgumentException("Unknown queue type " + queueType);
+		}
+		message = new RawData(new byte[64], new InetSocketAddress("127.0.0.1", 5683));
+	}
+
+	/**
+	 * Counts the outcome of the offers of a producer thread.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Producer {
+		public long queued;
+		public long full;
+	}
+
+	/**
+	 * Holds the batch of the consumer thread.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Batch {
+		final List<RawData> messages = new ArrayList<RawData>(32);
+		public long drained;
+	}
+
+	@Benchmark
+	@Group("contention")
+	@GroupThreads(8)
+	public boolean send(Producer producer) {
+		if (queue.offer(message)) {
+			producer.queued++;
+			return true;
+		}
+		producer.full++;
+		return false;
+	}
+
+	@Benchmark
+	@Group("contention")
+	@GroupThreads(1)
+	public int drain(Batch batch) throws InterruptedException {
+		RawData first = queue.poll(1, TimeUnit.MILLISECONDS);
+		if (first == null) {
+			return 0;
+		}
+		batch.messages.add(first);
+		int count = 1 + queue.drainTo(batch.messages, 31);
+		batch.messages.clear();
+		batch.drained += count;
+		return count;
+	}
+}
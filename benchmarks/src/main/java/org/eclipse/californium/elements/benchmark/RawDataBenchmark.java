@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements.benchmark;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.elements.BufferPool;
+import org.eclipse.californium.elements.PooledRawData;
+import org.eclipse.californium.elements.RawData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of creating and reading {@link RawData} objects on the
+ * receive path. Run with <code>-prof gc</code> to see the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RawDataBenchmark {
+
+	@Param({"64", "512", "1400"})
+	public int packetSize;
+
+	private byte[] datagram;
+	private InetAddress address;
+	private InetSocketAddress socketAddress;
+	private RawData message;
+	private BufferPool pool;
+
+	@Setup
+	public void setUp() throws UnknownHostException {
+		datagram = new byte[2048];
+		address = InetAddress.getByName("192.168.1.1");
+		socketAddress = new InetSocketAddress(address, 5683);
+		message = new RawData(new byte[packetSize], socketAddress);
+		pool = new BufferPool(2048, 16, true);
+	}
+
+	/**
+	 * The receive path of the {@link org.eclipse.californium.elements.UDPConnector}:
+	 * copy the datagram and create a new socket address.
+	 */
+	@Benchmark
+	public RawData constructFromDatagram() {
+		byte[] bytes = new byte[packetSize];
+		System.arraycopy(datagram, 0, bytes, 0, packetSize);
+		return new RawData(bytes, address, 5683);
+	}
+
+	@Benchmark
+	public RawData constructWithSocketAddress() {
+		byte[] bytes = new byte[packetSize];
+		System.arraycopy(datagram, 0, bytes, 0, packetSize);
+		return new RawData(bytes, socketAddress);
+	}
+
+	@Benchmark
+	public RawData constructPooled() {
+		RawData raw = new PooledRawData(pool, pool.acquire(), packetSize, socketAddress);
+		raw.release();
+		return raw;
+	}
+
+	@Benchmark
+	public byte[] getBytes() {
+		return message.getBytes();
+	}
+
+	@Benchmark
+	public ByteBuffer getByteBuffer() {
+		return message.getByteBuffer();
+	}
+}
@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the round-trip time of a datagram echoed by a server connector over
+ * the loopback interface, i.e. two passes through the send and receive paths
+ * of a connector each.
+ * 
+ * Each request carries a sequence number, so that a reply arriving after its
+ * request has been given up is discarded rather than taken for the reply to a
+ * later request. A request whose reply does not arrive within
+ * {@link #REPLY_TIMEOUT_MILLIS} is counted in the secondary result
+ * <code>lost</code>; its sample is then the timeout, so iterations with losses
+ * do not represent the latency of the connectors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UdpLatencyBenchmark {
+
+	/** The time to wait for a reply before the request is considered lost. */
+	private static final long REPLY_TIMEOUT_MILLIS = 100;
+
+	/**
+	 * Counts the requests lost during an iteration.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Losses {
+
+		public long lost;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			lost = 0;
+		}
+	}
+
+	@Param({"udp", "udp-ring", "udp-pool", "nio"})
+	public String mode;
+
+	@Param({"64", "1400"})
+	public int packetSize;
+
+	private Connector server;
+	private Connector client;
+	private InetSocketAddress serverAddress;
+	private int sequence;
+
+	private final BlockingQueue<RawData> replies = new LinkedBlockingQueue<RawData>();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		server = ConnectorModes.create(mode);
+		server.setRawDataReceiver(new RawDataChannel() {
+			@Override
+			public void receiveData(RawData raw) {
+				server.send(new RawData(raw.getBytes(), raw.getInetSocketAddress()));
+				raw.release();
+			}
+		});
+		client = ConnectorModes.create(mode);
+		client.setRawDataReceiver(new RawDataChannel() {
+			@Override
+			public void receiveData(RawData raw) {
+				replies.add(raw);
+			}
+		});
+		server.start();
+		client.start();
+		serverAddress = server.getAddress();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.destroy();
+		server.destroy();
+	}
+
+	@Benchmark
+	public RawData roundTrip(Losses losses) throws InterruptedException {
+		int request = ++sequence;
+		byte[] payload = new byte[packetSize];
+		ByteBuffer.wrap(payload).putInt(request);
+		client.send(new RawData(payload, serverAddress));
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPLY_TIMEOUT_MILLIS);
+		while (true) {
+			RawData reply = replies.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			if (reply == null) {
+				losses.lost++;
+				return null;
+			}
+			int replied = ByteBuffer.wrap(reply.getBytes()).getInt();
+			reply.release();
+			if (replied == request) {
+				return reply;
+			}
+			// a late reply to a request already counted as lost
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements.benchmark;
+
+import org.eclipse.californium.elements.Connector;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the throughput of the {@link org.eclipse.californium.elements.UDPConnector}
+ * configurations with different numbers of receiver and sender threads.
+ */
+@State(Scope.Benchmark)
+public class UdpThroughputBenchmark extends AbstractUdpThroughputBenchmark {
+
+	@Param({"udp", "udp-ring", "udp-pool"})
+	public String mode;
+
+	@Param({"1", "2"})
+	public int receiverThreads;
+
+	@Param({"1", "2"})
+	public int senderThreads;
+
+	@Override
+	protected Connector createConnector() {
+		return ConnectorModes.create(mode, receiverThreads, senderThreads);
+	}
+}
@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache of the socket addresses of peers.
+ * 
+ * Connectors use the cache to tag the messages received from a peer with the
+ * same {@link InetSocketAddress} instance instead of creating a new one per
+ * datagram. Looking up a cached address does not allocate any objects.
+ * 
+ * The cache is direct-mapped: each address can only be kept in one slot,
+ * chosen by its hash, and replaces the address cached in that slot before.
+ * Lookups and updates are lock-free, so receiver threads never block each
+ * other. Since addresses are immutable, a cached instance can be shared by
+ * any number of messages.
+ */
+public class AddressCache {
+
+	/** The cached addresses. */
+	private final AtomicReferenceArray<Entry> slots;
+
+	private final int mask;
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Creates a cache.
+	 * 
+	 * @param size the number of slots, rounded up to a power of two
+	 * @throws IllegalArgumentException if the size is not positive
+	 */
+	public AddressCache(int size) {
+		if (size <= 0 || size > 1 << 30)
+			throw new IllegalArgumentException("Size must be positive");
+		int capacity = Integer.highestOneBit(size);
+		if (capacity < size)
+			capacity <<= 1;
+		this.slots = new AtomicReferenceArray<Entry>(capacity);
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Gets the socket address of a peer.
+	 * 
+	 * @param address the IP address
+	 * @param port the port
+	 * @return the cached socket address, or a new one that is cached from
+	 *         now on
+	 */
+	public InetSocketAddress get(InetAddress address, int port) {
+		int index = index(address.hashCode(), port);
+		Entry entry = slots.get(index);
+		if (entry != null && entry.port == port && entry.address.getAddress().equals(address)) {
+			return entry.address;
+		}
+		misses.incrementAndGet();
+		InetSocketAddress socketAddress = new InetSocketAddress(address, port);
+		slots.set(index, new Entry(socketAddress, null, port));
+		return socketAddress;
+	}
+
+	/**
+	 * Gets the socket address of a peer given as raw IP address.
+	 * 
+	 * @param raw the array holding the IP address in network byte order
+	 * @param offset the offset of the address in the array
+	 * @param length the length of the address, 4 for IPv4 and 16 for IPv6
+	 * @param port the port
+	 * @return the cached socket address, or a new one that is cached from
+	 *         now on
+	 */
+	public InetSocketAddress get(byte[] raw, int offset, int length, int port) {
+		int hash = 1;
+		for (int i = offset; i < offset + length; i++)
+			hash = 31 * hash + raw[i];
+		int index = index(hash, port);
+		Entry entry = slots.get(index);
+		if (entry != null && entry.port == port && entry.matches(raw, offset, length)) {
+			return entry.address;
+		}
+		misses.incrementAndGet();
+		byte[] copy = new byte[length];
+		System.arraycopy(raw, offset, copy, 0, length);
+		InetSocketAddress socketAddress;
+		try {
+			// IPv4-mapped IPv6 addresses result in an Inet4Address
+			socketAddress = new InetSocketAddress(InetAddress.getByAddress(copy), port);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Invalid address length " + length);
+		}
+		slots.set(index, new Entry(socketAddress, copy, port));
+		return socketAddress;
+	}
+
+	private int index(int hash, int port) {
+		int h = hash * 31 + port;
+		h ^= h >>> 16;
+		return h & mask;
+	}
+
+	/**
+	 * Removes all cached addresses.
+	 */
+	public void clear() {
+		for (int i = 0; i < slots.length(); i++)
+			slots.set(i, null);
+	}
+
+	/**
+	 * Gets the number of slots.
+	 * 
+	 * @return the size
+	 */
+	public int getSize() {
+		return slots.length();
+	}
+
+	/**
+	 * Gets the number of lookups that created a new address. Lookups answered
+	 * from the cache are not counted, so that receiver threads do not
+	 * contend for a counter.
+	 * 
+	 * @return the number of lookups
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * A cached address, with the raw IP address it has been created from.
+	 */
+	private static final class Entry {
+
+		private final InetSocketAddress address;
+		private final byte[] raw;
+		private final int port;
+
+		private Entry(InetSocketAddress address, byte[] raw, int port) {
+			this.address = address;
+			this.raw = raw;
+			this.port = port;
+		}
+
+		private boolean matches(byte[] other, int offset, int length) {
+			if (raw == null || raw.length != length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (raw[i] != other[offset + i])
+					return false;
+			}
+			return true;
+		}
+	}
+}
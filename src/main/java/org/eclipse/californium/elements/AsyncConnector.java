@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+/**
+ * A {@link Connector} that notifies a {@link SendCallback} once it has sent a
+ * message or failed to do so.
+ * 
+ * Only connectors implementing this interface honor the
+ * {@link RawData#setSendCallback(SendCallback) callback} of a message. All
+ * connectors of this project do.
+ */
+public interface AsyncConnector extends Connector {
+
+	/**
+	 * Sends a raw message to a client via the network and notifies a
+	 * callback once it has been sent or sending has failed.
+	 * 
+	 * The callback is notified asynchronously on a thread of the connector,
+	 * after the message has been handed to the socket. This should be a
+	 * non-blocking operation.
+	 * 
+	 * @param msg the message to be sent
+	 * @param callback the callback, see {@link RawData#setSendCallback(SendCallback)}
+	 */
+	public void send(RawData msg, SendCallback callback);
+
+}
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.util.List;
+
+/**
+ * A {@link Connector} that is able to send several messages at once.
+ * 
+ * Connectors that queue several messages more efficiently than one by one,
+ * e.g. {@link NioUDPConnector}, which wakes up its selector only once per
+ * batch, implement this interface. Callers holding a plain {@link Connector}
+ * send the messages one by one instead, as {@link ConnectorGroup} does for
+ * its members.
+ */
+public interface BatchConnector extends Connector {
+
+	/**
+	 * Sends several raw messages to clients via the network.
+	 * 
+	 * The messages are queued in the given order as if they were passed to
+	 * {@link #send(RawData)} one by one, but implementations can do so more
+	 * efficiently. This should be a non-blocking operation.
+	 * 
+	 * @param msgs the messages to be sent
+	 */
+	public void send(List<RawData> msgs);
+
+}
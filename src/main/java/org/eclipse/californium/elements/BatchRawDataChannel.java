@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.util.List;
+
+/**
+ * A processor for messages received from the network layer that is able to
+ * process several messages at once.
+ * 
+ * Connectors that read several messages from the network in one go, e.g.
+ * {@link NioUDPConnector} or subclasses of {@link ConnectorBase} overriding
+ * {@link ConnectorBase#receiveNextBatch(List, int)}, hand all of them to
+ * {@link #receiveData(List)} in a single call if the registered channel
+ * implements this interface. Connectors that receive one message at a time
+ * keep on calling {@link #receiveData(RawData)}.
+ */
+public interface BatchRawDataChannel extends RawDataChannel {
+
+	/**
+	 * Processes a batch of raw messages received from the network.
+	 * 
+	 * The messages are passed in the order they have been received. The list
+	 * is reused by the connector once this method returns, so implementations
+	 * must not keep a reference to the list itself, but may keep the messages
+	 * it contains.
+	 * 
+	 * @param batch the raw messages to process, never empty
+	 */
+	public void receiveData(List<RawData> batch);
+
+}
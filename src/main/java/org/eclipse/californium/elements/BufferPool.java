@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of equally sized byte arrays (slabs) to receive data into.
+ * 
+ * Slabs are leased with {@link #acquire()} and handed back with
+ * {@link #release(byte[])}. If the pool is exhausted, a new slab is allocated,
+ * and slabs released to a full pool are left to the garbage collector. The pool
+ * therefore never blocks and only needs to be sized for the number of messages
+ * that are typically in flight at the same time.
+ * 
+ * Connectors use the pool by means of {@link PooledRawData}, which returns its
+ * slab to the pool once it has been released by all of its users.
+ */
+public class BufferPool {
+
+	/** The size of the slabs in this pool. */
+	private final int slabSize;
+
+	/** The slabs available for leasing. */
+	private final BlockingQueue<byte[]> slabs;
+
+	/**
+	 * Creates a new pool.
+	 * 
+	 * @param slabSize the size of the slabs in bytes
+	 * @param capacity the maximum number of slabs kept in the pool
+	 * @param preallocate whether the pool is filled up to its capacity right away
+	 * @throws IllegalArgumentException if slab size or capacity are not positive
+	 */
+	public BufferPool(int slabSize, int capacity, boolean preallocate) {
+		if (slabSize <= 0)
+			throw new IllegalArgumentException("Slab size must be positive");
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		this.slabSize = slabSize;
+		this.slabs = new ArrayBlockingQueue<byte[]>(capacity);
+		if (preallocate) {
+			for (int i = 0; i < capacity; i++) {
+				slabs.offer(new byte[slabSize]);
+			}
+		}
+	}
+
+	/**
+	 * Leases a slab from the pool. A new slab is allocated if the pool is
+	 * empty.
+	 * 
+	 * @return the slab
+	 */
+	public byte[] acquire() {
+		byte[] slab = slabs.poll();
+		if (slab == null) {
+			slab = new byte[slabSize];
+		}
+		return slab;
+	}
+
+	/**
+	 * Returns a slab to the pool. The slab must not be used by the caller
+	 * afterwards.
+	 * 
+	 * @param slab the slab
+	 * @throws IllegalArgumentException if the slab has not been leased from
+	 *             this pool
+	 */
+	public void release(byte[] slab) {
+		if (slab.length != slabSize)
+			throw new IllegalArgumentException("Slab does not belong to this pool");
+		slabs.offer(slab);
+	}
+
+	/**
+	 * Gets the size of the slabs in this pool.
+	 * 
+	 * @return the size in bytes
+	 */
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+	/**
+	 * Gets the number of slabs currently available in the pool.
+	 * 
+	 * @return the number of slabs
+	 */
+	public int getAvailable() {
+		return slabs.size();
+	}
+}
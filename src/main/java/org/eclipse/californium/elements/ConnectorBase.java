@@ -18,22 +18,52 @@ package org.eclipse.californium.elements;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * ConnectorBase is a partial implementation of a {@link Connector}. It connects
- * a server to a network interface and a port. ConnectorBase contains two
- * separate threads for sending and receiving. The receiver thread constantly
- * calls #receiveNext() which is supposed to listen on a socket until a
- * datagram arrives and forward it to the {@link RawDataChannel}. The sender
+ * a server to a network interface and a port. ConnectorBase contains
+ * separate threads for sending and receiving, as many of each kind as
+ * #getSenderThreadCount() and #getReceiverThreadCount() return. The receiver
+ * thread constantly calls #receiveNext() which is supposed to listen on a
+ * socket until a datagram arrives and forward it to the
+ * {@link RawDataChannel}. The sender
  * thread constantly calls #sendNext() which is supposed to wait on the
  * outgoing queue for a {@link RawData} message to send. Both
  * #sendNext() and #receiveNext() are expected to be blocking.
+ * 
+ * The sender thread takes all messages queued at that time (up to
+ * #getSendBatchSize()) and hands them to #sendNextBatch(), which calls
+ * #sendNext() for each of them unless overridden.
+ * 
+ * If the registered {@link RawDataChannel} is a {@link BatchRawDataChannel},
+ * the receiver thread calls #receiveNextBatch() instead, which subclasses can
+ * override to return all messages that are readily available in one go.
+ * 
+ * All threads of a connector belong to a {@link ThreadGroup} named after the
+ * connector and are numbered, e.g. <code>UDP-Sender-/0.0.0.0:5683[1]</code>,
+ * so that they can be told apart in thread dumps and pinned to CPUs by
+ * external tools. Alternatively, the threads can be created by a
+ * {@link #setWorkerThreadFactory(ThreadFactory) thread factory} or taken
+ * from an {@link #setWorkerExecutor(Executor) executor}. Note that several
+ * sender threads do not preserve the order in which messages to the same
+ * peer have been queued.
+ * 
+ * {@link #stop()} waits up to {@link #getThreadJoinTimeout()} milliseconds
+ * for the threads to terminate. Subclasses should therefore close their
+ * socket in {@link #unblockWorkers()} to release the receiver threads blocked
+ * in #receiveNext(). If a subclass does not override
+ * {@link #unblockWorkers()}, {@link #stop()} only waits for the sender
+ * threads.
  */
-public abstract class ConnectorBase implements Connector {
+public abstract class ConnectorBase implements InstrumentedConnector, BatchConnector, AsyncConnector {
 	
 	/** The Logger. */
 	private final static Logger LOGGER = Logger.getLogger(ConnectorBase.class.toString());
@@ -41,20 +71,34 @@ public abstract class ConnectorBase implements Connector {
 	/** The local address. */
 	private final InetSocketAddress localAddr;
 	
-	/** The thread that receives messages */
-	private Thread receiverThread;
+	/** The thread group of the sender and receiver threads */
+	private ThreadGroup threadGroup;
+	
+	/** The threads that receive messages */
+	private List<Worker> receiverThreads;
+	
+	/** The threads that send messages */
+	private List<Worker> senderThreads;
 	
-	/** The thread that sends messages */
-	private Thread senderThread;
+	/** The factory to create the worker threads, or <code>null</code> */
+	private ThreadFactory workerThreadFactory;
+	
+	/** The executor to run the workers on, or <code>null</code> */
+	private Executor workerExecutor;
 
 	/** The queue of outgoing block (for sending). */
-	private final BlockingQueue<RawData> outgoing; // Messages to send
+	private final OutgoingQueue outgoing; // Messages to send
+	
+	private final ConnectorMetrics metrics = new ConnectorMetrics();
 	
 	/** The receiver of incoming messages */
 	private RawDataChannel receiver; // Receiver of messages
 	
 	/** Indicates whether the connector has started and not stopped yet */
-	private boolean running;
+	private volatile boolean running;
+	
+	/** Indicates whether the subclass overrides #unblockWorkers() */
+	private final boolean unblocksWorkers;
 	
 	/**
 	 * Instantiates a new connector base.
@@ -66,8 +110,27 @@ public abstract class ConnectorBase implements Connector {
 			throw new NullPointerException();
 		this.localAddr = address;
 
-		// Optionally define maximal capacity
-		this.outgoing = new LinkedBlockingQueue<RawData>();
+		this.outgoing = new OutgoingQueue(LOGGER, getClass().getSimpleName(), address, metrics);
+		this.unblocksWorkers = overridesUnblockWorkers(getClass());
+	}
+	
+	/**
+	 * Checks whether a subclass overrides {@link #unblockWorkers()}.
+	 * 
+	 * @param type the class of the connector
+	 * @return <code>true</code> if the class or one of its superclasses
+	 *         below ConnectorBase declares the method
+	 */
+	private static boolean overridesUnblockWorkers(Class<?> type) {
+		for (Class<?> c = type; c != ConnectorBase.class; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod("unblockWorkers");
+				return true;
+			} catch (NoSuchMethodException e) {
+				// continue with the superclass
+			}
+		}
+		return false;
 	}
 	
 	public InetSocketAddress getAddress() {
@@ -89,6 +152,26 @@ public abstract class ConnectorBase implements Connector {
 	 */
 	protected abstract RawData receiveNext() throws Exception;
 	
+	/**
+	 * Receives a batch of data from the socket queue.
+	 * 
+	 * This method is only called if the registered receiver is a
+	 * {@link BatchRawDataChannel}. The default implementation adds the
+	 * result of a single call to {@link #receiveNext()}. Subclasses that can
+	 * tell whether more data is readily available should override this
+	 * method to block for the first message only and then add all further
+	 * messages that can be read without blocking.
+	 * 
+	 * @param batch the list to add the received raw data to
+	 * @param maxSize the maximum number of messages to add
+	 * @throws Exception any exceptions that should be properly logged
+	 */
+	protected void receiveNextBatch(List<RawData> batch, int maxSize) throws Exception {
+		RawData raw = receiveNext();
+		if (raw != null)
+			batch.add(raw);
+	}
+	
 	/**
 	 * Sends data over the socket.
 	 * 
@@ -97,6 +180,58 @@ public abstract class ConnectorBase implements Connector {
 	 */
 	protected abstract void sendNext(RawData raw) throws Exception;
 	
+	/**
+	 * Sends a batch of data over the socket.
+	 * 
+	 * The default implementation calls {@link #sendNext(RawData)} for each
+	 * message. A failure to send a message is logged and does not prevent
+	 * the remaining messages from being sent. Subclasses may override this
+	 * method to send the messages more efficiently, e.g. by reusing buffers,
+	 * and should then report each message by {@link #messageSent(RawData)}
+	 * or {@link #messageNotSent(RawData, Exception)}.
+	 * 
+	 * @param batch the raw data with metadata, never empty
+	 * @throws Exception any exception that should be properly logged
+	 */
+	protected void sendNextBatch(List<RawData> batch) throws Exception {
+		for (int i = 0; i < batch.size(); i++) {
+			RawData raw = batch.get(i);
+			try {
+				sendNext(raw);
+				messageSent(raw);
+			} catch (Exception e) {
+				if (!running)
+					throw e;
+				messageNotSent(raw, e);
+				LOGGER.log(Level.WARNING, "Exception \""+e+"\" while sending "+raw.getSize()+" bytes to "
+						+raw.getInetSocketAddress(), e);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Reports a message that has been sent to the metrics and its
+	 * {@link SendCallback}.
+	 * 
+	 * @param raw the message
+	 */
+	protected final void messageSent(RawData raw) {
+		metrics.sent(raw);
+		raw.notifySent();
+	}
+	
+	/**
+	 * Reports a message that could not be sent to the metrics and its
+	 * {@link SendCallback}.
+	 * 
+	 * @param raw the message
+	 * @param cause the reason
+	 */
+	protected final void messageNotSent(RawData raw, Exception cause) {
+		metrics.sendFailed(raw);
+		raw.notifyFailed(cause);
+	}
 	
 	/**
 	 * Gets the receiver thread count.
@@ -116,28 +251,104 @@ public abstract class ConnectorBase implements Connector {
 		return 1;
 	}
 	
+	/**
+	 * Gets the maximum time {@link #stop()} waits for the sender and
+	 * receiver threads to terminate.
+	 *
+	 * @return the timeout in milliseconds
+	 */
+	protected long getThreadJoinTimeout() {
+		return 1000;
+	}
+	
+	/**
+	 * Gets the maximum number of messages delivered to a
+	 * {@link BatchRawDataChannel} at once.
+	 *
+	 * @return the maximum batch size
+	 */
+	protected int getReceiveBatchSize() {
+		return 32;
+	}
+	
+	/**
+	 * Gets the maximum number of queued messages the sender thread takes
+	 * from the outgoing queue at once.
+	 *
+	 * @return the maximum batch size
+	 */
+	protected int getSendBatchSize() {
+		return 32;
+	}
+	
 	/**
 	 * Receive next message from network and forward them to the receiver.
 	 *
+	 * @param batch the list to collect a batch of messages in
 	 * @throws Exception any exception that occurs
 	 */
-	private void receiveNextMessageFromNetwork() throws Exception {
-		RawData raw = receiveNext();
-		if (raw != null)
-			receiver.receiveData(raw);
+	private void receiveNextMessageFromNetwork(List<RawData> batch) throws Exception {
+		RawDataChannel channel = receiver;
+		if (channel instanceof BatchRawDataChannel) {
+			try {
+				try {
+					receiveNextBatch(batch, getReceiveBatchSize());
+				} catch (Exception e) {
+					if (running)
+						metrics.receiveFailed();
+					throw e;
+				}
+				if (!batch.isEmpty()) {
+					for (int i = 0; i < batch.size(); i++)
+						metrics.received(batch.get(i).getSize());
+					((BatchRawDataChannel) channel).receiveData(batch);
+				}
+			} finally {
+				batch.clear();
+			}
+		} else {
+			RawData raw;
+			try {
+				raw = receiveNext();
+			} catch (Exception e) {
+				if (running)
+					metrics.receiveFailed();
+				throw e;
+			}
+			if (raw != null) {
+				metrics.received(raw.getSize());
+				channel.receiveData(raw);
+			}
+		}
 	}
 	
 	/**
-	 * Get the next message from the outgoing queue and send it over the
+	 * Get the next messages from the outgoing queue and send them over the
 	 * network.
 	 * 
+	 * @param batch the list to collect the messages in
 	 * @throws Exception the exception
 	 */
-	private void sendNextMessageOverNetwork() throws Exception {
+	private void sendNextMessagesOverNetwork(List<RawData> batch) throws Exception {
 		RawData raw = outgoing.take(); // Blocking
 		if (raw == null)
 			throw new NullPointerException();
-		sendNext(raw);
+		batch.add(raw);
+		// take whatever else is queued already without blocking
+		outgoing.drainTo(batch, getSendBatchSize() - 1);
+		try {
+			removeExpired(batch);
+			if (!batch.isEmpty())
+				sendNextBatch(batch);
+		} catch (Exception e) {
+			// the connector has been stopped, notify the messages not sent
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).notifyFailed(e);
+			}
+			throw e;
+		} finally {
+			batch.clear();
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -152,25 +363,82 @@ public abstract class ConnectorBase implements Connector {
 		int receiverCount = getReceiverThreadCount();
 		LOGGER.config(getName()+"-connector starts "+senderCount+" sender threads and "+receiverCount+" receiver threads");
 		
-		senderThread = new Worker(getName()+"-Sender-"+localAddr) {
-				public void work() throws Exception { sendNextMessageOverNetwork(); }
-			};
+		// a group stays registered with its parent, so it is reused on restart
+		if (threadGroup == null)
+			threadGroup = new ThreadGroup(getName()+"-Connector-"+localAddr);
+		
+		senderThreads = new ArrayList<Worker>(senderCount);
+		for (int i = 0; i < senderCount; i++) {
+			senderThreads.add(new Worker(getName()+"-Sender-"+localAddr+"["+i+"]") {
+					private final List<RawData> batch = new ArrayList<RawData>();
+					public void work() throws Exception { sendNextMessagesOverNetwork(batch); }
+				});
+		}
 
-		receiverThread = new Worker(getName()+"-Receiver-"+localAddr) {
-				public void work() throws Exception { receiveNextMessageFromNetwork(); }
-			};
+		receiverThreads = new ArrayList<Worker>(receiverCount);
+		for (int i = 0; i < receiverCount; i++) {
+			receiverThreads.add(new Worker(getName()+"-Receiver-"+localAddr+"["+i+"]") {
+					private final List<RawData> batch = new ArrayList<RawData>();
+					public void work() throws Exception { receiveNextMessageFromNetwork(batch); }
+				});
+		}
 		
-		receiverThread.start();
-		senderThread.start();
+		for (Worker t : receiverThreads)
+			t.start(threadGroup, workerThreadFactory, workerExecutor);
+		for (Worker t : senderThreads)
+			t.start(threadGroup, workerThreadFactory, workerExecutor);
 	}
 
 	@Override
 	public synchronized void stop() {
 		if (!running) return;
 		running = false;
-		senderThread.interrupt();
-		receiverThread.interrupt();
-		outgoing.clear();
+		List<Worker> workers = new ArrayList<Worker>(senderThreads);
+		workers.addAll(receiverThreads);
+		for (Worker t : workers) {
+			t.stop();
+		}
+		outgoing.discard();
+		unblockWorkers();
+		// receivers blocked in receiveNext() only terminate once the socket has been closed
+		join(unblocksWorkers ? workers : senderThreads);
+		senderThreads = null;
+		receiverThreads = null;
+	}
+	
+	/**
+	 * Releases the sender and receiver threads from blocking I/O operations.
+	 * 
+	 * This method is called by {@link #stop()} after the connector has been
+	 * marked as stopped and before it waits for the threads to terminate.
+	 * Subclasses should close their socket here, as threads blocked reading
+	 * from a socket do not react to being interrupted. The default
+	 * implementation does nothing, and {@link #stop()} then does not wait for
+	 * the receiver threads, as they terminate only once the subclass closes
+	 * its socket after the connector has stopped.
+	 */
+	protected void unblockWorkers() { }
+	
+	/**
+	 * Waits for the given threads to terminate, but no longer than
+	 * {@link #getThreadJoinTimeout()} in total.
+	 * 
+	 * @param workers the threads to wait for
+	 */
+	private void join(List<Worker> workers) {
+		long deadline = System.currentTimeMillis() + getThreadJoinTimeout();
+		try {
+			for (Worker t : workers) {
+				long remaining = deadline - System.currentTimeMillis();
+				// a worker may stop the connector itself
+				if (t.isCurrentThread())
+					continue;
+				if (remaining <= 0 || !t.join(remaining))
+					LOGGER.log(Level.INFO, "Thread {0} did not terminate within {1} ms", new Object[]{t.getName(), getThreadJoinTimeout()});
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
@@ -188,6 +456,41 @@ public abstract class ConnectorBase implements Connector {
 		outgoing.add(msg);
 	}
 
+	/**
+	 * Removes the messages whose send deadline has passed from a batch.
+	 * 
+	 * @param batch the batch taken from the outgoing queue
+	 */
+	private void removeExpired(List<RawData> batch) {
+		long now = System.nanoTime();
+		int kept = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			RawData raw = batch.get(i);
+			if (raw.isExpired(now))
+				outgoing.expire(raw);
+			else
+				batch.set(kept++, raw);
+		}
+		batch.subList(kept, batch.size()).clear();
+	}
+
+	/**
+	 * Queues a message for sending and registers a callback to notify once it
+	 * has been sent or sending has failed.
+	 */
+	@Override
+	public void send(RawData msg, SendCallback callback) {
+		msg.setSendCallback(callback);
+		send(msg);
+	}
+
+	@Override
+	public void send(List<RawData> msgs) {
+		for (int i = 0; i < msgs.size(); i++) {
+			send(msgs.get(i));
+		}
+	}
+
 	@Override
 	public void setRawDataReceiver(RawDataChannel receiver) {
 		this.receiver = receiver;
@@ -199,7 +502,7 @@ public abstract class ConnectorBase implements Connector {
 	 * {@link ConnectorBase#receiveNext()}. Therefore, exceptions do not crash
 	 * the threads and will be properly logged.
 	 */
-	private abstract class Worker extends Thread {
+	private abstract class Worker extends ConnectorWorker {
 
 		/**
 		 * Instantiates a new worker.
@@ -208,17 +511,17 @@ public abstract class ConnectorBase implements Connector {
 		 */
 		private Worker(String name) {
 			super(name);
-			setDaemon(true);
 		}
 
-		public void run() {
+		protected void loop() {
 			try {
 				LOGGER.fine("Starting thread "+getName());
-				while (running) {
+				// a worker that did not terminate in time must not resume after a restart
+				while (running && isActive()) {
 					try {
 						work();
 					} catch (Throwable t) {
-						if (running)
+						if (running && isActive())
 							LOGGER.log(Level.WARNING, "Exception \""+t+"\" in thread "+getName(), t);
 						else
 							LOGGER.fine("Exception \""+t+"\" stopped thread "+getName() );
@@ -247,6 +550,11 @@ public abstract class ConnectorBase implements Connector {
 		return localAddr;
 	}
 	
+	@Override
+	public ConnectorMetrics getMetrics() {
+		return metrics;
+	}
+	
 	/**
 	 * Gets the receiver.
 	 *
@@ -265,6 +573,132 @@ public abstract class ConnectorBase implements Connector {
 		this.receiver = receiver;
 	}
 
+	/**
+	 * Sets the factory to create the sender and receiver threads with.
+	 * 
+	 * This allows the threads to be named or prioritized by the application
+	 * or to run the workers on virtual threads. This method must be called
+	 * before the connector is started.
+	 * 
+	 * @param threadFactory the factory, or <code>null</code> to create daemon
+	 *            threads in the connector's thread group (default)
+	 */
+	public void setWorkerThreadFactory(ThreadFactory threadFactory) {
+		this.workerThreadFactory = threadFactory;
+	}
+	
+	public ThreadFactory getWorkerThreadFactory() {
+		return workerThreadFactory;
+	}
+	
+	/**
+	 * Sets the executor to run the sender and receiver workers on.
+	 * 
+	 * The executor may be shared by several connectors. Every worker occupies
+	 * a thread of the executor until the connector stops, so the executor
+	 * must provide at least as many threads as workers are started on it.
+	 * An executor takes precedence over a thread factory. This method must be
+	 * called before the connector is started.
+	 * 
+	 * @param executor the executor, or <code>null</code> to create threads
+	 */
+	public void setWorkerExecutor(Executor executor) {
+		this.workerExecutor = executor;
+	}
+	
+	public Executor getWorkerExecutor() {
+		return workerExecutor;
+	}
+	
+	/**
+	 * Sets the maximum number of messages in the outgoing queue.
+	 * 
+	 * Messages sent while the queue is full are handled according to the
+	 * {@link #setOverflowPolicy(OverflowPolicy) overflow policy}. This method
+	 * must be called before the connector is started.
+	 * 
+	 * @param capacity the capacity (default {@link Integer#MAX_VALUE})
+	 * @throws IllegalStateException if the connector is running
+	 */
+	public synchronized void setOutgoingCapacity(int capacity) {
+		if (running)
+			throw new IllegalStateException("Capacity cannot be changed while the connector is running");
+		outgoing.setCapacity(capacity);
+	}
+	
+	public int getOutgoingCapacity() {
+		return outgoing.getCapacity();
+	}
+	
+	/**
+	 * Sets the queue to buffer outgoing messages in.
+	 * 
+	 * By default, messages are buffered in a {@link LinkedBlockingQueue}. A
+	 * {@link RingBufferQueue} avoids the lock and the node allocation per
+	 * message at the expense of a fixed capacity. Messages queued already
+	 * are moved to the new queue as far as it has room for them. This method
+	 * must be called before the connector is started.
+	 * 
+	 * @param queue the queue
+	 * @throws IllegalStateException if the connector is running
+	 */
+	public synchronized void setOutgoingQueue(BlockingQueue<RawData> queue) {
+		if (running)
+			throw new IllegalStateException("Queue cannot be changed while the connector is running");
+		outgoing.setQueue(queue);
+	}
+	
+	/**
+	 * Gets the number of messages currently waiting in the outgoing queue.
+	 * 
+	 * @return the queue depth
+	 */
+	public int getOutgoingQueueSize() {
+		return outgoing.size();
+	}
+	
+	/**
+	 * Sets the policy to apply to messages sent while the outgoing queue is full.
+	 * 
+	 * @param policy the policy (default {@link OverflowPolicy#BLOCK})
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		outgoing.setOverflowPolicy(policy);
+	}
+	
+	public OverflowPolicy getOverflowPolicy() {
+		return outgoing.getOverflowPolicy();
+	}
+	
+	/**
+	 * Sets the handler for messages rejected according to the
+	 * {@link OverflowPolicy#REJECT} policy.
+	 * 
+	 * @param handler the handler or <code>null</code> to make sending of
+	 *            rejected messages fail with an {@link IllegalStateException}
+	 */
+	public void setRejectedMessageHandler(RejectedMessageHandler handler) {
+		outgoing.setRejectedMessageHandler(handler);
+	}
+	
+	public RejectedMessageHandler getRejectedMessageHandler() {
+		return outgoing.getRejectedMessageHandler();
+	}
+
+	/**
+	 * Sets the handler for queued messages that are discarded because their
+	 * {@link RawData#setSendDeadline(long) send deadline} has passed.
+	 * 
+	 * @param handler the handler or <code>null</code> to only count them
+	 */
+	public void setExpiredMessageHandler(ExpiredMessageHandler handler) {
+		outgoing.setExpiredMessageHandler(handler);
+	}
+
+	public ExpiredMessageHandler getExpiredMessageHandler() {
+		return outgoing.getExpiredMessageHandler();
+	}
+
 	/**
 	 * Checks the connector has started but not stopped yet.
 	 *
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A connector that combines several connectors into one logical endpoint.
+ * 
+ * The connectors of a group may be bound to different ports or network
+ * interfaces, or to the same port using <code>SO_REUSEPORT</code>. Messages
+ * received by any of them are forwarded to the group's {@link RawDataChannel}.
+ * Messages sent via the group are handed to the connector chosen by the
+ * group's {@link RoutingPolicy}. If the group's channel is a
+ * {@link BatchRawDataChannel}, the batches of the connectors are forwarded
+ * as such.
+ * 
+ * <pre>
+ * ConnectorGroup group = new ConnectorGroup(new RoutingPolicy.Sticky());
+ * group.addConnector(new UDPConnector(new InetSocketAddress(5683)));
+ * group.addConnector(new UDPConnector(new InetSocketAddress(5684)));
+ * group.setRawDataReceiver(channel);
+ * group.start();
+ * </pre>
+ */
+public class ConnectorGroup implements BatchConnector, AsyncConnector {
+
+	private final static Logger LOGGER = Logger.getLogger(ConnectorGroup.class.getName());
+
+	/** The connectors of the group. */
+	private final List<Connector> connectors = new CopyOnWriteArrayList<Connector>();
+
+	/** The read-only view of the connectors handed to the policy. */
+	private final List<Connector> view = Collections.unmodifiableList(connectors);
+
+	/** The policy to select the connector for a message. */
+	private final RoutingPolicy policy;
+
+	/** The receiver of incoming messages. */
+	private volatile RawDataChannel receiver;
+
+	private boolean running;
+
+	/**
+	 * Creates an empty group.
+	 * 
+	 * @param policy the policy to select the connector sending a message
+	 */
+	public ConnectorGroup(RoutingPolicy policy) {
+		if (policy == null)
+			throw new NullPointerException();
+		this.policy = policy;
+	}
+
+	/**
+	 * Creates a group of connectors bound to the given addresses.
+	 * 
+	 * @param factory the factory to create the connectors
+	 * @param addresses the addresses to bind the connectors to
+	 * @param policy the policy to select the connector sending a message
+	 */
+	public ConnectorGroup(ConnectorFactory factory, Collection<InetSocketAddress> addresses, RoutingPolicy policy) {
+		this(policy);
+		for (InetSocketAddress address : addresses) {
+			addConnector(factory.newConnector(address));
+		}
+	}
+
+	/**
+	 * Adds a connector to the group. The connector's receiver is replaced by
+	 * the group. This method must be called before the group is started.
+	 * 
+	 * @param connector the connector
+	 * @throws IllegalStateException if the group is running
+	 */
+	public synchronized void addConnector(Connector connector) {
+		if (connector == null)
+			throw new NullPointerException();
+		if (running)
+			throw new IllegalStateException("Connectors cannot be added while the group is running");
+		connector.setRawDataReceiver(new MemberChannel(connector));
+		connectors.add(connector);
+	}
+
+	/**
+	 * Gets the connectors of the group.
+	 * 
+	 * @return the connectors as read-only list
+	 */
+	public List<Connector> getConnectors() {
+		return view;
+	}
+
+	public RoutingPolicy getRoutingPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Starts all connectors of the group. If one of them fails to start, the
+	 * connectors started already are stopped again.
+	 */
+	@Override
+	public synchronized void start() throws IOException {
+		if (running) return;
+		if (connectors.isEmpty())
+			throw new IllegalStateException("Group has no connectors");
+		List<Connector> started = new ArrayList<Connector>(connectors.size());
+		try {
+			for (Connector connector : connectors) {
+				connector.start();
+				started.add(connector);
+			}
+		} finally {
+			// roll back on any failure, not only on I/O errors
+			if (started.size() < connectors.size()) {
+				for (Connector connector : started) {
+					connector.stop();
+				}
+			}
+		}
+		running = true;
+		LOGGER.log(Level.CONFIG, "ConnectorGroup started {0} connectors", connectors.size());
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (!running) return;
+		running = false;
+		for (Connector connector : connectors) {
+			connector.stop();
+		}
+	}
+
+	@Override
+	public synchronized void destroy() {
+		running = false;
+		for (Connector connector : connectors) {
+			connector.destroy();
+		}
+	}
+
+	@Override
+	public void send(RawData msg) {
+		if (msg == null)
+			throw new NullPointerException();
+		policy.select(msg, view).send(msg);
+	}
+
+	/**
+	 * Sends a message and notifies a callback once it has been sent or
+	 * sending has failed.
+	 * 
+	 * @throws UnsupportedOperationException if the connector the message is
+	 *             routed to is not an {@link AsyncConnector}, which would
+	 *             never notify the callback
+	 */
+	@Override
+	public void send(RawData msg, SendCallback callback) {
+		if (msg == null)
+			throw new NullPointerException();
+		Connector connector = policy.select(msg, view);
+		if (!(connector instanceof AsyncConnector))
+			throw new UnsupportedOperationException(connector + " does not notify send callbacks");
+		((AsyncConnector) connector).send(msg, callback);
+	}
+
+	/**
+	 * Sends several messages, passing all messages routed to the same
+	 * connector to it at once if it is a {@link BatchConnector}.
+	 */
+	@Override
+	public void send(List<RawData> msgs) {
+		if (connectors.size() == 1) {
+			send(connectors.get(0), msgs);
+			return;
+		}
+		List<Connector> targets = new ArrayList<Connector>(connectors.size());
+		List<List<RawData>> batches = new ArrayList<List<RawData>>(connectors.size());
+		for (int i = 0; i < msgs.size(); i++) {
+			RawData msg = msgs.get(i);
+			if (msg == null)
+				throw new NullPointerException();
+			Connector connector = policy.select(msg, view);
+			int index = targets.indexOf(connector);
+			if (index < 0) {
+				index = targets.size();
+				targets.add(connector);
+				batches.add(new ArrayList<RawData>());
+			}
+			batches.get(index).add(msg);
+		}
+		for (int i = 0; i < targets.size(); i++) {
+			send(targets.get(i), batches.get(i));
+		}
+	}
+
+	/**
+	 * Sends several messages via a connector of the group, one by one unless
+	 * the connector is a {@link BatchConnector}.
+	 * 
+	 * @param connector the connector
+	 * @param msgs the messages
+	 */
+	private static void send(Connector connector, List<RawData> msgs) {
+		if (connector instanceof BatchConnector) {
+			((BatchConnector) connector).send(msgs);
+		} else {
+			for (int i = 0; i < msgs.size(); i++) {
+				connector.send(msgs.get(i));
+			}
+		}
+	}
+
+	@Override
+	public void setRawDataReceiver(RawDataChannel receiver) {
+		this.receiver = receiver;
+	}
+
+	/**
+	 * Gets the address of the first connector of the group.
+	 * 
+	 * @return the address, or <code>null</code> if the group is empty
+	 */
+	@Override
+	public InetSocketAddress getAddress() {
+		if (connectors.isEmpty())
+			return null;
+		return connectors.get(0).getAddress();
+	}
+
+	/**
+	 * The channel of a connector of the group, which notifies the policy and
+	 * forwards the received messages to the group's receiver.
+	 */
+	private class MemberChannel implements BatchRawDataChannel {
+
+		/** The connector this channel receives from. */
+		private final Connector connector;
+
+		private MemberChannel(Connector connector) {
+			this.connector = connector;
+		}
+
+		@Override
+		public void receiveData(RawData raw) {
+			RawDataChannel handler = receiver;
+			policy.received(raw, connector);
+			if (handler != null)
+				handler.receiveData(raw);
+			else
+				raw.release();
+		}
+
+		@Override
+		public void receiveData(List<RawData> batch) {
+			RawDataChannel handler = receiver;
+			for (int i = 0; i < batch.size(); i++) {
+				policy.received(batch.get(i), connector);
+			}
+			if (handler instanceof BatchRawDataChannel) {
+				((BatchRawDataChannel) handler).receiveData(batch);
+			} else if (handler != null) {
+				for (int i = 0; i < batch.size(); i++) {
+					handler.receiveData(batch.get(i));
+				}
+			} else {
+				for (int i = 0; i < batch.size(); i++) {
+					batch.get(i).release();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics of a connector.
+ * 
+ * The metrics comprise counters for the packets and bytes received and sent,
+ * for errors and dropped messages, the current depth of the outgoing queue and
+ * a {@link LatencyHistogram} of the time messages spend between being passed
+ * to <code>send()</code> and being written to the socket.
+ * 
+ * Connectors record their traffic by calling {@link #queued(RawData)} when a
+ * message is added to the outgoing queue and {@link #sent(RawData)} once it has
+ * been written to the socket, and likewise for received messages and errors.
+ * The metrics can be published to the platform MBean server by means of
+ * {@link #registerMBean(String)}.
+ */
+public class ConnectorMetrics implements ConnectorMetricsMBean {
+
+	/** The Logger. */
+	private final static Logger LOGGER = Logger.getLogger(ConnectorMetrics.class.toString());
+
+	/** The domain of the MBeans registered by {@link #registerMBean(String)}. */
+	public static final String MBEAN_DOMAIN = "org.eclipse.californium.elements";
+
+	private final AtomicLong receivedPackets = new AtomicLong();
+	private final AtomicLong receivedBytes = new AtomicLong();
+	private final AtomicLong sentPackets = new AtomicLong();
+	private final AtomicLong sentBytes = new AtomicLong();
+	private final AtomicLong receiveErrors = new AtomicLong();
+	private final AtomicLong truncatedPackets = new AtomicLong();
+	private final AtomicLong sendErrors = new AtomicLong();
+	private final AtomicLong droppedMessages = new AtomicLong();
+	private final AtomicLong expiredMessages = new AtomicLong();
+
+	private final LatencyHistogram queueWait = new LatencyHistogram();
+
+	/** The outgoing queue of the connector, if any. */
+	private volatile Collection<?> outgoing;
+
+	/** The name this instance has been registered with. */
+	private ObjectName objectName;
+
+	/**
+	 * Sets the outgoing queue whose depth is reported.
+	 * 
+	 * @param queue the queue
+	 */
+	public void setOutgoingQueue(Collection<?> queue) {
+		this.outgoing = queue;
+	}
+
+	/**
+	 * Records that a message is about to be added to the outgoing queue.
+	 * 
+	 * @param msg the message
+	 */
+	public void queued(RawData msg) {
+		msg.queuedNanos = System.nanoTime();
+	}
+
+	/**
+	 * Records that a message has been written to the socket.
+	 * 
+	 * @param msg the message
+	 */
+	public void sent(RawData msg) {
+		sentPackets.incrementAndGet();
+		sentBytes.addAndGet(msg.getSize());
+		if (msg.queuedNanos != 0) {
+			queueWait.record(System.nanoTime() - msg.queuedNanos);
+		}
+	}
+
+	/**
+	 * Records that a message could not be written to the socket.
+	 * 
+	 * @param msg the message
+	 */
+	public void sendFailed(RawData msg) {
+		sendErrors.incrementAndGet();
+	}
+
+	/**
+	 * Records that a message has been received.
+	 * 
+	 * @param bytes the size of the message
+	 */
+	public void received(int bytes) {
+		receivedPackets.incrementAndGet();
+		receivedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Records that reading from the socket failed.
+	 */
+	public void receiveFailed() {
+		receiveErrors.incrementAndGet();
+	}
+
+	/**
+	 * Records that a datagram has been dropped because it exceeded the
+	 * receive buffer.
+	 */
+	public void truncated() {
+		truncatedPackets.incrementAndGet();
+	}
+
+	/**
+	 * Records that messages have been dropped.
+	 * 
+	 * @param count the number of messages
+	 */
+	public void dropped(int count) {
+		droppedMessages.addAndGet(count);
+	}
+
+	/**
+	 * Records that a queued message has been discarded because its send
+	 * deadline had passed.
+	 */
+	public void expired() {
+		expiredMessages.incrementAndGet();
+	}
+
+	@Override
+	public long getReceivedPackets() {
+		return receivedPackets.get();
+	}
+
+	@Override
+	public long getReceivedBytes() {
+		return receivedBytes.get();
+	}
+
+	@Override
+	public long getSentPackets() {
+		return sentPackets.get();
+	}
+
+	@Override
+	public long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	@Override
+	public long getReceiveErrors() {
+		return receiveErrors.get();
+	}
+
+	@Override
+	public long getTruncatedPackets() {
+		return truncatedPackets.get();
+	}
+
+	@Override
+	public long getSendErrors() {
+		return sendErrors.get();
+	}
+
+	@Override
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+
+	@Override
+	public long getExpiredMessages() {
+		return expiredMessages.get();
+	}
+
+	@Override
+	public int getOutgoingQueueDepth() {
+		Collection<?> queue = outgoing;
+		return queue == null ? 0 : queue.size();
+	}
+
+	/**
+	 * Gets the number of messages in each lane of the outgoing queue.
+	 * 
+	 * @return the depths per lane, highest priority first, if the queue is a
+	 *         {@link PriorityLaneQueue}, or the depth of the queue otherwise
+	 */
+	@Override
+	public int[] getOutgoingLaneDepths() {
+		Collection<?> queue = outgoing;
+		if (queue instanceof PriorityLaneQueue)
+			return ((PriorityLaneQueue) queue).getLaneSizes();
+		return new int[] { queue == null ? 0 : queue.size() };
+	}
+
+	/**
+	 * Gets the histogram of the time messages spend in the outgoing queue.
+	 * 
+	 * @return the histogram
+	 */
+	public LatencyHistogram getQueueWait() {
+		return queueWait;
+	}
+
+	@Override
+	public long getQueueWaitCount() {
+		return queueWait.getCount();
+	}
+
+	@Override
+	public double getQueueWaitMeanMicros() {
+		return queueWait.getMean() / 1000.0;
+	}
+
+	@Override
+	public double getQueueWait50thPercentileMicros() {
+		return toMicros(queueWait.getValueAtPercentile(50.0));
+	}
+
+	@Override
+	public double getQueueWait99thPercentileMicros() {
+		return toMicros(queueWait.getValueAtPercentile(99.0));
+	}
+
+	@Override
+	public double getQueueWait999thPercentileMicros() {
+		return toMicros(queueWait.getValueAtPercentile(99.9));
+	}
+
+	@Override
+	public double getQueueWaitMaxMicros() {
+		return toMicros(queueWait.getMax());
+	}
+
+	private static double toMicros(long nanos) {
+		return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+	}
+
+	@Override
+	public void reset() {
+		receivedPackets.set(0);
+		receivedBytes.set(0);
+		sentPackets.set(0);
+		sentBytes.set(0);
+		receiveErrors.set(0);
+		truncatedPackets.set(0);
+		sendErrors.set(0);
+		droppedMessages.set(0);
+		expiredMessages.set(0);
+		queueWait.reset();
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server.
+	 * 
+	 * The MBean is registered as
+	 * <code>org.eclipse.californium.elements:type=ConnectorMetrics,name=&lt;name&gt;</code>.
+	 * A previous registration of this instance is replaced.
+	 * 
+	 * @param name the name identifying the connector, e.g. its address
+	 * @return the object name the MBean has been registered with
+	 * @throws JMException if the MBean cannot be registered
+	 */
+	public synchronized ObjectName registerMBean(String name) throws JMException {
+		unregisterMBean();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName candidate = new ObjectName(MBEAN_DOMAIN + ":type=ConnectorMetrics,name=" + ObjectName.quote(name));
+		server.registerMBean(this, candidate);
+		objectName = candidate;
+		return objectName;
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server, if registered.
+	 */
+	public synchronized void unregisterMBean() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				LOGGER.log(Level.FINE, "Cannot unregister " + objectName, e);
+			}
+			objectName = null;
+		}
+	}
+}
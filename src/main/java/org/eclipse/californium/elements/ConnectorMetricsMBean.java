@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+/**
+ * The management interface of {@link ConnectorMetrics}.
+ * 
+ * Durations are reported in microseconds.
+ */
+public interface ConnectorMetricsMBean {
+
+	long getReceivedPackets();
+
+	long getReceivedBytes();
+
+	long getSentPackets();
+
+	long getSentBytes();
+
+	long getReceiveErrors();
+
+	long getTruncatedPackets();
+
+	long getSendErrors();
+
+	long getDroppedMessages();
+
+	long getExpiredMessages();
+
+	int getOutgoingQueueDepth();
+
+	int[] getOutgoingLaneDepths();
+
+	long getQueueWaitCount();
+
+	double getQueueWaitMeanMicros();
+
+	double getQueueWait50thPercentileMicros();
+
+	double getQueueWait99thPercentileMicros();
+
+	double getQueueWait999thPercentileMicros();
+
+	double getQueueWaitMaxMicros();
+
+	/**
+	 * Resets all counters and the queue wait histogram.
+	 */
+	void reset();
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A loop of a connector that receives or sends messages.
+ * 
+ * Connectors do not create threads for their workers directly but start them
+ * through {@link #start(ThreadGroup, ThreadFactory, Executor)}. By default,
+ * a worker runs on a daemon thread of its own. If the connector has been
+ * configured with a {@link ThreadFactory}, the worker runs on a thread
+ * created by the factory, e.g. a virtual thread on Java 21 or later. If the
+ * connector has been configured with an {@link Executor}, the worker is
+ * submitted to the executor, which allows several connectors to share a pool
+ * of threads.
+ * 
+ * A worker keeps its thread until the connector stops. An executor must
+ * therefore provide at least as many threads as workers are started on it,
+ * otherwise the remaining workers never run. While a worker runs, its thread
+ * carries the name of the worker.
+ */
+abstract class ConnectorWorker implements Runnable {
+
+	/** The name of the worker. */
+	private final String name;
+
+	/** Indicates whether the worker has not been stopped yet. */
+	private volatile boolean active = true;
+
+	/**
+	 * The thread running the worker, or <code>null</code>. Only changed with
+	 * the lock held, so that {@link #stop()} never interrupts a thread that
+	 * has moved on to another task of an executor.
+	 */
+	private volatile Thread thread;
+
+	/** Guards the thread while it is interrupted or released. */
+	private final Object lock = new Object();
+
+	/** Released once the worker has terminated. */
+	private final CountDownLatch terminated = new CountDownLatch(1);
+
+	/**
+	 * Instantiates a new worker.
+	 *
+	 * @param name the name
+	 */
+	ConnectorWorker(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Gets the name of the worker.
+	 *
+	 * @return the name
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * Starts the worker.
+	 * 
+	 * @param group the thread group of a thread created for the worker,
+	 *            <code>null</code> for the group of the current thread
+	 * @param threadFactory the factory to create the worker's thread, or
+	 *            <code>null</code>
+	 * @param executor the executor to run the worker on, or <code>null</code>.
+	 *            Takes precedence over the thread factory.
+	 */
+	void start(ThreadGroup group, ThreadFactory threadFactory, Executor executor) {
+		if (executor != null) {
+			executor.execute(this);
+		} else if (threadFactory != null) {
+			threadFactory.newThread(this).start();
+		} else {
+			Thread t = new Thread(group, this, name);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	@Override
+	public final void run() {
+		Thread current = Thread.currentThread();
+		String threadName = current.getName();
+		current.setName(name);
+		synchronized (lock) {
+			thread = current;
+		}
+		try {
+			if (active) {
+				loop();
+			}
+		} finally {
+			synchronized (lock) {
+				thread = null;
+				// a thread of an executor returns to its pool, clear an
+				// interrupt of stop() before other tasks can observe it
+				Thread.interrupted();
+			}
+			current.setName(threadName);
+			terminated.countDown();
+		}
+	}
+
+	/**
+	 * Receives or sends messages as long as {@link #isActive()} and the
+	 * connector is running.
+	 */
+	protected abstract void loop();
+
+	/**
+	 * Checks whether the worker has not been stopped yet.
+	 * 
+	 * @return <code>true</code> if the worker should continue
+	 */
+	boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Checks whether the current thread runs this worker.
+	 * 
+	 * @return <code>true</code> if called by the worker itself
+	 */
+	boolean isCurrentThread() {
+		return thread == Thread.currentThread();
+	}
+
+	/**
+	 * Stops the worker and interrupts its thread. A worker that is blocked
+	 * in I/O that cannot be interrupted terminates once the I/O fails.
+	 */
+	void stop() {
+		active = false;
+		synchronized (lock) {
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the worker to terminate.
+	 * 
+	 * @param millis the maximum time to wait in milliseconds
+	 * @return <code>true</code> if the worker has terminated
+	 * @throws InterruptedException if the current thread has been interrupted
+	 */
+	boolean join(long millis) throws InterruptedException {
+		return terminated.await(millis, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+/**
+ * A handler for queued messages a connector discards instead of sending them
+ * because their {@link RawData#setSendDeadline(long) send deadline} has
+ * passed.
+ */
+public interface ExpiredMessageHandler {
+
+	/**
+	 * Handles a message that has not been sent.
+	 * 
+	 * This method is called on a sender thread of the connector and should
+	 * return quickly.
+	 * 
+	 * @param msg the expired message
+	 */
+	public void expired(RawData msg);
+
+}
@@ -0,0 +1,390 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Connector} exchanging messages with other connectors of the same
+ * {@link InMemoryNetwork} without involving the operating system.
+ * 
+ * Sending a message hands a copy of it to the receive queue of the connector
+ * bound to its destination address right away, unless the network delays it.
+ * There is neither an outgoing queue nor a sender thread, so a message counts
+ * as sent once it has been handed to the network, even if it is lost there.
+ * The receive queue is lock-free and served by a single receiver thread,
+ * which delivers all queued messages to a {@link BatchRawDataChannel} at
+ * once. Like a socket's receive buffer, the queue has a limited capacity and
+ * messages arriving while it is full are dropped.
+ */
+public class InMemoryConnector implements InstrumentedConnector, BatchConnector, AsyncConnector {
+
+	public final static Logger LOGGER = Logger.getLogger(InMemoryConnector.class.toString());
+
+	/** The default maximum number of messages in the receive queue. */
+	public static final int DEFAULT_RECEIVE_CAPACITY = 65536;
+
+	/** The maximum number of messages delivered to a {@link BatchRawDataChannel} at once. */
+	private static final int MAX_RECEIVE_BATCH_SIZE = 64;
+
+	/** The maximum time the receiver thread waits before checking whether it has been stopped. */
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final InMemoryNetwork network;
+
+	private final InetSocketAddress localAddr;
+
+	/** The address the connector has been bound to, or <code>null</code> */
+	private volatile InetSocketAddress boundAddr;
+
+	private volatile boolean running;
+
+	private ReceiverLoop receiverThread;
+
+	/** The factory to create the receiver thread, or <code>null</code> */
+	private ThreadFactory workerThreadFactory;
+
+	/** The executor to run the receiver loop on, or <code>null</code> */
+	private Executor workerExecutor;
+
+	/** The receiver of incoming messages. */
+	private RawDataChannel receiver;
+
+	private final ConcurrentLinkedQueue<RawData> incoming = new ConcurrentLinkedQueue<RawData>();
+
+	/** The number of messages in the receive queue. */
+	private final AtomicInteger incomingSize = new AtomicInteger();
+
+	private int receiveCapacity = DEFAULT_RECEIVE_CAPACITY;
+
+	private volatile ExpiredMessageHandler expiredMessageHandler;
+
+	private final ConnectorMetrics metrics = new ConnectorMetrics();
+
+	/**
+	 * Creates a connector of the default network bound to an unused port.
+	 */
+	public InMemoryConnector() {
+		this(null);
+	}
+
+	/**
+	 * Creates a connector of the default network.
+	 * 
+	 * @param address the address, if <code>null</code> the connector is
+	 *            bound to an unused port of the loopback address
+	 */
+	public InMemoryConnector(InetSocketAddress address) {
+		this(InMemoryNetwork.getDefault(), address);
+	}
+
+	/**
+	 * Creates a connector of a network.
+	 * 
+	 * @param network the network
+	 * @param address the address, if <code>null</code> the connector is
+	 *            bound to an unused port of the loopback address
+	 */
+	public InMemoryConnector(InMemoryNetwork network, InetSocketAddress address) {
+		if (network == null)
+			throw new NullPointerException();
+		this.network = network;
+		if (address == null) {
+			this.localAddr = new InetSocketAddress(0);
+		} else {
+			this.localAddr = address;
+		}
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (running) return;
+		boundAddr = network.bind(this, localAddr);
+		running = true;
+		receiverThread = new ReceiverLoop("InMemory-Receiver-" + boundAddr);
+		receiverThread.start(null, workerThreadFactory, workerExecutor);
+		LOGGER.log(Level.CONFIG, "InMemoryConnector listening on {0}", boundAddr);
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (!running) return;
+		running = false;
+		network.unbind(this, boundAddr);
+		receiverThread.stop();
+		incoming.clear();
+		incomingSize.set(0);
+		LOGGER.log(Level.CONFIG, "InMemoryConnector on [{0}] has stopped.", boundAddr);
+	}
+
+	@Override
+	public synchronized void destroy() {
+		stop();
+	}
+
+	@Override
+	public void send(RawData msg) {
+		if (msg == null)
+			throw new NullPointerException();
+		InetSocketAddress source = boundAddr;
+		if (!running) {
+			metrics.sendFailed(msg);
+			msg.notifyFailed(new IOException("Connector is not running"));
+			return;
+		}
+		if (msg.isExpired(System.nanoTime())) {
+			expire(msg);
+			return;
+		}
+		network.send(source, msg);
+		metrics.sent(msg);
+		msg.notifySent();
+	}
+
+	@Override
+	public void send(List<RawData> msgs) {
+		for (int i = 0; i < msgs.size(); i++) {
+			send(msgs.get(i));
+		}
+	}
+
+	/**
+	 * Sends a message and notifies a callback once it has been handed to the
+	 * network.
+	 */
+	@Override
+	public void send(RawData msg, SendCallback callback) {
+		msg.setSendCallback(callback);
+		send(msg);
+	}
+
+	/**
+	 * Handles a message discarded because its send deadline has passed.
+	 * 
+	 * @param msg the expired message
+	 */
+	private void expire(RawData msg) {
+		metrics.expired();
+		ExpiredMessageHandler handler = expiredMessageHandler;
+		if (handler != null) {
+			try {
+				handler.expired(msg);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Expired message handler failed", e);
+			}
+		}
+		if (msg.getSendCallback() != null)
+			msg.notifyFailed(new TimeoutException("Send deadline has passed"));
+	}
+
+	/**
+	 * Adds a message from the network to the receive queue.
+	 * 
+	 * @param msg the message
+	 * @return <code>true</code> if the message has been queued,
+	 *         <code>false</code> if it has been dropped because the queue is
+	 *         full
+	 */
+	boolean receive(RawData msg) {
+		if (incomingSize.incrementAndGet() > receiveCapacity) {
+			incomingSize.decrementAndGet();
+			metrics.dropped(1);
+			return false;
+		}
+		incoming.offer(msg);
+		ReceiverLoop loop = receiverThread;
+		if (loop != null && loop.parked) {
+			loop.unpark();
+		}
+		return true;
+	}
+
+	@Override
+	public void setRawDataReceiver(RawDataChannel receiver) {
+		this.receiver = receiver;
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		InetSocketAddress bound = boundAddr;
+		return bound != null ? bound : localAddr;
+	}
+
+	/**
+	 * Gets the network this connector is part of.
+	 * 
+	 * @return the network
+	 */
+	public InMemoryNetwork getNetwork() {
+		return network;
+	}
+
+	private class ReceiverLoop extends ConnectorWorker {
+
+		/** The thread running the loop. */
+		private volatile Thread thread;
+
+		/** Indicates that the thread waits for messages. */
+		private volatile boolean parked;
+
+		private final List<RawData> batch = new ArrayList<RawData>(MAX_RECEIVE_BATCH_SIZE);
+
+		private ReceiverLoop(String name) {
+			super(name);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.elements.ConnectorWorker#loop()
+		 */
+		protected void loop() {
+			thread = Thread.currentThread();
+			LOGGER.log(Level.FINE, "Starting receiver loop [{0}]", getName());
+			while (running && isActive()) {
+				try {
+					work();
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception occurred in receiver loop [" + getName() + "]: ", t);
+				}
+			}
+			thread = null;
+		}
+
+		private void work() {
+			RawData msg = incoming.poll();
+			if (msg == null) {
+				parked = true;
+				// a message queued before the flag has been set would not unpark the thread
+				if (incoming.isEmpty())
+					LockSupport.parkNanos(this, MAX_PARK_NANOS);
+				parked = false;
+				return;
+			}
+			RawDataChannel channel = receiver;
+			if (channel instanceof BatchRawDataChannel) {
+				try {
+					do {
+						received(msg);
+						batch.add(msg);
+					} while (batch.size() < MAX_RECEIVE_BATCH_SIZE && (msg = incoming.poll()) != null);
+					((BatchRawDataChannel) channel).receiveData(batch);
+				} finally {
+					batch.clear();
+				}
+			} else if (channel != null) {
+				received(msg);
+				channel.receiveData(msg);
+			} else {
+				// there is nobody to deliver to, as with a socket nobody reads
+				received(msg);
+				msg.release();
+			}
+		}
+
+		private void received(RawData msg) {
+			incomingSize.decrementAndGet();
+			metrics.received(msg.getSize());
+			if (LOGGER.isLoggable(Level.FINER)) {
+				LOGGER.log(Level.FINER, "InMemoryConnector ({0}) received {1} bytes from {2}",
+						new Object[]{boundAddr, msg.getSize(), msg.getInetSocketAddress()});
+			}
+		}
+
+		private void unpark() {
+			Thread t = thread;
+			if (t != null)
+				LockSupport.unpark(t);
+		}
+	}
+
+	@Override
+	public ConnectorMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the maximum number of messages in the receive queue.
+	 * 
+	 * @param capacity the capacity (default {@link #DEFAULT_RECEIVE_CAPACITY})
+	 */
+	public void setReceiveCapacity(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		this.receiveCapacity = capacity;
+	}
+
+	public int getReceiveCapacity() {
+		return receiveCapacity;
+	}
+
+	/**
+	 * Sets the handler for messages that are discarded because their
+	 * {@link RawData#setSendDeadline(long) send deadline} has passed.
+	 * 
+	 * @param handler the handler or <code>null</code> to only count them
+	 */
+	public void setExpiredMessageHandler(ExpiredMessageHandler handler) {
+		this.expiredMessageHandler = handler;
+	}
+
+	public ExpiredMessageHandler getExpiredMessageHandler() {
+		return expiredMessageHandler;
+	}
+
+	/**
+	 * Sets the factory to create the receiver thread with.
+	 *
+	 * This method must be called before the connector is started.
+	 *
+	 * @param threadFactory the factory, or <code>null</code> to create a
+	 *            daemon thread (default)
+	 */
+	public void setWorkerThreadFactory(ThreadFactory threadFactory) {
+		this.workerThreadFactory = threadFactory;
+	}
+
+	public ThreadFactory getWorkerThreadFactory() {
+		return workerThreadFactory;
+	}
+
+	/**
+	 * Sets the executor to run the receiver loop on.
+	 *
+	 * The receiver loop occupies a thread of the executor until the
+	 * connector stops. An executor takes precedence over a thread factory.
+	 * This method must be called before the connector is started.
+	 *
+	 * @param executor the executor, or <code>null</code> to create a thread
+	 */
+	public void setWorkerExecutor(Executor executor) {
+		this.workerExecutor = executor;
+	}
+
+	public Executor getWorkerExecutor() {
+		return workerExecutor;
+	}
+}
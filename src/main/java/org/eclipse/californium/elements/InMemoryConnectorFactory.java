@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A factory for {@link InMemoryConnector} objects of a network.
+ */
+public class InMemoryConnectorFactory implements ConnectorFactory {
+
+	private final InMemoryNetwork network;
+
+	/**
+	 * Creates a factory for connectors of the default network.
+	 */
+	public InMemoryConnectorFactory() {
+		this(InMemoryNetwork.getDefault());
+	}
+
+	/**
+	 * Creates a factory for connectors of a network.
+	 * 
+	 * @param network the network
+	 */
+	public InMemoryConnectorFactory(InMemoryNetwork network) {
+		if (network == null)
+			throw new NullPointerException();
+		this.network = network;
+	}
+
+	@Override
+	public Connector newConnector(InetSocketAddress socketAddress) {
+		return new InMemoryConnector(network, socketAddress);
+	}
+}
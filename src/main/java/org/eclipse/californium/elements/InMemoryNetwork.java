@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A network within the JVM connecting {@link InMemoryConnector}s.
+ * 
+ * Connectors are bound to addresses of a network, and messages are delivered
+ * to the connector bound to their destination address. Like UDP, messages for
+ * addresses without a connector are lost silently.
+ * 
+ * A network can impair delivery to simulate real networks: messages can be
+ * lost, delayed and reordered at random. Each sending thread makes the random
+ * decisions with a generator of its own derived from the network's seed, so
+ * a test sending from a single thread sees the same impairments on every run. Delayed messages are delivered by a daemon thread
+ * of the network, all other messages are delivered on the sending thread.
+ */
+public class InMemoryNetwork {
+
+	private static final Logger LOGGER = Logger.getLogger(InMemoryNetwork.class.getName());
+
+	/** The first port assigned to connectors bound to port 0. */
+	private static final int FIRST_EPHEMERAL_PORT = 49152;
+
+	private static final int EPHEMERAL_PORT_COUNT = 0x10000 - FIRST_EPHEMERAL_PORT;
+
+	private static final InMemoryNetwork DEFAULT = new InMemoryNetwork();
+
+	private final ConcurrentMap<InetSocketAddress, InMemoryConnector> connectors =
+			new ConcurrentHashMap<InetSocketAddress, InMemoryConnector>();
+
+	private final AtomicInteger nextPort = new AtomicInteger();
+
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+	private final AtomicLong unreachable = new AtomicLong();
+
+	/** The generators of the sending threads, replaced when the seed is set. */
+	private volatile ThreadLocal<Random> random = newRandom(0);
+
+	private volatile double lossRate;
+	private volatile long minDelay;
+	private volatile long maxDelay;
+	private volatile double reorderRate;
+	private volatile long reorderDelay;
+
+	/** The messages waiting for their delivery time. */
+	private final DelayQueue<DelayedMessage> delayed = new DelayQueue<DelayedMessage>();
+
+	/** The order of delayed messages due at the same time. */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/** The thread delivering delayed messages, or <code>null</code> */
+	private Thread deliverer;
+
+	/**
+	 * Gets the network used by connectors created without a network.
+	 * 
+	 * @return the default network
+	 */
+	public static InMemoryNetwork getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Binds a connector to an address.
+	 * 
+	 * @param connector the connector
+	 * @param address the address. The wildcard address is replaced by the
+	 *            loopback address and port 0 by an unused port.
+	 * @return the address the connector has been bound to
+	 * @throws BindException if the address is in use
+	 */
+	InetSocketAddress bind(InMemoryConnector connector, InetSocketAddress address) throws BindException {
+		InetAddress host = address.getAddress();
+		if (host == null || host.isAnyLocalAddress())
+			host = getLoopbackAddress();
+		if (address.getPort() != 0) {
+			InetSocketAddress bound = new InetSocketAddress(host, address.getPort());
+			if (connectors.putIfAbsent(bound, connector) != null)
+				throw new BindException("Address already in use: " + bound);
+			return bound;
+		}
+		for (int i = 0; i < EPHEMERAL_PORT_COUNT; i++) {
+			int port = FIRST_EPHEMERAL_PORT + (nextPort.getAndIncrement() & 0x7FFFFFFF) % EPHEMERAL_PORT_COUNT;
+			InetSocketAddress bound = new InetSocketAddress(host, port);
+			if (connectors.putIfAbsent(bound, connector) == null)
+				return bound;
+		}
+		throw new BindException("No ephemeral port available on " + host);
+	}
+
+	/**
+	 * Releases the address of a connector.
+	 * 
+	 * @param connector the connector
+	 * @param address the address the connector has been bound to
+	 */
+	void unbind(InMemoryConnector connector, InetSocketAddress address) {
+		connectors.remove(address, connector);
+	}
+
+	/**
+	 * Sends a message to the connector bound to its destination address.
+	 * 
+	 * The message is copied, so the sender may reuse it right away.
+	 * 
+	 * @param source the address of the sending connector
+	 * @param msg the message
+	 */
+	void send(InetSocketAddress source, RawData msg) {
+		long delay;
+		double loss = lossRate;
+		double reorder = reorderRate;
+		long min = minDelay;
+		long max = maxDelay;
+		if (loss > 0 || reorder > 0 || max > 0) {
+			Random generator = random.get();
+			if (loss > 0 && generator.nextDouble() < loss) {
+				lost.incrementAndGet();
+				return;
+			}
+			delay = min;
+			if (max > min)
+				delay += (long) (generator.nextDouble() * (max - min));
+			// a message held back is overtaken by the ones sent after it
+			if (reorder > 0 && generator.nextDouble() < reorder)
+				delay += reorderDelay;
+		} else {
+			delay = 0;
+		}
+		RawData copy = new RawData(msg.getBytes(), source);
+		InetSocketAddress destination = msg.getInetSocketAddress();
+		if (delay > 0) {
+			schedule(new DelayedMessage(destination, copy, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay),
+					sequence.getAndIncrement()));
+		} else {
+			deliver(destination, copy);
+		}
+	}
+
+	private void deliver(InetSocketAddress destination, RawData msg) {
+		InMemoryConnector connector = connectors.get(destination);
+		if (connector == null) {
+			unreachable.incrementAndGet();
+			if (LOGGER.isLoggable(Level.FINER)) {
+				LOGGER.log(Level.FINER, "InMemoryNetwork has no connector on {0}", destination);
+			}
+		} else if (connector.receive(msg)) {
+			delivered.incrementAndGet();
+		}
+	}
+
+	private synchronized void schedule(DelayedMessage message) {
+		delayed.add(message);
+		if (deliverer == null) {
+			deliverer = new Thread("InMemoryNetwork-Deliverer") {
+
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							DelayedMessage next = delayed.take();
+							deliver(next.destination, next.msg);
+						} catch (InterruptedException e) {
+							// keep delivering, the thread is a daemon
+						} catch (RuntimeException e) {
+							LOGGER.log(Level.WARNING, "InMemoryNetwork failed to deliver delayed message", e);
+						}
+					}
+				}
+			};
+			deliverer.setDaemon(true);
+			deliverer.start();
+		}
+	}
+
+	private static InetAddress getLoopbackAddress() {
+		try {
+			return InetAddress.getByAddress("localhost", new byte[] {127, 0, 0, 1});
+		} catch (UnknownHostException e) {
+			// cannot happen for an address of valid length
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Sets the seed of the random impairments.
+	 * 
+	 * @param seed the seed (default 0)
+	 */
+	public void setSeed(long seed) {
+		this.random = newRandom(seed);
+	}
+
+	/**
+	 * Creates the generators of the sending threads. The first thread gets
+	 * a generator with the given seed, the following ones with seeds derived
+	 * from it, so that their impairments are not correlated.
+	 * 
+	 * @param seed the seed
+	 * @return the generators
+	 */
+	private static ThreadLocal<Random> newRandom(final long seed) {
+		final AtomicLong threads = new AtomicLong();
+		return new ThreadLocal<Random>() {
+
+			@Override
+			protected Random initialValue() {
+				return new Random(seed + threads.getAndIncrement() * 0x9E3779B97F4A7C15L);
+			}
+		};
+	}
+
+	/**
+	 * Sets the probability that a message is lost.
+	 * 
+	 * @param rate the probability between 0 (default) and 1
+	 */
+	public void setLossRate(double rate) {
+		if (rate < 0 || rate > 1)
+			throw new IllegalArgumentException("Loss rate must be between 0 and 1");
+		this.lossRate = rate;
+	}
+
+	public double getLossRate() {
+		return lossRate;
+	}
+
+	/**
+	 * Sets the range of the time messages take to be delivered. The delay of
+	 * each message is chosen from the range at random, so messages may be
+	 * reordered if the range is not empty.
+	 * 
+	 * @param min the minimum delay in milliseconds (default 0)
+	 * @param max the maximum delay in milliseconds (default 0)
+	 */
+	public synchronized void setDelay(long min, long max) {
+		if (min < 0 || max < min)
+			throw new IllegalArgumentException("Delay range must not be negative");
+		this.minDelay = min;
+		this.maxDelay = max;
+	}
+
+	public long getMinDelay() {
+		return minDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * Sets the probability that a message is held back, so that the messages
+	 * sent after it overtake it.
+	 * 
+	 * @param rate the probability between 0 (default) and 1
+	 * @param delay the time in milliseconds a message is held back in
+	 *            addition to its delay
+	 */
+	public synchronized void setReordering(double rate, long delay) {
+		if (rate < 0 || rate > 1)
+			throw new IllegalArgumentException("Reorder rate must be between 0 and 1");
+		if (delay < 0)
+			throw new IllegalArgumentException("Delay must not be negative");
+		this.reorderDelay = delay;
+		this.reorderRate = rate;
+	}
+
+	public double getReorderRate() {
+		return reorderRate;
+	}
+
+	public long getReorderDelay() {
+		return reorderDelay;
+	}
+
+	/**
+	 * Gets the number of messages handed to a connector.
+	 * 
+	 * @return the number of messages
+	 */
+	public long getDeliveredMessages() {
+		return delivered.get();
+	}
+
+	/**
+	 * Gets the number of messages lost at random.
+	 * 
+	 * @return the number of messages
+	 */
+	public long getLostMessages() {
+		return lost.get();
+	}
+
+	/**
+	 * Gets the number of messages sent to addresses without a connector.
+	 * 
+	 * @return the number of messages
+	 */
+	public long getUnreachableMessages() {
+		return unreachable.get();
+	}
+
+	/**
+	 * A message waiting for its delivery time.
+	 */
+	private static final class DelayedMessage implements Delayed {
+
+		private final InetSocketAddress destination;
+		private final RawData msg;
+		private final long due;
+		private final long sequence;
+
+		private DelayedMessage(InetSocketAddress destination, RawData msg, long due, long sequence) {
+			this.destination = destination;
+			this.msg = msg;
+			this.due = due;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			DelayedMessage message = (DelayedMessage) other;
+			if (due != message.due)
+				return due - message.due < 0 ? -1 : 1;
+			return sequence < message.sequence ? -1 : sequence > message.sequence ? 1 : 0;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+/**
+ * A {@link Connector} keeping track of its traffic by means of
+ * {@link ConnectorMetrics}.
+ */
+public interface InstrumentedConnector extends Connector {
+
+	/**
+	 * Gets the metrics of this connector.
+	 * 
+	 * @return the metrics, never <code>null</code>
+	 */
+	public ConnectorMetrics getMetrics();
+
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the number of datagrams the kernel dropped for a UDP port.
+ * 
+ * On Linux, <code>/proc/net/udp</code> and <code>/proc/net/udp6</code> list
+ * the drop counter of every UDP socket, which is incremented whenever a
+ * datagram does not fit into the socket's receive buffer. Other platforms do
+ * not provide this counter.
+ * 
+ * The tables list the sockets of all processes, so the counters are
+ * restricted to the sockets of this process, which are identified by the
+ * inodes of its file descriptors in <code>/proc/self/fd</code>. Resolving
+ * the descriptors requires Java 7 or later. On older runtimes, the
+ * counters of all sockets bound to the port are summed up, including
+ * those of other processes sharing the port with <code>SO_REUSEPORT</code>.
+ */
+final class KernelUdpStatistics {
+
+	private static final File[] TABLES = {
+		new File("/proc/net/udp"), new File("/proc/net/udp6")
+	};
+
+	private static final File FILE_DESCRIPTORS = new File("/proc/self/fd");
+
+	/** The prefix of the link of a socket's file descriptor. */
+	private static final String SOCKET_LINK = "socket:[";
+
+	/** The index of the inode in a line of a table. */
+	private static final int INODE_FIELD = 9;
+
+	private KernelUdpStatistics() { }
+
+	/**
+	 * Checks whether the drop counters are available on this platform.
+	 * 
+	 * @return <code>true</code> if the counters can be read
+	 */
+	static boolean isAvailable() {
+		return TABLES[0].canRead();
+	}
+
+	/**
+	 * Gets the inodes of the sockets of this process.
+	 * 
+	 * @return the inodes, or <code>null</code> if they cannot be determined
+	 */
+	static Set<Long> getSocketInodes() {
+		File[] descriptors = FILE_DESCRIPTORS.listFiles();
+		if (descriptors == null)
+			return null;
+		Method toPath;
+		Method readSymbolicLink;
+		try {
+			// only accessible through the file API introduced in Java 7
+			toPath = File.class.getMethod("toPath");
+			readSymbolicLink = Class.forName("java.nio.file.Files").getMethod("readSymbolicLink",
+					Class.forName("java.nio.file.Path"));
+		} catch (Exception e) {
+			return null;
+		}
+		Set<Long> inodes = new HashSet<Long>();
+		for (File descriptor : descriptors) {
+			try {
+				String link = readSymbolicLink.invoke(null, toPath.invoke(descriptor)).toString();
+				if (link.startsWith(SOCKET_LINK) && link.endsWith("]"))
+					inodes.add(Long.valueOf(link.substring(SOCKET_LINK.length(), link.length() - 1)));
+			} catch (InvocationTargetException e) {
+				// the descriptor has been closed meanwhile
+			} catch (IllegalAccessException e) {
+				return null;
+			} catch (NumberFormatException e) {
+				// unexpected format
+			}
+		}
+		return inodes;
+	}
+
+	/**
+	 * Gets the number of datagrams dropped by the sockets bound to a port.
+	 * 
+	 * @param port the local port
+	 * @param inodes the inodes of the sockets to count, or <code>null</code>
+	 *            to count all sockets bound to the port
+	 * @return the number of dropped datagrams, or -1 if not available
+	 * @see #getSocketInodes()
+	 */
+	static long getDrops(int port, Set<Long> inodes) {
+		long drops = -1;
+		for (File table : TABLES) {
+			if (!table.canRead())
+				continue;
+			try {
+				long tableDrops = getDrops(table, port, inodes);
+				drops = drops < 0 ? tableDrops : drops + tableDrops;
+			} catch (IOException e) {
+				// the table is not essential, try the next one
+			} catch (NumberFormatException e) {
+				// unexpected format
+			}
+		}
+		return drops;
+	}
+
+	/**
+	 * Sums up the drop counters of the sockets bound to a port in a table.
+	 * 
+	 * @param table the table
+	 * @param port the local port
+	 * @param inodes the inodes of the sockets to count, or <code>null</code>
+	 * @return the number of dropped datagrams
+	 * @throws IOException if the table cannot be read
+	 */
+	private static long getDrops(File table, int port, Set<Long> inodes) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(table));
+		try {
+			long drops = 0;
+			String line = reader.readLine(); // header
+			while ((line = reader.readLine()) != null) {
+				// sl local_address rem_address st tx:rx tr tm->when retrnsmt uid timeout inode ref pointer drops
+				String[] fields = line.trim().split("\\s+");
+				if (fields.length < 13)
+					continue;
+				String local = fields[1];
+				int localPort = Integer.parseInt(local.substring(local.lastIndexOf(':') + 1), 16);
+				if (localPort == port && (inodes == null || inodes.contains(Long.valueOf(fields[INODE_FIELD])))) {
+					drops += Long.parseLong(fields[fields.length - 1]);
+				}
+			}
+			return drops;
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The framing of messages exchanged over a stream, e.g. by the
+ * {@link NioTCPConnector}.
+ * 
+ * A framing delimits the messages received on a connection and writes
+ * outgoing messages such that the peer can delimit them. Implementations
+ * must be stateless, so a single framing can be shared by all connections.
+ */
+public interface MessageFraming {
+
+	/**
+	 * Extracts the next message from the bytes received on a connection.
+	 * 
+	 * @param in the received bytes between its position and limit. If a
+	 *            complete frame is available, the position is advanced past
+	 *            it, otherwise the position is left unchanged.
+	 * @return the message or <code>null</code> if the frame has not been
+	 *         received completely yet
+	 * @throws IOException if the frame is malformed or exceeds the maximum
+	 *             frame size. The connection is closed then.
+	 */
+	public byte[] decode(ByteBuffer in) throws IOException;
+
+	/**
+	 * Writes the frame of a message.
+	 * 
+	 * @param msg the message
+	 * @param out the buffer with at least {@link #getFrameSize(int)} bytes
+	 *            remaining
+	 */
+	public void encode(RawData msg, ByteBuffer out);
+
+	/**
+	 * Gets the size of the frame of a message.
+	 * 
+	 * @param messageSize the size of the message
+	 * @return the number of bytes written by {@link #encode(RawData, ByteBuffer)}
+	 */
+	public int getFrameSize(int messageSize);
+
+	/**
+	 * Gets the maximum size of a frame.
+	 * 
+	 * @return the size in bytes
+	 */
+	public int getMaxFrameSize();
+
+	/**
+	 * The framing of CoAP over TCP as defined by RFC 8323, section 3.2.
+	 * 
+	 * A message carries its own length in the first nibble of its header and
+	 * optional extended length bytes, so messages are written as they are.
+	 */
+	public static class CoapOverTcp implements MessageFraming {
+
+		/** The default maximum message size. */
+		public static final int DEFAULT_MAX_MESSAGE_SIZE = 65536;
+
+		private final int maxMessageSize;
+
+		public CoapOverTcp() {
+			this(DEFAULT_MAX_MESSAGE_SIZE);
+		}
+
+		/**
+		 * Creates a framing for messages up to a maximum size.
+		 * 
+		 * @param maxMessageSize the maximum size of a message including its
+		 *            header and token
+		 */
+		public CoapOverTcp(int maxMessageSize) {
+			if (maxMessageSize <= 0)
+				throw new IllegalArgumentException("Maximum message size must be positive");
+			this.maxMessageSize = maxMessageSize;
+		}
+
+		@Override
+		public byte[] decode(ByteBuffer in) throws IOException {
+			int start = in.position();
+			int available = in.remaining();
+			if (available < 1)
+				return null;
+			int first = in.get(start) & 0xFF;
+			int tokenLength = first & 0x0F;
+			if (tokenLength > 8)
+				throw new IOException("Invalid token length " + tokenLength);
+			int extended;
+			long offset;
+			switch (first >>> 4) {
+			case 13: extended = 1; offset = 13; break;
+			case 14: extended = 2; offset = 269; break;
+			case 15: extended = 4; offset = 65805; break;
+			default: extended = 0; offset = first >>> 4;
+			}
+			if (available < 1 + extended)
+				return null;
+			long length = offset;
+			for (int i = 1; i <= extended; i++) {
+				length += (long) (in.get(start + i) & 0xFF) << (8 * (extended - i));
+			}
+			// length byte(s), code and token precede options and payload
+			long size = 1 + extended + 1 + tokenLength + length;
+			if (size > maxMessageSize)
+				throw new IOException("Message of " + size + " bytes exceeds the maximum of " + maxMessageSize);
+			if (available < size)
+				return null;
+			byte[] msg = new byte[(int) size];
+			in.get(msg);
+			return msg;
+		}
+
+		@Override
+		public void encode(RawData msg, ByteBuffer out) {
+			msg.writeTo(out);
+		}
+
+		@Override
+		public int getFrameSize(int messageSize) {
+			return messageSize;
+		}
+
+		@Override
+		public int getMaxFrameSize() {
+			return maxMessageSize;
+		}
+	}
+
+	/**
+	 * A framing that prefixes each message with its length as unsigned 16
+	 * bit integer in network byte order.
+	 */
+	public static class LengthPrefix implements MessageFraming {
+
+		private static final int PREFIX_SIZE = 2;
+
+		/** The maximum message size. */
+		public static final int MAX_MESSAGE_SIZE = 0xFFFF;
+
+		@Override
+		public byte[] decode(ByteBuffer in) throws IOException {
+			if (in.remaining() < PREFIX_SIZE)
+				return null;
+			int length = in.getShort(in.position()) & 0xFFFF;
+			if (in.remaining() < PREFIX_SIZE + length)
+				return null;
+			in.position(in.position() + PREFIX_SIZE);
+			byte[] msg = new byte[length];
+			in.get(msg);
+			return msg;
+		}
+
+		@Override
+		public void encode(RawData msg, ByteBuffer out) {
+			if (msg.getSize() > MAX_MESSAGE_SIZE)
+				throw new IllegalArgumentException("Message exceeds the maximum size");
+			out.putShort((short) msg.getSize());
+			msg.writeTo(out);
+		}
+
+		@Override
+		public int getFrameSize(int messageSize) {
+			return PREFIX_SIZE + messageSize;
+		}
+
+		@Override
+		public int getMaxFrameSize() {
+			return PREFIX_SIZE + MAX_MESSAGE_SIZE;
+		}
+	}
+}
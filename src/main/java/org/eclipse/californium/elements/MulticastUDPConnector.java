@@ -0,0 +1,380 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link UDPConnector} that also receives datagrams sent to multicast
+ * groups, e.g., for CoAP group communication.
+ * 
+ * Each joined group is served by a {@link MulticastSocket} of its own, bound
+ * to the group address and the port of the connector, and a receiver thread
+ * of its own. Messages received from a group are marked as multicast, see
+ * {@link RawData#isMulticast()}, and forwarded to the connector's
+ * {@link RawDataChannel} like unicast messages. Groups can be joined and left
+ * at any time, on the default network interface or on particular ones.
+ * Messages, including those to a group, are sent via the unicast sockets.
+ * 
+ * The unicast sockets are bound with <code>SO_REUSEADDR</code> to share the
+ * port with the group sockets. They must be bound to a concrete address: on
+ * Linux, a socket bound to the wildcard address also receives the datagrams of
+ * all groups joined on its port by any socket (<code>IP_MULTICAST_ALL</code>),
+ * so every group message would be delivered twice, once of them not marked
+ * as multicast.
+ * 
+ * The connector does not work on Windows, which does not allow to bind a
+ * socket to a multicast address.
+ * 
+ * <pre>
+ * MulticastUDPConnector connector = new MulticastUDPConnector(new InetSocketAddress("192.168.1.10", 5683));
+ * connector.joinGroup(InetAddress.getByName("224.0.1.187"));
+ * connector.setRawDataReceiver(channel);
+ * connector.start();
+ * </pre>
+ */
+public class MulticastUDPConnector extends UDPConnector {
+
+	public final static Logger LOGGER = Logger.getLogger(MulticastUDPConnector.class.toString());
+
+	/** The joined groups by their address. */
+	private final Map<InetAddress, Group> groups = new LinkedHashMap<InetAddress, Group>();
+
+	/** The interface to join groups on, or <code>null</code> for the system's default */
+	private NetworkInterface networkInterface;
+
+	/** The receiver of incoming messages. */
+	private volatile RawDataChannel receiver;
+
+	private boolean running;
+
+	/**
+	 * Creates a connector bound to a given IP address and port. Groups are
+	 * joined on the same port.
+	 * 
+	 * @param address the IP address and port, the port may be 0 for an
+	 *            ephemeral port
+	 * @throws IllegalArgumentException if the address is <code>null</code>
+	 *             or the wildcard address
+	 */
+	public MulticastUDPConnector(InetSocketAddress address) {
+		super(checkUnicastAddress(address));
+		setReuseAddress(true);
+	}
+
+	private static InetSocketAddress checkUnicastAddress(InetSocketAddress address) {
+		if (address == null || address.getAddress() == null || address.getAddress().isAnyLocalAddress())
+			throw new IllegalArgumentException("The unicast address must not be the wildcard address");
+		if (address.getAddress().isMulticastAddress())
+			throw new IllegalArgumentException("The unicast address must not be a multicast address");
+		return address;
+	}
+
+	/**
+	 * Starts the unicast sockets and joins the groups joined so far. If a
+	 * group cannot be joined, the connector is stopped again.
+	 */
+	@Override
+	public synchronized void start() throws IOException {
+		if (running) return;
+		super.start();
+		running = true;
+		try {
+			for (Group group : groups.values()) {
+				group.open();
+			}
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops the connector. The groups are left, but joined again when the
+	 * connector is restarted.
+	 */
+	@Override
+	public synchronized void stop() {
+		if (!running) return;
+		running = false;
+		for (Group group : groups.values()) {
+			group.close();
+		}
+		super.stop();
+	}
+
+	@Override
+	public void setRawDataReceiver(RawDataChannel receiver) {
+		this.receiver = receiver;
+		super.setRawDataReceiver(receiver);
+	}
+
+	/**
+	 * Joins a group on the network interface set by
+	 * {@link #setNetworkInterface(NetworkInterface)}.
+	 * 
+	 * @param group the multicast address of the group
+	 * @throws IOException if the connector is running and the group cannot
+	 *             be joined
+	 */
+	public synchronized void joinGroup(InetAddress group) throws IOException {
+		joinGroup(group, networkInterface);
+	}
+
+	/**
+	 * Joins a group on a network interface. A group may be joined on several
+	 * interfaces, its messages are received by the same thread. If the
+	 * connector is not running yet, the group is joined once it is started.
+	 * 
+	 * @param group the multicast address of the group
+	 * @param netIf the interface, or <code>null</code> for the system's
+	 *            default
+	 * @throws IllegalArgumentException if the address is not a multicast
+	 *             address
+	 * @throws IOException if the connector is running and the group cannot
+	 *             be joined
+	 */
+	public synchronized void joinGroup(InetAddress group, NetworkInterface netIf) throws IOException {
+		if (!group.isMulticastAddress())
+			throw new IllegalArgumentException("Not a multicast address: " + group);
+		Group joined = groups.get(group);
+		if (joined == null) {
+			joined = new Group(group);
+			groups.put(group, joined);
+		} else if (joined.interfaces.contains(netIf)) {
+			return;
+		}
+		try {
+			if (running)
+				joined.join(netIf);
+			joined.interfaces.add(netIf);
+		} finally {
+			if (joined.interfaces.isEmpty()) {
+				joined.close();
+				groups.remove(group);
+			}
+		}
+	}
+
+	/**
+	 * Leaves a group on all interfaces it has been joined on.
+	 * 
+	 * @param group the multicast address of the group
+	 */
+	public synchronized void leaveGroup(InetAddress group) {
+		Group joined = groups.remove(group);
+		if (joined != null) {
+			// closing the socket drops all of its memberships
+			joined.close();
+		}
+	}
+
+	/**
+	 * Leaves a group on a network interface. Once the group has been left on
+	 * all interfaces, its socket is closed.
+	 * 
+	 * @param group the multicast address of the group
+	 * @param netIf the interface, or <code>null</code> for the system's
+	 *            default
+	 * @throws IOException if the connector is running and the group cannot
+	 *             be left
+	 */
+	public synchronized void leaveGroup(InetAddress group, NetworkInterface netIf) throws IOException {
+		Group joined = groups.get(group);
+		if (joined == null || !joined.interfaces.contains(netIf))
+			return;
+		if (joined.interfaces.size() == 1) {
+			leaveGroup(group);
+			return;
+		}
+		if (running)
+			joined.socket.leaveGroup(new InetSocketAddress(group, 0), netIf);
+		joined.interfaces.remove(netIf);
+	}
+
+	/**
+	 * Gets the joined groups.
+	 * 
+	 * @return the multicast addresses of the groups
+	 */
+	public synchronized List<InetAddress> getGroups() {
+		return new ArrayList<InetAddress>(groups.keySet());
+	}
+
+	/**
+	 * Sets the network interface {@link #joinGroup(InetAddress)} joins groups
+	 * on. Groups joined already are not affected.
+	 * 
+	 * @param netIf the interface, or <code>null</code> for the system's
+	 *            default
+	 */
+	public synchronized void setNetworkInterface(NetworkInterface netIf) {
+		this.networkInterface = netIf;
+	}
+
+	public synchronized NetworkInterface getNetworkInterface() {
+		return networkInterface;
+	}
+
+	/**
+	 * A joined group, i.e., the interfaces it has been joined on and, while
+	 * the connector is running, its socket and receiver.
+	 */
+	private class Group {
+
+		private final InetAddress address;
+
+		/** The interfaces the group has been joined on, may contain <code>null</code> */
+		private final Set<NetworkInterface> interfaces = new LinkedHashSet<NetworkInterface>();
+
+		private MulticastSocket socket;
+		private GroupReceiver groupReceiver;
+
+		private Group(InetAddress address) {
+			this.address = address;
+		}
+
+		/**
+		 * Creates the socket, joins the group on all interfaces and starts
+		 * the receiver.
+		 */
+		private void open() throws IOException {
+			for (NetworkInterface netIf : interfaces) {
+				join(netIf);
+			}
+		}
+
+		/**
+		 * Joins the group on an interface, opening the socket first if
+		 * necessary.
+		 */
+		private void join(NetworkInterface netIf) throws IOException {
+			if (socket == null) {
+				MulticastSocket multicastSocket = new MulticastSocket((SocketAddress) null);
+				try {
+					multicastSocket.setReuseAddress(true);
+					multicastSocket.setReceiveBufferSize(getReceiveBufferSize());
+					// bound to the group address, the socket receives the group's datagrams only
+					multicastSocket.bind(new InetSocketAddress(address, getAddress().getPort()));
+				} catch (IOException e) {
+					multicastSocket.close();
+					throw e;
+				}
+				socket = multicastSocket;
+				groupReceiver = new GroupReceiver("UDP-Multicast-Receiver-" + address.getHostAddress() + ":"
+						+ socket.getLocalPort(), socket);
+				groupReceiver.start(null, getWorkerThreadFactory(), getWorkerExecutor());
+				LOGGER.log(Level.CONFIG, "MulticastUDPConnector listening on group {0}",
+						socket.getLocalSocketAddress());
+			}
+			socket.joinGroup(new InetSocketAddress(address, 0), netIf);
+			LOGGER.log(Level.FINE, "MulticastUDPConnector joined group {0} on {1}",
+					new Object[]{address, netIf == null ? "default interface" : netIf.getName()});
+		}
+
+		/**
+		 * Stops the receiver and closes the socket, if any.
+		 */
+		private void close() {
+			if (socket == null)
+				return;
+			groupReceiver.stop();
+			socket.close();
+			groupReceiver = null;
+			socket = null;
+			LOGGER.log(Level.FINE, "MulticastUDPConnector left group {0}", address);
+		}
+	}
+
+	/**
+	 * The worker receiving the datagrams sent to a group.
+	 */
+	private class GroupReceiver extends ConnectorWorker {
+
+		private final MulticastSocket socket;
+		private DatagramPacket datagram;
+
+		private GroupReceiver(String name, MulticastSocket socket) {
+			super(name);
+			this.socket = socket;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.elements.ConnectorWorker#loop()
+		 */
+		protected void loop() {
+			LOGGER.log(Level.FINE, "Starting worker [{0}]", getName());
+			while (isActive() && !socket.isClosed()) {
+				try {
+					work();
+				} catch (Throwable t) {
+					if (isActive() && !socket.isClosed())
+						LOGGER.log(Level.WARNING, "Exception occurred in Worker [" + getName() + "]: ", t);
+					else
+						LOGGER.log(Level.FINE, "Worker [{0}] has been stopped successfully", getName());
+				}
+			}
+		}
+
+		private void work() throws IOException {
+			// a buffer one byte larger than the limit reveals truncated datagrams
+			int size = getReceiverPacketSize();
+			if (datagram == null || datagram.getData().length != size + 1) {
+				datagram = new DatagramPacket(new byte[size + 1], size + 1);
+			} else {
+				datagram.setLength(size + 1);
+			}
+			ConnectorMetrics metrics = getMetrics();
+			try {
+				socket.receive(datagram);
+			} catch (IOException e) {
+				if (!socket.isClosed())
+					metrics.receiveFailed();
+				throw e;
+			}
+			int length = datagram.getLength();
+			metrics.received(length);
+			if (isRateLimited(datagram))
+				return;
+			if (length > size) {
+				discardTruncated(socket, datagram, size, true);
+				return;
+			}
+			if (LOGGER.isLoggable(Level.FINER)) {
+				LOGGER.log(Level.FINER, "MulticastUDPConnector ({0}) received {1} bytes from {2}:{3}",
+						new Object[]{socket.getLocalSocketAddress(), length,
+							datagram.getAddress(), datagram.getPort()});
+			}
+			byte[] bytes = Arrays.copyOfRange(datagram.getData(), datagram.getOffset(), datagram.getOffset() + length);
+			receiver.receiveData(new RawData(bytes, sourceOf(datagram), true));
+		}
+	}
+}
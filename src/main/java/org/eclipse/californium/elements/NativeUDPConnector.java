@@ -0,0 +1,533 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A UDP connector that moves batches of datagrams with a single system call.
+ * 
+ * The connector uses the Linux system calls <code>recvmmsg</code> and
+ * <code>sendmmsg</code> through a small native library, see
+ * <code>src/main/native</code>. Up to #getReceiveBatchSize() datagrams are
+ * read into a preallocated direct buffer at once and all messages taken from
+ * the outgoing queue by the sender thread are written at once.
+ * 
+ * The native library is loaded from the path given by the system property
+ * {@value #LIBRARY_PROPERTY} or else as library <code>cf-mmsg</code> from
+ * the <code>java.library.path</code>. If it is not available, the connector
+ * cannot be started, see {@link #isAvailable()}. The
+ * {@link NativeUDPConnectorFactory} creates a {@link UDPConnector} instead in
+ * that case.
+ * 
+ * The connector uses a single receiver and a single sender thread, which
+ * own the native buffers.
+ */
+public class NativeUDPConnector extends ConnectorBase {
+
+	private final static Logger LOGGER = Logger.getLogger(NativeUDPConnector.class.getName());
+
+	/** The system property to load the native library from a given path. */
+	public static final String LIBRARY_PROPERTY = "org.eclipse.californium.elements.native.library";
+
+	/** The name of the native library. */
+	public static final String LIBRARY_NAME = "cf-mmsg";
+
+	public static final int UNDEFINED = 0;
+
+	/** The default number of peer addresses cached by the receiver. */
+	public static final int DEFAULT_ADDRESS_CACHE_SIZE = 1024;
+
+	/** The maximum number of datagrams per system call. */
+	private static final int MAX_BATCH_SIZE = 256;
+
+	/** The size of an address exchanged with the native library. */
+	private static final int ADDRESS_SIZE = 16;
+
+	/** The maximum payload of a UDP datagram. */
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+
+	/** The size of the buffer the sender thread packs messages into. */
+	private static final int SEND_BUFFER_SIZE = 256 * 1024;
+
+	/** The time after which the receiver thread checks whether to stop. */
+	private static final int RECEIVE_TIMEOUT_MS = 500;
+
+	/** The reason why the native library is not available, or <code>null</code> */
+	private static final Throwable LOAD_ERROR;
+
+	static {
+		Throwable error = null;
+		try {
+			String path = System.getProperty(LIBRARY_PROPERTY);
+			if (path != null) {
+				System.load(path);
+			} else {
+				System.loadLibrary(LIBRARY_NAME);
+			}
+		} catch (Throwable t) {
+			error = t;
+			LOGGER.log(Level.FINE, "Native library " + LIBRARY_NAME + " is not available", t);
+		}
+		LOAD_ERROR = error;
+	}
+
+	/** The socket's file descriptor, or -1 */
+	private int fd = -1;
+
+	/** The port the socket is bound to. */
+	private int port;
+
+	private int receiveBufferSize = UNDEFINED;
+	private int sendBufferSize = UNDEFINED;
+	private int receiverPacketSize = 2048;
+
+	/** The limiter of the rate per peer, or <code>null</code> */
+	private volatile PeerRateLimiter rateLimiter;
+
+	private volatile TruncatedMessageHandler truncatedMessageHandler;
+
+	private int addressCacheSize = DEFAULT_ADDRESS_CACHE_SIZE;
+
+	/** The addresses of the peers, or <code>null</code> */
+	private volatile AddressCache addressCache;
+
+	// used by the receiver thread only
+	private ByteBuffer receiveBuffer;
+	private int[] receiveLengths;
+	private int[] receivePorts;
+	private byte[] receiveAddresses;
+	private final LinkedList<RawData> received = new LinkedList<RawData>();
+
+	// used by the sender thread only
+	private ByteBuffer sendBuffer;
+	private int[] sendOffsets;
+	private int[] sendLengths;
+	private int[] sendPorts;
+	private byte[] sendAddresses;
+	private RawData[] packed;
+
+	/**
+	 * Creates a connector on the wildcard address listening on an
+	 * ephemeral port, i.e. a port chosen by the system.
+	 */
+	public NativeUDPConnector() {
+		this(null);
+	}
+
+	/**
+	 * Creates a connector bound to a given IP address and port.
+	 * 
+	 * @param address the IP address and port, if <code>null</code>
+	 * the connector is bound to an ephemeral port on the wildcard address
+	 */
+	public NativeUDPConnector(InetSocketAddress address) {
+		super(address == null ? new InetSocketAddress(0) : address);
+	}
+
+	/**
+	 * Checks whether the native library has been loaded.
+	 * 
+	 * @return <code>true</code> if the connector can be started
+	 */
+	public static boolean isAvailable() {
+		return LOAD_ERROR == null;
+	}
+
+	@Override
+	public String getName() {
+		return "NativeUDP";
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (isRunning()) return;
+		if (LOAD_ERROR != null)
+			throw new IOException("Native library " + LIBRARY_NAME + " is not available: " + LOAD_ERROR);
+		InetSocketAddress localAddr = getLocalAddr();
+		if (localAddr.isUnresolved())
+			throw new IOException("Cannot bind to unresolved address " + localAddr);
+
+		byte[] address = new byte[ADDRESS_SIZE];
+		toAddress(localAddr.getAddress(), address, 0);
+		fd = nativeOpen(address, localAddr.getPort(), receiveBufferSize, sendBufferSize, RECEIVE_TIMEOUT_MS);
+		try {
+			port = nativeGetLocalPort(fd);
+			receiveBufferSize = nativeGetBufferSize(fd, true);
+			sendBufferSize = nativeGetBufferSize(fd, false);
+		} catch (IOException e) {
+			nativeClose(fd);
+			fd = -1;
+			throw e;
+		}
+
+		int slots = Math.min(getReceiveBatchSize(), MAX_BATCH_SIZE);
+		receiveBuffer = ByteBuffer.allocateDirect(slots * receiverPacketSize);
+		receiveLengths = new int[slots];
+		receivePorts = new int[slots];
+		receiveAddresses = new byte[slots * ADDRESS_SIZE];
+		received.clear();
+		addressCache = addressCacheSize > 0 ? new AddressCache(addressCacheSize) : null;
+
+		sendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+		sendOffsets = new int[MAX_BATCH_SIZE];
+		sendLengths = new int[MAX_BATCH_SIZE];
+		sendPorts = new int[MAX_BATCH_SIZE];
+		sendAddresses = new byte[MAX_BATCH_SIZE * ADDRESS_SIZE];
+		packed = new RawData[MAX_BATCH_SIZE];
+
+		super.start();
+
+		LOGGER.log(Level.CONFIG, "NativeUDPConnector listening on {0}, recv buf = {1}, send buf = {2}, recv packet size = {3}",
+				new Object[]{getAddress(), receiveBufferSize, sendBufferSize, receiverPacketSize});
+	}
+
+	@Override
+	protected void unblockWorkers() {
+		nativeShutdown(fd);
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (!isRunning()) return;
+		super.stop();
+		// the socket is closed after the workers have terminated, so its
+		// descriptor cannot be reused while they are still accessing it
+		nativeClose(fd);
+		fd = -1;
+		LOGGER.log(Level.CONFIG, "NativeUDPConnector on [{0}] has stopped.", getLocalAddr());
+	}
+
+	@Override
+	public synchronized void destroy() {
+		stop();
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		InetSocketAddress localAddr = getLocalAddr();
+		if (fd < 0) return localAddr;
+		return new InetSocketAddress(localAddr.getAddress(), port);
+	}
+
+	@Override
+	protected RawData receiveNext() throws Exception {
+		if (received.isEmpty())
+			receive(received, receiveLengths.length);
+		return received.poll();
+	}
+
+	@Override
+	protected void receiveNextBatch(List<RawData> batch, int maxSize) throws Exception {
+		if (received.isEmpty()) {
+			receive(batch, maxSize);
+		} else {
+			while (batch.size() < maxSize && !received.isEmpty())
+				batch.add(received.poll());
+		}
+	}
+
+	/**
+	 * Receives the datagrams readily available, blocking until at least one
+	 * is available or the receive timeout expires.
+	 * 
+	 * @param messages the collection to add the received messages to
+	 * @param maxSize the maximum number of messages to receive
+	 * @throws IOException if the socket cannot be read
+	 */
+	private void receive(Collection<RawData> messages, int maxSize) throws IOException {
+		int count = nativeReceive(fd, receiveBuffer, receiverPacketSize, Math.min(maxSize, receiveLengths.length),
+				receiveLengths, receiveAddresses, receivePorts);
+		if (!isRunning())
+			return;
+		PeerRateLimiter limiter = rateLimiter;
+		AddressCache cache = addressCache;
+		for (int i = 0; i < count; i++) {
+			InetSocketAddress source;
+			if (cache != null) {
+				source = cache.get(receiveAddresses, i * ADDRESS_SIZE, ADDRESS_SIZE, receivePorts[i]);
+			} else {
+				byte[] address = new byte[ADDRESS_SIZE];
+				System.arraycopy(receiveAddresses, i * ADDRESS_SIZE, address, 0, ADDRESS_SIZE);
+				// IPv4-mapped addresses result in an Inet4Address
+				source = new InetSocketAddress(InetAddress.getByAddress(address), receivePorts[i]);
+			}
+			if (limiter != null && !limiter.tryAcquire(source.getAddress(), receivePorts[i]))
+				continue;
+			if (receiveLengths[i] > receiverPacketSize) {
+				truncated(i, source);
+				continue;
+			}
+			byte[] bytes = new byte[receiveLengths[i]];
+			receiveBuffer.limit(i * receiverPacketSize + bytes.length);
+			receiveBuffer.position(i * receiverPacketSize);
+			receiveBuffer.get(bytes);
+			RawData msg = new RawData(bytes, source);
+			if (LOGGER.isLoggable(Level.FINER)) {
+				LOGGER.log(Level.FINER, "NativeUDPConnector ({0}) received {1} bytes from {2}",
+						new Object[]{getLocalAddr(), bytes.length, msg.getInetSocketAddress()});
+			}
+			messages.add(msg);
+		}
+		receiveBuffer.clear();
+	}
+
+	/**
+	 * Handles a datagram that exceeded the receiver packet size.
+	 * 
+	 * @param slot the slot of the receive buffer holding the datagram
+	 * @param source the address the datagram has been received from
+	 */
+	private void truncated(int slot, InetSocketAddress source) {
+		getMetrics().truncated();
+		LOGGER.log(Level.FINE, "NativeUDPConnector ({0}) dropped datagram from {1} exceeding {2} bytes",
+				new Object[]{getLocalAddr(), source, receiverPacketSize});
+		TruncatedMessageHandler handler = truncatedMessageHandler;
+		if (handler != null) {
+			byte[] bytes = new byte[receiverPacketSize];
+			receiveBuffer.limit((slot + 1) * receiverPacketSize);
+			receiveBuffer.position(slot * receiverPacketSize);
+			receiveBuffer.get(bytes);
+			try {
+				handler.truncated(new RawData(bytes, source));
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Truncated message handler failed", e);
+			}
+		}
+	}
+
+	@Override
+	protected void sendNext(RawData raw) throws Exception {
+		sendNextBatch(Collections.singletonList(raw));
+	}
+
+	/**
+	 * Packs the messages into the send buffer and writes them with as few
+	 * system calls as possible.
+	 */
+	@Override
+	protected void sendNextBatch(List<RawData> batch) throws Exception {
+		int next = 0;
+		while (next < batch.size()) {
+			sendBuffer.clear();
+			int count = 0;
+			while (next < batch.size() && count < MAX_BATCH_SIZE) {
+				RawData raw = batch.get(next);
+				int size = raw.getSize();
+				if (size > MAX_DATAGRAM_SIZE || raw.getAddress() == null) {
+					LOGGER.log(Level.WARNING, "NativeUDPConnector ({0}) drops message of {1} bytes to {2}",
+							new Object[]{getLocalAddr(), size, raw.getInetSocketAddress()});
+					messageNotSent(raw, new IOException("Message exceeds the maximum datagram size"));
+					next++;
+					continue;
+				}
+				if (size > sendBuffer.remaining())
+					break;
+				sendOffsets[count] = sendBuffer.position();
+				sendLengths[count] = size;
+				sendPorts[count] = raw.getPort();
+				toAddress(raw.getAddress(), sendAddresses, count * ADDRESS_SIZE);
+				raw.writeTo(sendBuffer);
+				packed[count++] = raw;
+				next++;
+			}
+			try {
+				send(count);
+			} finally {
+				Arrays.fill(packed, 0, count, null);
+			}
+		}
+	}
+
+	/**
+	 * Sends the messages packed into the send buffer.
+	 * 
+	 * @param count the number of messages
+	 * @throws IOException if the connector has been stopped
+	 */
+	private void send(int count) throws IOException {
+		int index = 0;
+		while (index < count) {
+			try {
+				int sent = nativeSend(fd, sendBuffer, sendOffsets, sendLengths, sendAddresses, sendPorts,
+						index, count - index);
+				for (int i = index; i < index + sent; i++) {
+					messageSent(packed[i]);
+				}
+				index += sent;
+			} catch (IOException e) {
+				if (!isRunning())
+					throw e;
+				// the message at index failed, continue with the next one
+				RawData raw = packed[index++];
+				messageNotSent(raw, e);
+				LOGGER.log(Level.WARNING, "NativeUDPConnector (" + getLocalAddr() + ") could not send "
+						+ raw.getSize() + " bytes to " + raw.getInetSocketAddress(), e);
+			}
+		}
+	}
+
+	/**
+	 * Writes an address as 16 byte IPv6 address, mapping IPv4 addresses to
+	 * <code>::ffff:a.b.c.d</code>.
+	 * 
+	 * @param address the address
+	 * @param buffer the buffer to write to
+	 * @param offset the offset in the buffer
+	 */
+	private static void toAddress(InetAddress address, byte[] buffer, int offset) {
+		Arrays.fill(buffer, offset, offset + ADDRESS_SIZE, (byte) 0);
+		if (address.isAnyLocalAddress()) {
+			// the IPv6 wildcard address accepts IPv4 datagrams as well
+			return;
+		}
+		byte[] bytes = address.getAddress();
+		if (address instanceof Inet4Address) {
+			buffer[offset + 10] = (byte) 0xff;
+			buffer[offset + 11] = (byte) 0xff;
+			System.arraycopy(bytes, 0, buffer, offset + 12, 4);
+		} else {
+			System.arraycopy(bytes, 0, buffer, offset, ADDRESS_SIZE);
+		}
+	}
+
+	/**
+	 * Sets the limiter for the rate of datagrams accepted from each peer.
+	 *
+	 * Datagrams exceeding the rate of their peer are dropped right after
+	 * they have been read from the socket, before they are copied or
+	 * forwarded to the receiver. A limiter may be shared by several
+	 * connectors.
+	 *
+	 * @param limiter the limiter, or <code>null</code> to accept all datagrams
+	 */
+	public void setRateLimiter(PeerRateLimiter limiter) {
+		this.rateLimiter = limiter;
+	}
+
+	public PeerRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Sets the handler for datagrams dropped because they exceed the
+	 * receiver packet size.
+	 * 
+	 * Such datagrams are counted as truncated packets by the metrics, but
+	 * never forwarded to the receiver.
+	 * 
+	 * @param handler the handler or <code>null</code> to only count them
+	 */
+	public void setTruncatedMessageHandler(TruncatedMessageHandler handler) {
+		this.truncatedMessageHandler = handler;
+	}
+
+	public TruncatedMessageHandler getTruncatedMessageHandler() {
+		return truncatedMessageHandler;
+	}
+
+	/**
+	 * Sets the number of peer addresses cached by the receiver thread.
+	 * 
+	 * Messages received from a cached peer share its {@link InetSocketAddress}
+	 * instead of allocating a new one per datagram, see {@link AddressCache}.
+	 * This method must be called before the connector is started.
+	 * 
+	 * @param size the number of addresses (default
+	 *            {@link #DEFAULT_ADDRESS_CACHE_SIZE}), or 0 to disable the cache
+	 */
+	public void setAddressCacheSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("Size must not be negative");
+		this.addressCacheSize = size;
+	}
+
+	public int getAddressCacheSize() {
+		return addressCacheSize;
+	}
+
+	/**
+	 * Gets the cache of peer addresses.
+	 * 
+	 * @return the cache, or <code>null</code> if the connector has not been started
+	 *         or the cache is disabled
+	 */
+	public AddressCache getAddressCache() {
+		return addressCache;
+	}
+
+	public void setReceiveBufferSize(int size) {
+		this.receiveBufferSize = size;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	public void setSendBufferSize(int size) {
+		this.sendBufferSize = size;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets the maximum size of a received datagram. Longer datagrams are
+	 * truncated. This method must be called before the connector is started,
+	 * as the receive slots are allocated on start.
+	 * 
+	 * @param size the size in bytes (default 2048)
+	 * @throws IllegalStateException if the connector is running
+	 */
+	public synchronized void setReceiverPacketSize(int size) {
+		if (isRunning())
+			throw new IllegalStateException("Packet size cannot be changed while the connector is running");
+		this.receiverPacketSize = size;
+	}
+
+	public int getReceiverPacketSize() {
+		return receiverPacketSize;
+	}
+
+	private static native int nativeOpen(byte[] address, int port, int receiveBufferSize, int sendBufferSize,
+			int receiveTimeout) throws IOException;
+
+	private static native int nativeGetLocalPort(int fd) throws IOException;
+
+	private static native int nativeGetBufferSize(int fd, boolean receive) throws IOException;
+
+	private static native void nativeShutdown(int fd);
+
+	private static native void nativeClose(int fd);
+
+	private static native int nativeReceive(int fd, ByteBuffer buffer, int slotSize, int count,
+			int[] lengths, byte[] addresses, int[] ports) throws IOException;
+
+	private static native int nativeSend(int fd, ByteBuffer buffer, int[] offsets, int[] lengths,
+			byte[] addresses, int[] ports, int index, int count) throws IOException;
+}
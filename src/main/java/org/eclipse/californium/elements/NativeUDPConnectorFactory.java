@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.net.InetSocketAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A factory for {@link NativeUDPConnector} objects.
+ * 
+ * If the native library is not available on this platform, the factory
+ * falls back to creating {@link UDPConnector} objects.
+ */
+public class NativeUDPConnectorFactory implements ConnectorFactory {
+
+	private final static Logger LOGGER = Logger.getLogger(NativeUDPConnectorFactory.class.getName());
+
+	@Override
+	public Connector newConnector(InetSocketAddress socketAddress) {
+		if (NativeUDPConnector.isAvailable()) {
+			return new NativeUDPConnector(socketAddress);
+		}
+		LOGGER.log(Level.CONFIG, "Native library {0} is not available, using UDPConnector for {1}",
+				new Object[]{NativeUDPConnector.LIBRARY_NAME, socketAddress});
+		return new UDPConnector(socketAddress);
+	}
+}
@@ -0,0 +1,1090 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Connector} employing TCP as the transport protocol based on
+ * non-blocking {@link SocketChannel}s.
+ * 
+ * The connector listens for incoming connections on its address and serves
+ * all connections from a single selector thread, so the number of connections
+ * is not limited by the number of threads. Connections are kept in a table
+ * keyed by the peer's address. A message is sent over the connection to its
+ * destination, which is established first if there is none yet.
+ * 
+ * The messages received on a connection are delimited by a
+ * {@link MessageFraming}, by default the CoAP over TCP framing of RFC 8323.
+ * Received messages are delivered with the peer's address as source. All
+ * messages queued for a connection are written back-to-back with as few
+ * system calls as possible, without waiting for responses in between.
+ * 
+ * Connections that have neither received nor sent data within the
+ * {@link #setIdleTimeout(long) idle timeout} are closed.
+ */
+public class NioTCPConnector implements InstrumentedConnector, BatchConnector, AsyncConnector {
+
+	public final static Logger LOGGER = Logger.getLogger(NioTCPConnector.class.toString());
+
+	public static final int UNDEFINED = 0;
+
+	/** The default time in milliseconds after which idle connections are closed. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000;
+
+	/** The default maximum number of messages queued for a single connection. */
+	public static final int DEFAULT_MAX_PENDING_MESSAGES = 1000;
+
+	/** The minimum size of the buffers used to read and write. */
+	private static final int MIN_BUFFER_SIZE = 65536;
+
+	/** The initial size of the buffer keeping an incomplete frame. */
+	private static final int MIN_INBOUND_SIZE = 1024;
+
+	/** The maximum number of reads from a connection per readiness notification. */
+	private static final int MAX_READS_PER_SELECT = 16;
+
+	/** The maximum number of connections accepted per readiness notification. */
+	private static final int MAX_ACCEPTS_PER_SELECT = 64;
+
+	/** The maximum number of messages written with a single system call. */
+	private static final int MAX_WRITE_BATCH_SIZE = 64;
+
+	/** The maximum time in milliseconds to wait for the selector thread to stop. */
+	private static final long THREAD_JOIN_TIMEOUT = 1000;
+
+	private boolean running;
+
+	private ServerSocketChannel serverChannel;
+
+	private Selector selector;
+
+	private SelectorLoop selectorThread;
+
+	/** The factory to create the selector thread, or <code>null</code> */
+	private ThreadFactory workerThreadFactory;
+
+	/** The executor to run the selector loop on, or <code>null</code> */
+	private Executor workerExecutor;
+
+	private final InetSocketAddress localAddr;
+
+	/** The connections by peer address. */
+	private final ConcurrentMap<InetSocketAddress, Connection> connections =
+			new ConcurrentHashMap<InetSocketAddress, Connection>();
+
+	/** The outbound message queue. */
+	private final OutgoingQueue outgoing;
+
+	/** Indicates that the selector thread has been asked to flush the queue. */
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	/** The connections messages have been queued for by the current flush. */
+	private final List<Connection> flushed = new ArrayList<Connection>();
+
+	/** The receiver of incoming messages. */
+	private RawDataChannel receiver;
+
+	private MessageFraming framing = new MessageFraming.CoapOverTcp();
+
+	private ByteBuffer receiveBuffer;
+	private ByteBuffer sendBuffer;
+
+	/** The messages written with a single system call and the end of their frames. */
+	private final RawData[] writeBatch = new RawData[MAX_WRITE_BATCH_SIZE];
+	private final int[] writeEnds = new int[MAX_WRITE_BATCH_SIZE];
+
+	/** The batch of received messages for a {@link BatchRawDataChannel}. */
+	private final List<RawData> batch = new ArrayList<RawData>();
+
+	private int receiveBufferSize = UNDEFINED;
+	private int sendBufferSize = UNDEFINED;
+
+	private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	/** The time idle connections have been looked for last. */
+	private long lastReap;
+
+	private int maxPendingMessages = DEFAULT_MAX_PENDING_MESSAGES;
+
+	private final ConnectorMetrics metrics = new ConnectorMetrics();
+
+	/**
+	 * Creates a connector on the wildcard address listening on an
+	 * ephemeral port, i.e. a port chosen by the system.
+	 *
+	 * The effect of this constructor is the same as invoking
+	 * <code>NioTCPConnector(null)</code>.
+	 */
+	public NioTCPConnector() {
+		this(null);
+	}
+
+	/**
+	 * Creates a connector listening on a given IP address and port.
+	 *
+	 * @param address the IP address and port, if <code>null</code>
+	 * the connector listens on an ephemeral port on the wildcard address
+	 */
+	public NioTCPConnector(InetSocketAddress address) {
+		if (address == null) {
+			this.localAddr = new InetSocketAddress(0);
+		} else {
+			this.localAddr = address;
+		}
+		this.running = false;
+		this.outgoing = new OutgoingQueue(LOGGER, "NioTCPConnector", localAddr, metrics);
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (running) return;
+
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.configureBlocking(false);
+			if (receiveBufferSize != UNDEFINED) {
+				// inherited by accepted sockets, must be set before binding
+				serverChannel.socket().setReceiveBufferSize(receiveBufferSize);
+			}
+			serverChannel.socket().setReuseAddress(true);
+			// if localAddr is null or port is 0, the system decides
+			serverChannel.socket().bind(localAddr);
+
+			selector = Selector.open();
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		int bufferSize = Math.max(framing.getMaxFrameSize(), MIN_BUFFER_SIZE);
+		receiveBuffer = ByteBuffer.allocateDirect(bufferSize);
+		sendBuffer = ByteBuffer.allocateDirect(bufferSize);
+		lastReap = System.nanoTime();
+
+		this.running = true;
+
+		// messages queued before start need to be flushed as well
+		flushRequested.set(true);
+		selectorThread = new SelectorLoop("NIO-TCP-Selector-" + localAddr, selector);
+		selectorThread.start(null, workerThreadFactory, workerExecutor);
+
+		LOGGER.log(Level.CONFIG, "NioTCPConnector listening on {0}, idle timeout = {1} ms",
+				new Object[]{serverChannel.socket().getLocalSocketAddress(), idleTimeout});
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (!running) return;
+		this.running = false;
+		String address = serverChannel.socket().getLocalSocketAddress().toString();
+		selectorThread.stop();
+		selector.wakeup();
+		try {
+			if (!selectorThread.join(THREAD_JOIN_TIMEOUT))
+				LOGGER.log(Level.INFO, "Selector loop [{0}] did not terminate in time", address);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// the selector thread does not touch the connections anymore
+		IOException cause = new IOException("Connector has been stopped");
+		for (Connection connection : connections.values()) {
+			close(connection, cause);
+		}
+		outgoing.discard();
+		close();
+		LOGGER.log(Level.CONFIG, "NioTCPConnector on [{0}] has stopped.", address);
+	}
+
+	/**
+	 * Closes the selector and the server channel, ignoring any errors.
+	 */
+	private void close() {
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Error while closing selector", e);
+			}
+		}
+		if (serverChannel != null) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Error while closing server channel", e);
+			}
+		}
+		selector = null;
+		serverChannel = null;
+	}
+
+	@Override
+	public synchronized void destroy() {
+		stop();
+	}
+
+	@Override
+	public void send(RawData msg) {
+		if (msg == null)
+			throw new NullPointerException();
+		outgoing.add(msg, !onSelectorThread());
+		requestFlush();
+	}
+
+	@Override
+	public void send(List<RawData> msgs) {
+		boolean mayBlock = !onSelectorThread();
+		for (int i = 0; i < msgs.size(); i++) {
+			RawData msg = msgs.get(i);
+			if (msg == null)
+				throw new NullPointerException();
+			outgoing.add(msg, mayBlock);
+			if (outgoing.getOverflowPolicy() == OverflowPolicy.BLOCK) {
+				// the queue may fill up before the batch has been queued completely
+				requestFlush();
+			}
+		}
+		// a single wakeup suffices for the whole batch
+		requestFlush();
+	}
+
+	/**
+	 * Queues a message for sending and registers a callback to notify once it
+	 * has been sent or sending has failed.
+	 */
+	@Override
+	public void send(RawData msg, SendCallback callback) {
+		msg.setSendCallback(callback);
+		send(msg);
+	}
+
+	/**
+	 * Reports a message that could not be sent.
+	 * 
+	 * @param msg the message
+	 * @param cause the reason
+	 */
+	private void fail(RawData msg, IOException cause) {
+		metrics.sendFailed(msg);
+		msg.notifyFailed(cause);
+	}
+
+	/**
+	 * Checks whether the current thread is the selector thread, e.g. because
+	 * the receiver replies from {@link RawDataChannel#receiveData(RawData)}.
+	 * The selector thread alone takes messages from the outgoing queue, so it
+	 * must never wait for room in it.
+	 * 
+	 * @return <code>true</code> if called on the selector thread
+	 */
+	private boolean onSelectorThread() {
+		SelectorLoop loop = selectorThread;
+		return loop != null && loop.isCurrentThread();
+	}
+
+	/**
+	 * Asks the selector thread to write the queued messages. The selector is
+	 * only woken up if no flush is pending already, so a burst of messages
+	 * costs a single wakeup.
+	 */
+	private void requestFlush() {
+		if (!flushRequested.get() && flushRequested.compareAndSet(false, true)) {
+			Selector s = selector;
+			if (s != null) {
+				s.wakeup();
+			}
+		}
+	}
+
+	@Override
+	public void setRawDataReceiver(RawDataChannel receiver) {
+		this.receiver = receiver;
+	}
+
+	public InetSocketAddress getAddress() {
+		ServerSocketChannel c = serverChannel;
+		if (c == null) return localAddr;
+		else return new InetSocketAddress(c.socket().getInetAddress(), c.socket().getLocalPort());
+	}
+
+	/**
+	 * Accepts pending connections.
+	 */
+	private void accept() {
+		for (int i = 0; i < MAX_ACCEPTS_PER_SELECT; i++) {
+			SocketChannel channel = null;
+			try {
+				channel = serverChannel.accept();
+				if (channel == null)
+					return;
+				InetSocketAddress peer = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+				if (peer == null) {
+					// closed by the peer already
+					channel.close();
+					continue;
+				}
+				configure(channel);
+				Connection connection = new Connection(channel, peer);
+				connection.connected = true;
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				Connection previous = connections.put(peer, connection);
+				if (previous != null)
+					close(previous, new IOException("Connection has been replaced"));
+				LOGGER.log(Level.FINE, "NioTCPConnector ({0}) accepted connection from {1}",
+						new Object[]{localAddr, peer});
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "NioTCPConnector (" + localAddr + ") could not accept connection", e);
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	/**
+	 * Starts to establish a connection to a peer.
+	 * 
+	 * @param peer the peer's address
+	 * @return the connection, which may not be connected yet
+	 * @throws IOException if the connection cannot be established
+	 */
+	private Connection connect(InetSocketAddress peer) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			configure(channel);
+			Connection connection = new Connection(channel, peer);
+			if (channel.connect(peer)) {
+				connection.connected = true;
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			} else {
+				connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+			}
+			connections.put(peer, connection);
+			LOGGER.log(Level.FINE, "NioTCPConnector ({0}) connects to {1}", new Object[]{localAddr, peer});
+			return connection;
+		} catch (IOException e) {
+			closeQuietly(channel);
+			throw e;
+		}
+	}
+
+	/**
+	 * Completes establishing a connection and writes the messages queued
+	 * for it in the meantime.
+	 * 
+	 * @param connection the connection
+	 * @throws IOException if the connection cannot be established
+	 */
+	private void finishConnect(Connection connection) throws IOException {
+		if (connection.channel.finishConnect()) {
+			connection.connected = true;
+			connection.lastActivity = System.nanoTime();
+			connection.key.interestOps(SelectionKey.OP_READ);
+			write(connection);
+		}
+	}
+
+	/**
+	 * Configures a new connection's socket.
+	 * 
+	 * @param channel the connection's channel
+	 * @throws IOException if the socket cannot be configured
+	 */
+	private void configure(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		Socket socket = channel.socket();
+		// messages are coalesced by the connector already
+		socket.setTcpNoDelay(true);
+		if (receiveBufferSize != UNDEFINED) {
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+		if (sendBufferSize != UNDEFINED) {
+			socket.setSendBufferSize(sendBufferSize);
+		}
+	}
+
+	/**
+	 * Closes a connection and fails the messages queued for it.
+	 * 
+	 * @param connection the connection
+	 * @param cause the reason, or <code>null</code> if the peer closed it
+	 */
+	private void close(Connection connection, IOException cause) {
+		connections.remove(connection.peer, connection);
+		if (connection.key != null)
+			connection.key.cancel();
+		closeQuietly(connection.channel);
+		connection.inbound = null;
+		if (cause == null)
+			cause = new IOException("Connection has been closed by peer");
+		if (connection.current != null) {
+			fail(connection.current, cause);
+			connection.current = null;
+			connection.outbound = null;
+		}
+		RawData raw;
+		while ((raw = connection.queue.poll()) != null) {
+			fail(raw, cause);
+		}
+		LOGGER.log(Level.FINE, "NioTCPConnector ({0}) closed connection to {1}: {2}",
+				new Object[]{localAddr, connection.peer, cause.getMessage()});
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Error while closing channel", e);
+			}
+		}
+	}
+
+	/**
+	 * Closes the connections that have been idle for longer than the idle
+	 * timeout. Connections are checked a few times per timeout only.
+	 */
+	private void closeIdleConnections() {
+		long timeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		if (timeout <= 0)
+			return;
+		long now = System.nanoTime();
+		if (now - lastReap < timeout / 4)
+			return;
+		lastReap = now;
+		for (Connection connection : connections.values()) {
+			if (now - connection.lastActivity > timeout) {
+				close(connection, new IOException("Connection has been idle"));
+			}
+		}
+	}
+
+	/**
+	 * Reads the data available on a connection (up to a limit to give other
+	 * connections a chance) and forwards the messages to the receiver.
+	 *
+	 * @param connection the connection
+	 * @throws IOException if the connection cannot be read or the data is
+	 *             malformed
+	 */
+	private void read(Connection connection) throws IOException {
+		try {
+			for (int i = 0; i < MAX_READS_PER_SELECT; i++) {
+				ByteBuffer in = connection.inbound;
+				if (in == null) {
+					in = receiveBuffer;
+					in.clear();
+				}
+				int count;
+				try {
+					count = connection.channel.read(in);
+				} catch (IOException e) {
+					metrics.receiveFailed();
+					throw e;
+				}
+				if (count < 0) {
+					close(connection, null);
+					break;
+				} else if (count == 0) {
+					break;
+				}
+				connection.lastActivity = System.nanoTime();
+				in.flip();
+				byte[] bytes;
+				while ((bytes = framing.decode(in)) != null) {
+					metrics.received(bytes.length);
+					batch.add(new RawData(bytes, connection.peer));
+				}
+				keepIncompleteFrame(connection, in);
+			}
+		} finally {
+			// deliver the messages received before a failure as well
+			if (!batch.isEmpty()) {
+				try {
+					deliver();
+				} finally {
+					batch.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keeps the bytes of an incomplete frame until the rest has been
+	 * received. Only connections in the middle of a frame keep a buffer.
+	 * 
+	 * @param connection the connection
+	 * @param in the received bytes not decoded yet
+	 * @throws IOException if the frame exceeds the maximum frame size
+	 */
+	private void keepIncompleteFrame(Connection connection, ByteBuffer in) throws IOException {
+		if (!in.hasRemaining()) {
+			connection.inbound = null;
+		} else if (in == receiveBuffer) {
+			int size = Math.max(in.remaining() * 2, MIN_INBOUND_SIZE);
+			ByteBuffer partial = ByteBuffer.allocate(Math.min(size, framing.getMaxFrameSize()));
+			partial.put(in);
+			connection.inbound = partial;
+		} else {
+			in.compact();
+			if (!in.hasRemaining()) {
+				if (in.capacity() >= framing.getMaxFrameSize())
+					throw new IOException("Frame exceeds the maximum size of " + framing.getMaxFrameSize());
+				ByteBuffer larger = ByteBuffer.allocate(Math.min(in.capacity() * 2, framing.getMaxFrameSize()));
+				in.flip();
+				larger.put(in);
+				connection.inbound = larger;
+			}
+		}
+	}
+
+	/**
+	 * Forwards the received messages to the receiver.
+	 */
+	private void deliver() {
+		RawDataChannel handler = receiver;
+		if (handler instanceof BatchRawDataChannel) {
+			((BatchRawDataChannel) handler).receiveData(batch);
+		} else if (handler != null) {
+			for (int i = 0; i < batch.size(); i++) {
+				handler.receiveData(batch.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Moves the messages from the outgoing queue to the queues of their
+	 * connections and writes them.
+	 */
+	private void flush() {
+		flushRequested.set(false);
+		long now = System.nanoTime();
+		int maxPending = maxPendingMessages;
+		RawData raw;
+		while ((raw = outgoing.poll()) != null) {
+			if (raw.isExpired(now)) {
+				outgoing.expire(raw);
+				continue;
+			}
+			InetSocketAddress peer = raw.getInetSocketAddress();
+			Connection connection = connections.get(peer);
+			if (connection == null) {
+				try {
+					connection = connect(peer);
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "NioTCPConnector (" + localAddr + ") could not connect to " + peer, e);
+					fail(raw, e);
+					continue;
+				}
+			}
+			if (connection.queue.size() >= maxPending) {
+				// the peer does not keep up, do not let it use up all memory
+				metrics.dropped(1);
+				if (raw.getSendCallback() != null)
+					raw.notifyFailed(new IllegalStateException("Connection backlog is full"));
+				continue;
+			}
+			connection.queue.add(raw);
+			if (!connection.flushing) {
+				connection.flushing = true;
+				flushed.add(connection);
+			}
+		}
+		for (int i = 0; i < flushed.size(); i++) {
+			Connection connection = flushed.get(i);
+			connection.flushing = false;
+			if (connection.key.isValid() && connection.outbound == null) {
+				try {
+					write(connection);
+				} catch (IOException e) {
+					close(connection, e);
+				}
+			}
+		}
+		flushed.clear();
+	}
+
+	/**
+	 * Writes the messages queued for a connection until either its queue is
+	 * empty or the channel cannot accept more data. In the latter case, the
+	 * connection is registered for write readiness.
+	 * 
+	 * @param connection the connection
+	 * @throws IOException if the connection cannot be written
+	 */
+	private void write(Connection connection) throws IOException {
+		if (!connection.connected)
+			return;
+		if (connection.outbound != null) {
+			// continue with the rest of a message
+			connection.channel.write(connection.outbound);
+			if (connection.outbound.hasRemaining()) {
+				waitWritable(connection);
+				return;
+			}
+			connection.outbound = null;
+			sent(connection, connection.current);
+			connection.current = null;
+		}
+		long now = System.nanoTime();
+		while (!connection.queue.isEmpty()) {
+			sendBuffer.clear();
+			int count = 0;
+			RawData raw;
+			while (count < MAX_WRITE_BATCH_SIZE && (raw = connection.queue.peek()) != null) {
+				int size = framing.getFrameSize(raw.getSize());
+				if (count > 0 && size > sendBuffer.remaining())
+					break;
+				connection.queue.poll();
+				if (raw.isExpired(now)) {
+					outgoing.expire(raw);
+				} else if (size > framing.getMaxFrameSize()) {
+					LOGGER.log(Level.WARNING, "NioTCPConnector ({0}) drops message of {1} bytes exceeding the maximum frame size",
+							new Object[]{localAddr, raw.getSize()});
+					fail(raw, new IOException("Message exceeds the maximum frame size"));
+				} else {
+					framing.encode(raw, sendBuffer);
+					writeBatch[count] = raw;
+					writeEnds[count++] = sendBuffer.position();
+				}
+			}
+			if (count == 0)
+				continue;
+			sendBuffer.flip();
+			try {
+				connection.channel.write(sendBuffer);
+			} catch (IOException e) {
+				// let close fail the messages
+				requeue(connection, 0, count);
+				throw e;
+			}
+			int written = sendBuffer.position();
+			int index = 0;
+			while (index < count && writeEnds[index] <= written) {
+				sent(connection, writeBatch[index++]);
+			}
+			if (index < count) {
+				// keep the rest of the partially written message
+				sendBuffer.limit(writeEnds[index]);
+				ByteBuffer rest = ByteBuffer.allocate(sendBuffer.remaining());
+				rest.put(sendBuffer);
+				rest.flip();
+				connection.outbound = rest;
+				connection.current = writeBatch[index];
+				requeue(connection, index + 1, count);
+				waitWritable(connection);
+				return;
+			}
+			Arrays.fill(writeBatch, 0, count, null);
+		}
+		if (connection.writing) {
+			connection.writing = false;
+			connection.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Puts the messages of the write batch not written back in front of the
+	 * connection's queue.
+	 * 
+	 * @param connection the connection
+	 * @param from the index of the first message to put back
+	 * @param count the number of messages in the batch
+	 */
+	private void requeue(Connection connection, int from, int count) {
+		for (int i = count - 1; i >= from; i--) {
+			connection.queue.addFirst(writeBatch[i]);
+		}
+		Arrays.fill(writeBatch, 0, count, null);
+	}
+
+	private void waitWritable(Connection connection) {
+		if (!connection.writing) {
+			connection.writing = true;
+			connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void sent(Connection connection, RawData raw) {
+		connection.lastActivity = System.nanoTime();
+		metrics.sent(raw);
+		raw.notifySent();
+		if (LOGGER.isLoggable(Level.FINER)) {
+			LOGGER.log(Level.FINER, "NioTCPConnector ({0}) sent {1} bytes to {2}",
+					new Object[]{localAddr, raw.getSize(), connection.peer});
+		}
+	}
+
+	/**
+	 * A connection to a peer. Apart from the table of connections, its state
+	 * is only accessed by the selector thread.
+	 */
+	private static final class Connection {
+
+		private final SocketChannel channel;
+		private final InetSocketAddress peer;
+		private SelectionKey key;
+
+		/** Indicates that the connection has been established. */
+		private boolean connected;
+
+		/** Indicates that the connection is registered for write readiness. */
+		private boolean writing;
+
+		/** Indicates that the connection is part of the current flush. */
+		private boolean flushing;
+
+		/** The received bytes of an incomplete frame, or <code>null</code> */
+		private ByteBuffer inbound;
+
+		/** The rest of a partially written frame, or <code>null</code> */
+		private ByteBuffer outbound;
+
+		/** The message partially written. */
+		private RawData current;
+
+		/** The messages to write. */
+		private final ArrayDeque<RawData> queue = new ArrayDeque<RawData>();
+
+		/** The time data has been received or sent last. */
+		private long lastActivity = System.nanoTime();
+
+		private Connection(SocketChannel channel, InetSocketAddress peer) {
+			this.channel = channel;
+			this.peer = peer;
+		}
+	}
+
+	private class SelectorLoop extends ConnectorWorker {
+
+		/** The selector this loop serves. */
+		private final Selector loopSelector;
+
+		/**
+		 * Instantiates a new selector loop.
+		 *
+		 * @param name the name
+		 * @param selector the selector to serve
+		 */
+		private SelectorLoop(String name, Selector selector) {
+			super(name);
+			this.loopSelector = selector;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.elements.ConnectorWorker#loop()
+		 */
+		protected void loop() {
+			LOGGER.log(Level.FINE, "Starting selector loop [{0}]", getName());
+			while (running && isActive() && loopSelector.isOpen()) {
+				try {
+					work();
+				} catch (Throwable t) {
+					if (running)
+						LOGGER.log(Level.WARNING, "Exception occurred in selector loop [" + getName() + "] (running="
+								+ running + "): ", t);
+					else
+						LOGGER.log(Level.FINE, "Selector loop [{0}] has been stopped successfully", getName());
+				}
+			}
+		}
+
+		/**
+		 * Waits for connections to become ready and processes all pending
+		 * accepts, reads and writes.
+		 *
+		 * @throws IOException the exception to be properly logged
+		 */
+		private void work() throws IOException {
+			if (flushRequested.get()) {
+				flush();
+			}
+			long timeout = idleTimeout;
+			loopSelector.select(timeout > 0 ? Math.max(timeout / 4, 1) : 0);
+			Iterator<SelectionKey> keys = loopSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey selected = keys.next();
+				keys.remove();
+				if (!selected.isValid()) {
+					continue;
+				}
+				if (selected.isAcceptable()) {
+					accept();
+					continue;
+				}
+				Connection connection = (Connection) selected.attachment();
+				try {
+					if (selected.isConnectable()) {
+						finishConnect(connection);
+					}
+					if (selected.isValid() && selected.isReadable()) {
+						read(connection);
+					}
+					if (selected.isValid() && selected.isWritable()) {
+						write(connection);
+					}
+				} catch (IOException e) {
+					close(connection, e);
+				}
+			}
+			closeIdleConnections();
+		}
+	}
+
+	@Override
+	public ConnectorMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the number of connections, including the ones being established.
+	 * 
+	 * @return the number of connections
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Sets the framing of the messages exchanged over the connections.
+	 * 
+	 * This method must be called before the connector is started.
+	 * 
+	 * @param framing the framing (default {@link MessageFraming.CoapOverTcp})
+	 * @throws IllegalStateException if the connector is running
+	 */
+	public synchronized void setMessageFraming(MessageFraming framing) {
+		if (framing == null)
+			throw new NullPointerException();
+		if (running)
+			throw new IllegalStateException("Framing cannot be changed while the connector is running");
+		this.framing = framing;
+	}
+
+	public MessageFraming getMessageFraming() {
+		return framing;
+	}
+
+	/**
+	 * Sets the time after which connections that have neither received nor
+	 * sent data are closed.
+	 * 
+	 * @param timeout the timeout in milliseconds, or 0 to keep idle
+	 *            connections open (default {@link #DEFAULT_IDLE_TIMEOUT})
+	 */
+	public void setIdleTimeout(long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Timeout must not be negative");
+		this.idleTimeout = timeout;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets the maximum number of messages queued for a single connection.
+	 * 
+	 * Messages for a connection that is not writable fast enough are
+	 * dropped once this limit is reached.
+	 * 
+	 * @param max the maximum (default {@link #DEFAULT_MAX_PENDING_MESSAGES})
+	 */
+	public void setMaxPendingMessages(int max) {
+		if (max <= 0)
+			throw new IllegalArgumentException("Maximum must be positive");
+		this.maxPendingMessages = max;
+	}
+
+	public int getMaxPendingMessages() {
+		return maxPendingMessages;
+	}
+
+	/**
+	 * Sets the factory to create the selector thread with.
+	 *
+	 * This allows the thread to be named or prioritized by the application
+	 * or to run the selector loop on a virtual thread. This method must be
+	 * called before the connector is started.
+	 *
+	 * @param threadFactory the factory, or <code>null</code> to create a
+	 *            daemon thread (default)
+	 */
+	public void setWorkerThreadFactory(ThreadFactory threadFactory) {
+		this.workerThreadFactory = threadFactory;
+	}
+
+	public ThreadFactory getWorkerThreadFactory() {
+		return workerThreadFactory;
+	}
+
+	/**
+	 * Sets the executor to run the selector loop on.
+	 *
+	 * The executor may be shared by several connectors. The selector loop
+	 * occupies a thread of the executor until the connector stops. An
+	 * executor takes precedence over a thread factory. This method must be
+	 * called before the connector is started.
+	 *
+	 * @param executor the executor, or <code>null</code> to create a thread
+	 */
+	public void setWorkerExecutor(Executor executor) {
+		this.workerExecutor = executor;
+	}
+
+	public Executor getWorkerExecutor() {
+		return workerExecutor;
+	}
+
+	/**
+	 * Sets the size of the receive buffer of each connection's socket.
+	 * 
+	 * @param size the size in bytes
+	 */
+	public void setReceiveBufferSize(int size) {
+		this.receiveBufferSize = size;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * Sets the size of the send buffer of each connection's socket.
+	 * 
+	 * @param size the size in bytes
+	 */
+	public void setSendBufferSize(int size) {
+		this.sendBufferSize = size;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets the maximum number of messages in the outgoing queue.
+	 * 
+	 * Messages sent while the queue is full are handled according to the
+	 * {@link #setOverflowPolicy(OverflowPolicy) overflow policy}. This method
+	 * must be called before the connector is started.
+	 * 
+	 * @param capacity the capacity (default {@link Integer#MAX_VALUE})
+	 * @throws IllegalStateException if the connector is running
+	 */
+	public synchronized void setOutgoingCapacity(int capacity) {
+		if (running)
+			throw new IllegalStateException("Capacity cannot be changed while the connector is running");
+		outgoing.setCapacity(capacity);
+	}
+
+	public int getOutgoingCapacity() {
+		return outgoing.getCapacity();
+	}
+
+	/**
+	 * Sets the queue to buffer outgoing messages in until the selector
+	 * thread moves them to their connections.
+	 * 
+	 * Messages queued already are moved to the new queue as far as it has
+	 * room for them. This method must be called before the connector is
+	 * started.
+	 * 
+	 * @param queue the queue
+	 * @throws IllegalStateException if the connector is running
+	 */
+	public synchronized void setOutgoingQueue(BlockingQueue<RawData> queue) {
+		if (running)
+			throw new IllegalStateException("Queue cannot be changed while the connector is running");
+		outgoing.setQueue(queue);
+	}
+
+	/**
+	 * Gets the number of messages currently waiting in the outgoing queue.
+	 * 
+	 * @return the queue depth
+	 */
+	public int getOutgoingQueueSize() {
+		return outgoing.size();
+	}
+
+	/**
+	 * Sets the policy to apply to messages sent while the outgoing queue is full.
+	 * 
+	 * Messages sent on the selector thread, i.e. by the receiver while it
+	 * handles a received message, never block. With the policy
+	 * {@link OverflowPolicy#BLOCK}, they are dropped if the queue is full,
+	 * as with {@link OverflowPolicy#DROP_NEWEST}.
+	 * 
+	 * @param policy the policy (default {@link OverflowPolicy#BLOCK})
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		outgoing.setOverflowPolicy(policy);
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return outgoing.getOverflowPolicy();
+	}
+
+	/**
+	 * Sets the handler for messages rejected according to the
+	 * {@link OverflowPolicy#REJECT} policy.
+	 * 
+	 * @param handler the handler or <code>null</code> to make sending of
+	 *            rejected messages fail with an {@link IllegalStateException}
+	 */
+	public void setRejectedMessageHandler(RejectedMessageHandler handler) {
+		outgoing.setRejectedMessageHandler(handler);
+	}
+
+	public RejectedMessageHandler getRejectedMessageHandler() {
+		return outgoing.getRejectedMessageHandler();
+	}
+
+	/**
+	 * Sets the handler for queued messages that are discarded because their
+	 * {@link RawData#setSendDeadline(long) send deadline} has passed.
+	 * 
+	 * @param handler the handler or <code>null</code> to only count them
+	 */
+	public void setExpiredMessageHandler(ExpiredMessageHandler handler) {
+		outgoing.setExpiredMessageHandler(handler);
+	}
+
+	public ExpiredMessageHandler getExpiredMessageHandler() {
+		return outgoing.getExpiredMessageHandler();
+	}
+}
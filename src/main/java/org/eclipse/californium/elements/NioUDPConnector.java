@@ -0,0 +1,765 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Connector} employing UDP as the transport protocol based on a
+ * non-blocking {@link DatagramChannel}.
+ *
+ * In contrast to the {@link UDPConnector}, which dedicates blocking threads to
+ * receiving and sending datagrams, this connector serves its channel from a
+ * single selector thread. Datagrams are read into and written from direct
+ * buffers that are reused for the lifetime of the connector, so the only copy
+ * made per received datagram is the one into the {@link RawData}'s byte array.
+ * If the registered receiver is a {@link BatchRawDataChannel}, all datagrams
+ * read upon a readiness notification are delivered to it in a single batch.
+ *
+ * Outgoing messages are queued by {@link #send(RawData)} and written by the
+ * selector thread as soon as the channel can accept them. If the socket's send
+ * buffer is full, the selector thread waits for the channel to become writable
+ * instead of blocking.
+ */
+public class NioUDPConnector implements InstrumentedConnector, BatchConnector, AsyncConnector {
+
+	public final static Logger LOGGER = Logger.getLogger(NioUDPConnector.class.toString());
+
+	public static final int UNDEFINED = 0;
+
+	/** The maximum payload of an IPv4 UDP datagram. */
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+
+	/** The maximum number of datagrams read per readiness notification. */
+	private static final int MAX_READS_PER_SELECT = 64;
+
+	/** The time to wait for the selector loop to terminate on stop. */
+	private static final long THREAD_JOIN_TIMEOUT = 1000;
+
+	private boolean running;
+
+	private DatagramChannel channel;
+
+	private Selector selector;
+
+	private SelectionKey key;
+
+	private SelectorLoop selectorThread;
+
+	/** The factory to create the selector thread, or <code>null</code> */
+	private ThreadFactory workerThreadFactory;
+
+	/** The executor to run the selector loop on, or <code>null</code> */
+	private Executor workerExecutor;
+
+	private final InetSocketAddress localAddr;
+
+	/** The outbound message queue. */
+	private final OutgoingQueue outgoing;
+
+	/** Indicates that the selector thread has been asked to flush the queue. */
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	/** A message that could not be written because the channel was full. */
+	private RawData pending;
+
+	/** The receiver of incoming messages. */
+	private RawDataChannel receiver;
+
+	private ByteBuffer receiveBuffer;
+	private ByteBuffer sendBuffer;
+
+	/** The batch of received messages for a {@link BatchRawDataChannel}. */
+	private final List<RawData> batch = new ArrayList<RawData>(MAX_READS_PER_SELECT);
+
+	private int receiveBufferSize = UNDEFINED;
+	private int sendBufferSize = UNDEFINED;
+
+	private int receiverPacketSize = 2048;
+
+	/** The pool to copy received datagrams into, or <code>null</code> */
+	private BufferPool receiveBufferPool;
+
+	/** The limiter of the rate per peer, or <code>null</code> */
+	private volatile PeerRateLimiter rateLimiter;
+
+	private volatile TruncatedMessageHandler truncatedMessageHandler;
+
+	private final ConnectorMetrics metrics = new ConnectorMetrics();
+
+	/**
+	 * Creates a connector on the wildcard address listening on an
+	 * ephemeral port, i.e. a port chosen by the system.
+	 *
+	 * The effect of this constructor is the same as invoking
+	 * <code>NioUDPConnector(null)</code>.
+	 */
+	public NioUDPConnector() {
+		this(null);
+	}
+
+	/**
+	 * Creates a connector bound to a given IP address and port.
+	 *
+	 * @param address the IP address and port, if <code>null</code>
+	 * the connector is bound to an ephemeral port on the wildcard address
+	 */
+	public NioUDPConnector(InetSocketAddress address) {
+		if (address == null) {
+			this.localAddr = new InetSocketAddress(0);
+		} else {
+			this.localAddr = address;
+		}
+		this.running = false;
+		this.outgoing = new OutgoingQueue(LOGGER, "NioUDPConnector", localAddr, metrics);
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (running) return;
+
+		channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			DatagramSocket socket = channel.socket();
+			if (receiveBufferSize != UNDEFINED) {
+				socket.setReceiveBufferSize(receiveBufferSize);
+			}
+			receiveBufferSize = socket.getReceiveBufferSize();
+			if (sendBufferSize != UNDEFINED) {
+				socket.setSendBufferSize(sendBufferSize);
+			}
+			sendBufferSize = socket.getSendBufferSize();
+			// if localAddr is null or port is 0, the system decides
+			socket.bind(localAddr);
+
+			selector = Selector.open();
+			key = channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+
+		// the channel silently truncates datagrams exceeding the buffer, so
+		// a buffer one byte larger than the packet size reveals the truncation
+		receiveBuffer = ByteBuffer.allocateDirect(receiverPacketSize + 1);
+		sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+		pending = null;
+
+		this.running = true;
+
+		// messages queued before start need to be flushed as well
+		flushRequested.set(true);
+		selectorThread = new SelectorLoop("NIO-UDP-Selector-" + localAddr, selector);
+		selectorThread.start(null, workerThreadFactory, workerExecutor);
+
+		String startupMsg = new StringBuffer("NioUDPConnector listening on ")
+			.append(channel.socket().getLocalSocketAddress()).append(", recv buf = ")
+			.append(receiveBufferSize).append(", send buf = ").append(sendBufferSize)
+			.append(", recv packet size = ").append(receiverPacketSize).toString();
+		LOGGER.log(Level.CONFIG, startupMsg);
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (!running) return;
+		this.running = false;
+		String address = channel.socket().getLocalSocketAddress().toString();
+		selectorThread.stop();
+		selector.wakeup();
+		try {
+			if (!selectorThread.join(THREAD_JOIN_TIMEOUT))
+				LOGGER.log(Level.INFO, "Selector loop [{0}] did not terminate in time", address);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// the selector thread does not touch the channel anymore
+		RawData raw = pending;
+		if (raw != null) {
+			// the message waiting for the channel to drain is not sent anymore
+			pending = null;
+			raw.notifyFailed(new IOException("Connector has been stopped"));
+		}
+		outgoing.discard();
+		close();
+		LOGGER.log(Level.CONFIG, "NioUDPConnector on [{0}] has stopped.", address);
+	}
+
+	/**
+	 * Closes the selector and the channel, ignoring any errors.
+	 */
+	private void close() {
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Error while closing selector", e);
+			}
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Error while closing channel", e);
+			}
+		}
+		selector = null;
+		channel = null;
+		key = null;
+	}
+
+	@Override
+	public synchronized void destroy() {
+		stop();
+	}
+
+	@Override
+	public void send(RawData msg) {
+		if (msg == null)
+			throw new NullPointerException();
+		outgoing.add(msg, !onSelectorThread());
+		requestFlush();
+	}
+
+	@Override
+	public void send(List<RawData> msgs) {
+		boolean mayBlock = !onSelectorThread();
+		for (int i = 0; i < msgs.size(); i++) {
+			RawData msg = msgs.get(i);
+			if (msg == null)
+				throw new NullPointerException();
+			outgoing.add(msg, mayBlock);
+			if (outgoing.getOverflowPolicy() == OverflowPolicy.BLOCK) {
+				// the queue may fill up before the batch has been queued completely
+				requestFlush();
+			}
+		}
+		// a single wakeup suffices for the whole batch
+		requestFlush();
+	}
+
+	/**
+	 * Queues a message for sending and registers a callback to notify once it
+	 * has been sent or sending has failed.
+	 */
+	@Override
+	public void send(RawData msg, SendCallback callback) {
+		msg.setSendCallback(callback);
+		send(msg);
+	}
+
+	/**
+	 * Checks whether the current thread is the selector thread, e.g. because
+	 * the receiver replies from {@link RawDataChannel#receiveData(RawData)}.
+	 * The selector thread alone takes messages from the outgoing queue, so it
+	 * must never wait for room in it.
+	 * 
+	 * @return <code>true</code> if called on the selector thread
+	 */
+	private boolean onSelectorThread() {
+		SelectorLoop loop = selectorThread;
+		return loop != null && loop.isCurrentThread();
+	}
+
+	/**
+	 * Asks the selector thread to write the queued messages. The selector is
+	 * only woken up if no flush is pending already, so a burst of messages
+	 * costs a single wakeup.
+	 */
+	private void requestFlush() {
+		if (!flushRequested.get() && flushRequested.compareAndSet(false, true)) {
+			Selector s = selector;
+			if (s != null) {
+				s.wakeup();
+			}
+		}
+	}
+
+	@Override
+	public void setRawDataReceiver(RawDataChannel receiver) {
+		this.receiver = receiver;
+	}
+
+	public InetSocketAddress getAddress() {
+		DatagramChannel c = channel;
+		if (c == null) return localAddr;
+		else return new InetSocketAddress(c.socket().getLocalAddress(), c.socket().getLocalPort());
+	}
+
+	/**
+	 * Reads all datagrams currently available on the channel (up to a limit
+	 * to give outgoing messages a chance) and forwards them to the receiver.
+	 *
+	 * @throws IOException if the channel cannot be read
+	 */
+	private void read() throws IOException {
+		RawDataChannel handler = receiver;
+		if (handler instanceof BatchRawDataChannel) {
+			try {
+				for (int i = 0; i < MAX_READS_PER_SELECT; i++) {
+					RawData msg = readNext();
+					if (msg == null) {
+						break;
+					}
+					batch.add(msg);
+				}
+				if (!batch.isEmpty()) {
+					((BatchRawDataChannel) handler).receiveData(batch);
+				}
+			} finally {
+				batch.clear();
+			}
+		} else {
+			for (int i = 0; i < MAX_READS_PER_SELECT; i++) {
+				RawData msg = readNext();
+				if (msg == null) {
+					break;
+				}
+				handler.receiveData(msg);
+			}
+		}
+	}
+
+	/**
+	 * Reads the next datagram admitted by the rate limiter from the channel.
+	 *
+	 * @return the datagram or <code>null</code> if none is available, or too
+	 *         many datagrams have been rejected in a row
+	 * @throws IOException if the channel cannot be read
+	 */
+	private RawData readNext() throws IOException {
+		for (int i = 0; i < MAX_READS_PER_SELECT; i++) {
+			receiveBuffer.clear();
+			SocketAddress source;
+			try {
+				source = channel.receive(receiveBuffer);
+			} catch (IOException e) {
+				if (channel.isOpen())
+					metrics.receiveFailed();
+				throw e;
+			}
+			if (source == null) {
+				return null;
+			}
+			receiveBuffer.flip();
+			metrics.received(receiveBuffer.remaining());
+			PeerRateLimiter limiter = rateLimiter;
+			if (limiter == null || limiter.tryAcquire((InetSocketAddress) source)) {
+				if (receiveBuffer.remaining() <= receiverPacketSize)
+					return toRawData(source);
+				truncated(source);
+			}
+		}
+		// let the selector thread flush outgoing messages during a flood
+		return null;
+	}
+
+	/**
+	 * Handles a datagram that exceeded the receiver packet size.
+	 * 
+	 * @param source the address the datagram has been received from
+	 */
+	private void truncated(SocketAddress source) {
+		metrics.truncated();
+		LOGGER.log(Level.FINE, "NioUDPConnector ({0}) dropped datagram from {1} exceeding {2} bytes",
+				new Object[]{localAddr, source, receiverPacketSize});
+		TruncatedMessageHandler handler = truncatedMessageHandler;
+		if (handler != null) {
+			byte[] bytes = new byte[receiverPacketSize];
+			receiveBuffer.get(bytes);
+			try {
+				handler.truncated(new RawData(bytes, (InetSocketAddress) source));
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Truncated message handler failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Copies the datagram in the receive buffer into a message.
+	 *
+	 * @param source the address the datagram has been received from
+	 * @return the message
+	 */
+	private RawData toRawData(SocketAddress source) {
+		int length = receiveBuffer.remaining();
+		if (LOGGER.isLoggable(Level.FINER)) {
+			LOGGER.log(Level.FINER, "NioUDPConnector ({0}) received {1} bytes from {2}",
+					new Object[]{localAddr, length, source});
+		}
+		BufferPool pool = receiveBufferPool;
+		if (pool != null && length <= pool.getSlabSize()) {
+			byte[] slab = pool.acquire();
+			receiveBuffer.get(slab, 0, length);
+			return new PooledRawData(pool, slab, length, (InetSocketAddress) source);
+		} else {
+			byte[] bytes = new byte[length];
+			receiveBuffer.get(bytes);
+			return new RawData(bytes, (InetSocketAddress) source);
+		}
+	}
+
+	/**
+	 * Writes queued messages until either the queue is empty or the channel
+	 * cannot accept more data. In the latter case, the selector thread
+	 * registers for write readiness and continues once the channel drains.
+	 */
+	private void flush() {
+		do {
+			RawData raw;
+			while ((raw = (pending != null ? pending : outgoing.poll())) != null) {
+				if (raw.isExpired(System.nanoTime())) {
+					pending = null;
+					outgoing.expire(raw);
+					continue;
+				}
+				if (raw.getSize() > sendBuffer.capacity()) {
+					LOGGER.log(Level.WARNING, "NioUDPConnector ({0}) drops message of {1} bytes exceeding the maximum datagram size",
+							new Object[]{localAddr, raw.getSize()});
+					pending = null;
+					metrics.sendFailed(raw);
+					raw.notifyFailed(new IOException("Message exceeds the maximum datagram size"));
+					continue;
+				}
+				sendBuffer.clear();
+				raw.writeTo(sendBuffer);
+				sendBuffer.flip();
+				try {
+					if (channel.send(sendBuffer, raw.getInetSocketAddress()) == 0) {
+						// socket buffer is full, wait until the channel is writable
+						pending = raw;
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					metrics.sent(raw);
+					raw.notifySent();
+					if (LOGGER.isLoggable(Level.FINER)) {
+						LOGGER.log(Level.FINER, "NioUDPConnector ({0}) sent {1} bytes to {2}",
+								new Object[]{localAddr, raw.getSize(), raw.getInetSocketAddress()});
+					}
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "NioUDPConnector (" + localAddr + ") could not send "
+							+ raw.getSize() + " bytes to " + raw.getInetSocketAddress(), e);
+					metrics.sendFailed(raw);
+					raw.notifyFailed(e);
+				}
+				pending = null;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			flushRequested.set(false);
+			// a message might have been queued after the queue has been found empty
+		} while (!outgoing.isEmpty() && flushRequested.compareAndSet(false, true));
+	}
+
+	private class SelectorLoop extends ConnectorWorker {
+
+		/** The selector this loop serves. */
+		private final Selector loopSelector;
+
+		/**
+		 * Instantiates a new selector loop.
+		 *
+		 * @param name the name
+		 * @param selector the selector to serve
+		 */
+		private SelectorLoop(String name, Selector selector) {
+			super(name);
+			this.loopSelector = selector;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.elements.ConnectorWorker#loop()
+		 */
+		protected void loop() {
+			LOGGER.log(Level.FINE, "Starting selector loop [{0}]", getName());
+			// the selector is closed when the connector stops, even if it is restarted right away
+			while (running && isActive() && loopSelector.isOpen()) {
+				try {
+					work();
+				} catch (Throwable t) {
+					if (running)
+						LOGGER.log(Level.WARNING, "Exception occurred in selector loop [" + getName() + "] (running="
+								+ running + "): ", t);
+					else
+						LOGGER.log(Level.FINE, "Selector loop [{0}] has been stopped successfully", getName());
+				}
+			}
+		}
+
+		/**
+		 * Waits for the channel to become ready and processes all pending
+		 * reads and writes.
+		 *
+		 * @throws IOException the exception to be properly logged
+		 */
+		private void work() throws IOException {
+			if (flushRequested.get() && pending == null) {
+				flush();
+			}
+			loopSelector.select();
+			Iterator<SelectionKey> keys = loopSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey selected = keys.next();
+				keys.remove();
+				if (selected.isValid() && selected.isReadable()) {
+					read();
+				}
+				if (selected.isValid() && selected.isWritable()) {
+					flush();
+				}
+			}
+		}
+	}
+
+	@Override
+	public ConnectorMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the factory to create the selector thread with.
+	 *
+	 * This allows the thread to be named or prioritized by the application
+	 * or to run the selector loop on a virtual thread. This method must be
+	 * called before the connector is started.
+	 *
+	 * @param threadFactory the factory, or <code>null</code> to create a
+	 *            daemon thread (default)
+	 */
+	public void setWorkerThreadFactory(ThreadFactory threadFactory) {
+		this.workerThreadFactory = threadFactory;
+	}
+
+	public ThreadFactory getWorkerThreadFactory() {
+		return workerThreadFactory;
+	}
+
+	/**
+	 * Sets the executor to run the selector loop on.
+	 *
+	 * The executor may be shared by several connectors. The selector loop
+	 * occupies a thread of the executor until the connector stops. An
+	 * executor takes precedence over a thread factory. This method must be
+	 * called before the connector is started.
+	 *
+	 * @param executor the executor, or <code>null</code> to create a thread
+	 */
+	public void setWorkerExecutor(Executor executor) {
+		this.workerExecutor = executor;
+	}
+
+	public Executor getWorkerExecutor() {
+		return workerExecutor;
+	}
+
+	/**
+	 * Sets the limiter for the rate of datagrams accepted from each peer.
+	 *
+	 * Datagrams exceeding the rate of their peer are dropped right after
+	 * they have been read from the socket, before they are copied or
+	 * forwarded to the receiver. A limiter may be shared by several
+	 * connectors.
+	 *
+	 * @param limiter the limiter, or <code>null</code> to accept all datagrams
+	 */
+	public void setRateLimiter(PeerRateLimiter limiter) {
+		this.rateLimiter = limiter;
+	}
+
+	public PeerRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Sets the handler for datagrams dropped because they exceed the
+	 * receiver packet size.
+	 * 
+	 * Such datagrams are counted as truncated packets by the metrics, but
+	 * never forwarded to the receiver.
+	 * 
+	 * @param handler the handler or <code>null</code> to only count them
+	 */
+	public void setTruncatedMessageHandler(TruncatedMessageHandler handler) {
+		this.truncatedMessageHandler = handler;
+	}
+
+	public TruncatedMessageHandler getTruncatedMessageHandler() {
+		return truncatedMessageHandler;
+	}
+
+	public void setReceiveBufferSize(int size) {
+		this.receiveBufferSize = size;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	public void setSendBufferSize(int size) {
+		this.sendBufferSize = size;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets the maximum size of a received datagram. Longer datagrams are
+	 * truncated. This method must be called before the connector is started,
+	 * as the receive buffer is allocated on start.
+	 * 
+	 * @param size the size in bytes (default 2048)
+	 * @throws IllegalStateException if the connector is running
+	 */
+	public synchronized void setReceiverPacketSize(int size) {
+		if (running)
+			throw new IllegalStateException("Packet size cannot be changed while the connector is running");
+		this.receiverPacketSize = size;
+	}
+
+	public int getReceiverPacketSize() {
+		return receiverPacketSize;
+	}
+
+	/**
+	 * Sets the maximum number of messages in the outgoing queue.
+	 * 
+	 * Messages sent while the queue is full are handled according to the
+	 * {@link #setOverflowPolicy(OverflowPolicy) overflow policy}. This method
+	 * must be called before the connector is started.
+	 * 
+	 * @param capacity the capacity (default {@link Integer#MAX_VALUE})
+	 * @throws IllegalStateException if the connector is running
+	 */
+	public synchronized void setOutgoingCapacity(int capacity) {
+		if (running)
+			throw new IllegalStateException("Capacity cannot be changed while the connector is running");
+		outgoing.setCapacity(capacity);
+	}
+
+	public int getOutgoingCapacity() {
+		return outgoing.getCapacity();
+	}
+
+	/**
+	 * Sets the queue to buffer outgoing messages in.
+	 * 
+	 * By default, messages are buffered in a {@link LinkedBlockingQueue}. A
+	 * {@link RingBufferQueue} avoids the lock and the node allocation per
+	 * message at the expense of a fixed capacity. Messages queued already
+	 * are moved to the new queue as far as it has room for them. This method
+	 * must be called before the connector is started.
+	 * 
+	 * @param queue the queue
+	 * @throws IllegalStateException if the connector is running
+	 */
+	public synchronized void setOutgoingQueue(BlockingQueue<RawData> queue) {
+		if (running)
+			throw new IllegalStateException("Queue cannot be changed while the connector is running");
+		outgoing.setQueue(queue);
+	}
+
+	/**
+	 * Gets the number of messages currently waiting in the outgoing queue.
+	 * 
+	 * @return the queue depth
+	 */
+	public int getOutgoingQueueSize() {
+		return outgoing.size();
+	}
+
+	/**
+	 * Sets the policy to apply to messages sent while the outgoing queue is full.
+	 * 
+	 * Messages sent on the selector thread, i.e. by the receiver while it
+	 * handles a received message, never block. With the policy
+	 * {@link OverflowPolicy#BLOCK}, they are dropped if the queue is full,
+	 * as with {@link OverflowPolicy#DROP_NEWEST}.
+	 * 
+	 * @param policy the policy (default {@link OverflowPolicy#BLOCK})
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		outgoing.setOverflowPolicy(policy);
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return outgoing.getOverflowPolicy();
+	}
+
+	/**
+	 * Sets the handler for messages rejected according to the
+	 * {@link OverflowPolicy#REJECT} policy.
+	 * 
+	 * @param handler the handler or <code>null</code> to make sending of
+	 *            rejected messages fail with an {@link IllegalStateException}
+	 */
+	public void setRejectedMessageHandler(RejectedMessageHandler handler) {
+		outgoing.setRejectedMessageHandler(handler);
+	}
+
+	public RejectedMessageHandler getRejectedMessageHandler() {
+		return outgoing.getRejectedMessageHandler();
+	}
+
+	/**
+	 * Sets the handler for queued messages that are discarded because their
+	 * {@link RawData#setSendDeadline(long) send deadline} has passed.
+	 * 
+	 * @param handler the handler or <code>null</code> to only count them
+	 */
+	public void setExpiredMessageHandler(ExpiredMessageHandler handler) {
+		outgoing.setExpiredMessageHandler(handler);
+	}
+
+	public ExpiredMessageHandler getExpiredMessageHandler() {
+		return outgoing.getExpiredMessageHandler();
+	}
+
+	/**
+	 * Sets a pool of buffers to copy received datagrams into.
+	 * 
+	 * If set, received datagrams are delivered as {@link PooledRawData} backed
+	 * by slabs leased from the pool instead of freshly allocated arrays. The
+	 * registered {@link RawDataChannel} must {@link RawData#release() release}
+	 * each message when done with it.
+	 * 
+	 * @param pool the pool or <code>null</code> to copy into freshly allocated arrays
+	 */
+	public void setReceiveBufferPool(BufferPool pool) {
+		this.receiveBufferPool = pool;
+	}
+
+	public BufferPool getReceiveBufferPool() {
+		return receiveBufferPool;
+	}
+}
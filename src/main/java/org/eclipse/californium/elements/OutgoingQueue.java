@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The outgoing queue of a connector together with the policy applied when it
+ * is full and the handlers for messages that are rejected or expire.
+ * 
+ * Connectors queue the messages sent by the application via
+ * {@link #add(RawData)} and take them in their sender threads, reporting
+ * those past their send deadline via {@link #expire(RawData)}. The queue
+ * counts the messages in the connector's {@link ConnectorMetrics} and
+ * notifies their {@link SendCallback}s if they are not sent.
+ */
+class OutgoingQueue {
+
+	/** The logger of the connector. */
+	private final Logger logger;
+
+	/** The name of the connector in log messages. */
+	private final String name;
+
+	private final InetSocketAddress address;
+
+	private final ConnectorMetrics metrics;
+
+	private volatile BlockingQueue<RawData> queue;
+
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private volatile RejectedMessageHandler rejectedMessageHandler;
+	private volatile ExpiredMessageHandler expiredMessageHandler;
+
+	/**
+	 * Creates an unbounded queue.
+	 * 
+	 * @param logger the logger of the connector
+	 * @param name the name of the connector in log messages
+	 * @param address the address of the connector in log messages
+	 * @param metrics the metrics of the connector
+	 */
+	OutgoingQueue(Logger logger, String name, InetSocketAddress address, ConnectorMetrics metrics) {
+		this.logger = logger;
+		this.name = name;
+		this.address = address;
+		this.metrics = metrics;
+		// unbounded unless restricted by setCapacity()
+		this.queue = new LinkedBlockingQueue<RawData>();
+		metrics.setOutgoingQueue(queue);
+	}
+
+	/**
+	 * Adds a message to the queue according to the overflow policy.
+	 * 
+	 * @param msg the message
+	 * @throws IllegalStateException if the message is rejected and there is
+	 *             no {@link RejectedMessageHandler}
+	 */
+	void add(RawData msg) {
+		add(msg, true);
+	}
+
+	/**
+	 * Adds a message to the queue according to the overflow policy.
+	 * 
+	 * A thread that takes messages from the queue itself must not wait for
+	 * room in it. If such a thread sends a message while the queue is full
+	 * and the policy is {@link OverflowPolicy#BLOCK}, the message is dropped
+	 * as with {@link OverflowPolicy#DROP_NEWEST} instead.
+	 * 
+	 * @param msg the message
+	 * @param mayBlock <code>false</code> if the calling thread must not block
+	 * @throws IllegalStateException if the message is rejected and there is
+	 *             no {@link RejectedMessageHandler}
+	 */
+	void add(RawData msg, boolean mayBlock) {
+		metrics.queued(msg);
+		OverflowPolicy policy = overflowPolicy;
+		if (policy == OverflowPolicy.BLOCK && !mayBlock)
+			policy = OverflowPolicy.DROP_NEWEST;
+		int dropped = policy.enqueue(queue, msg);
+		if (dropped > 0)
+			overflow(msg, dropped, policy);
+	}
+
+	RawData take() throws InterruptedException {
+		return queue.take();
+	}
+
+	RawData poll() {
+		return queue.poll();
+	}
+
+	int drainTo(Collection<? super RawData> c, int maxElements) {
+		return queue.drainTo(c, maxElements);
+	}
+
+	int size() {
+		return queue.size();
+	}
+
+	boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Discards the messages still queued when the connector stops.
+	 */
+	void discard() {
+		List<RawData> discarded = new ArrayList<RawData>(queue.size());
+		queue.drainTo(discarded);
+		if (!discarded.isEmpty()) {
+			IOException cause = new IOException("Connector has been stopped");
+			for (int i = 0; i < discarded.size(); i++) {
+				discarded.get(i).notifyFailed(cause);
+			}
+		}
+	}
+
+	/**
+	 * Handles a queued message discarded because its send deadline has passed.
+	 * 
+	 * @param msg the expired message
+	 */
+	void expire(RawData msg) {
+		metrics.expired();
+		if (logger.isLoggable(Level.FINER)) {
+			logger.log(Level.FINER, "{0} ({1}) discards message to {2}, send deadline has passed",
+					new Object[]{name, address, msg.getInetSocketAddress()});
+		}
+		ExpiredMessageHandler handler = expiredMessageHandler;
+		if (handler != null) {
+			try {
+				handler.expired(msg);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Expired message handler failed", e);
+			}
+		}
+		if (msg.getSendCallback() != null)
+			msg.notifyFailed(new TimeoutException("Send deadline has passed"));
+	}
+
+	/**
+	 * Handles messages dropped because the queue is full.
+	 * 
+	 * @param msg the message sent
+	 * @param dropped the number of messages dropped
+	 * @param policy the policy that has been applied
+	 */
+	private void overflow(RawData msg, int dropped, OverflowPolicy policy) {
+		metrics.dropped(dropped);
+		if (policy == OverflowPolicy.REJECT) {
+			RejectedMessageHandler handler = rejectedMessageHandler;
+			// a message that is not accepted by send is not notified
+			if (handler == null)
+				throw new IllegalStateException("Outgoing queue is full");
+			if (msg.getSendCallback() != null)
+				msg.notifyFailed(new IllegalStateException("Outgoing queue is full"));
+			handler.rejected(msg);
+		} else if (policy == OverflowPolicy.BLOCK) {
+			// only an interrupt ends the wait without queuing the message
+			if (msg.getSendCallback() != null)
+				msg.notifyFailed(new InterruptedIOException("Interrupted while waiting for room in the outgoing queue"));
+			logger.log(Level.FINE, "{0} ({1}) dropped message, sending thread has been interrupted",
+					new Object[]{name, address});
+		} else {
+			// DROP_OLDEST has notified the messages it has evicted already
+			if (policy == OverflowPolicy.DROP_NEWEST && msg.getSendCallback() != null)
+				msg.notifyFailed(new IllegalStateException("Outgoing queue is full"));
+			logger.log(Level.FINE, "{0} ({1}) dropped {2} messages, outgoing queue is full",
+					new Object[]{name, address, dropped});
+		}
+	}
+
+	/**
+	 * Replaces the queue. Messages queued already are moved to the new queue
+	 * as far as it has room for them.
+	 * 
+	 * @param queue the new queue
+	 */
+	void setQueue(BlockingQueue<RawData> queue) {
+		if (queue == null)
+			throw new NullPointerException();
+		this.queue.drainTo(queue, queue.remainingCapacity());
+		this.queue = queue;
+		metrics.setOutgoingQueue(queue);
+	}
+
+	BlockingQueue<RawData> getQueue() {
+		return queue;
+	}
+
+	/**
+	 * Replaces the queue by a {@link LinkedBlockingQueue} of the given
+	 * capacity.
+	 * 
+	 * @param capacity the capacity
+	 */
+	void setCapacity(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		setQueue(new LinkedBlockingQueue<RawData>(capacity));
+	}
+
+	int getCapacity() {
+		BlockingQueue<RawData> current = queue;
+		return current.size() + current.remainingCapacity();
+	}
+
+	void setOverflowPolicy(OverflowPolicy policy) {
+		if (policy == null)
+			throw new NullPointerException();
+		this.overflowPolicy = policy;
+	}
+
+	OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	void setRejectedMessageHandler(RejectedMessageHandler handler) {
+		this.rejectedMessageHandler = handler;
+	}
+
+	RejectedMessageHandler getRejectedMessageHandler() {
+		return rejectedMessageHandler;
+	}
+
+	void setExpiredMessageHandler(ExpiredMessageHandler handler) {
+		this.expiredMessageHandler = handler;
+	}
+
+	ExpiredMessageHandler getExpiredMessageHandler() {
+		return expiredMessageHandler;
+	}
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The policies a connector can apply when a message is sent while its
+ * bounded outgoing queue is full.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * The sending thread blocks until the queue has room for the message.
+	 * If the thread is interrupted while waiting, the message is dropped, its
+	 * {@link SendCallback} is notified with an
+	 * {@link java.io.InterruptedIOException} and the thread's interrupt
+	 * status is restored. A thread that takes the
+	 * messages from the queue itself, such as the selector thread of a NIO
+	 * connector, does not wait and drops the message as with
+	 * {@link #DROP_NEWEST}.
+	 */
+	BLOCK {
+		@Override
+		int enqueue(BlockingQueue<RawData> queue, RawData msg) {
+			try {
+				queue.put(msg);
+				return 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return 1;
+			}
+		}
+	},
+
+	/**
+	 * The message is dropped silently.
+	 */
+	DROP_NEWEST {
+		@Override
+		int enqueue(BlockingQueue<RawData> queue, RawData msg) {
+			return queue.offer(msg) ? 0 : 1;
+		}
+	},
+
+	/**
+	 * The oldest queued messages are dropped silently to make room for the
+	 * message. Their {@link SendCallback}s are notified on the sending
+	 * thread. A {@link PriorityLaneQueue} only drops the oldest message of
+	 * the message's own lane.
+	 */
+	DROP_OLDEST {
+		@Override
+		int enqueue(BlockingQueue<RawData> queue, RawData msg) {
+			if (queue instanceof PriorityLaneQueue) {
+				RawData oldest = ((PriorityLaneQueue) queue).offerEvictingOldest(msg);
+				if (oldest == null)
+					return 0;
+				if (oldest.getSendCallback() != null)
+					oldest.notifyFailed(new IllegalStateException("Outgoing queue is full"));
+				return 1;
+			}
+			int dropped = 0;
+			while (!queue.offer(msg)) {
+				RawData oldest = queue.poll();
+				if (oldest != null) {
+					dropped++;
+					if (oldest.getSendCallback() != null)
+						oldest.notifyFailed(new IllegalStateException("Outgoing queue is full"));
+				}
+			}
+			return dropped;
+		}
+	},
+
+	/**
+	 * The message is not queued and handed to the connector's
+	 * {@link RejectedMessageHandler} instead. If the connector has no
+	 * handler, sending fails with an {@link IllegalStateException} and the
+	 * message's {@link SendCallback} is not notified.
+	 */
+	REJECT {
+		@Override
+		int enqueue(BlockingQueue<RawData> queue, RawData msg) {
+			return queue.offer(msg) ? 0 : 1;
+		}
+	};
+
+	/**
+	 * Adds a message to a queue according to this policy.
+	 * 
+	 * @param queue the queue
+	 * @param msg the message
+	 * @return the number of messages dropped. This is either the message
+	 *         itself, in which case it has not been queued, or queued
+	 *         messages that have been dropped in its favor.
+	 */
+	abstract int enqueue(BlockingQueue<RawData> queue, RawData msg);
+}
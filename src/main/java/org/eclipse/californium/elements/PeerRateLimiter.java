@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of datagrams accepted from each peer.
+ * 
+ * Every peer, identified by IP address and port, has a token bucket that
+ * holds up to <code>burst</code> tokens and is refilled at <code>rate</code>
+ * tokens per second. A datagram is admitted if it can take a token, and
+ * rejected otherwise. Connectors consult the limiter right after reading a
+ * datagram from the socket, so rejected datagrams are neither copied nor
+ * forwarded to the {@link RawDataChannel}.
+ * 
+ * The buckets are kept in a table of bounded size. If the table is full,
+ * the bucket of the peer that has been idle longest is evicted. The table
+ * is split into independently locked stripes, and looking up a known peer
+ * does not allocate any objects.
+ * 
+ * Note that peers spoofing many different source addresses each get a full
+ * bucket. The limiter protects against misbehaving devices, not against
+ * distributed floods.
+ */
+public class PeerRateLimiter {
+
+	private static final int STRIPES = 16;
+
+	/** The time between two tokens in nanoseconds. */
+	private final long interval;
+
+	/** The time a full bucket is ahead of an empty one in nanoseconds. */
+	private final long tolerance;
+
+	/** The buckets, each stripe in access order. */
+	private final Map<PeerKey, Bucket>[] stripes;
+
+	/** The key used to look up a peer, one per thread. */
+	private final ThreadLocal<PeerKey> probe = new ThreadLocal<PeerKey>() {
+		@Override
+		protected PeerKey initialValue() {
+			return new PeerKey();
+		}
+	};
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Creates a limiter.
+	 * 
+	 * @param rate the number of datagrams per second admitted per peer
+	 * @param burst the number of datagrams a peer may send at once
+	 * @param maxPeers the maximum number of peers to keep track of
+	 * @throws IllegalArgumentException if any of the values is not positive
+	 */
+	public PeerRateLimiter(double rate, int burst, int maxPeers) {
+		if (rate <= 0 || burst <= 0 || maxPeers <= 0)
+			throw new IllegalArgumentException("Rate, burst and maximum number of peers must be positive");
+		this.interval = Math.max(1, (long) (1000000000L / rate));
+		this.tolerance = interval * (burst - 1);
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Map<PeerKey, Bucket>[] array = new Map[STRIPES];
+		this.stripes = array;
+		final int capacity = Math.max(1, maxPeers / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new LinkedHashMap<PeerKey, Bucket>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<PeerKey, Bucket> eldest) {
+					return size() > capacity;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Checks whether a datagram from a peer is admitted and takes a token if so.
+	 * 
+	 * @param address the peer's IP address
+	 * @param port the peer's port
+	 * @return <code>true</code> if the datagram is admitted
+	 */
+	public boolean tryAcquire(InetAddress address, int port) {
+		PeerKey key = probe.get();
+		key.set(address, port);
+		Map<PeerKey, Bucket> stripe = stripes[(key.hash & Integer.MAX_VALUE) % STRIPES];
+		long now = System.nanoTime();
+		boolean admit;
+		synchronized (stripe) {
+			Bucket bucket = stripe.get(key);
+			if (bucket == null) {
+				bucket = new Bucket(now);
+				stripe.put(new PeerKey(address, port), bucket);
+			}
+			admit = bucket.take(now);
+		}
+		key.set(null, 0);
+		if (admit) {
+			admitted.incrementAndGet();
+		} else {
+			rejected.incrementAndGet();
+		}
+		return admit;
+	}
+
+	/**
+	 * Checks whether a datagram from a peer is admitted and takes a token if so.
+	 * 
+	 * @param peer the peer's address
+	 * @return <code>true</code> if the datagram is admitted
+	 */
+	public boolean tryAcquire(InetSocketAddress peer) {
+		return tryAcquire(peer.getAddress(), peer.getPort());
+	}
+
+	/**
+	 * Gets the number of datagrams admitted so far.
+	 * 
+	 * @return the number of admitted datagrams
+	 */
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	/**
+	 * Gets the number of datagrams rejected so far.
+	 * 
+	 * @return the number of rejected datagrams
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Gets the number of peers currently kept track of.
+	 * 
+	 * @return the number of peers
+	 */
+	public int getPeerCount() {
+		int count = 0;
+		for (Map<PeerKey, Bucket> stripe : stripes) {
+			synchronized (stripe) {
+				count += stripe.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The token bucket of a peer.
+	 * 
+	 * Instead of the number of tokens, the bucket keeps the time at which it
+	 * will be full again (generic cell rate algorithm). Taking a token moves
+	 * this time by one interval into the future, and a token is available as
+	 * long as the time is no more than the tolerance ahead.
+	 */
+	private class Bucket {
+
+		private long full;
+
+		private Bucket(long now) {
+			this.full = now;
+		}
+
+		private boolean take(long now) {
+			long start = full - now < 0 ? now : full;
+			if (start - now > tolerance)
+				return false;
+			full = start + interval;
+			return true;
+		}
+	}
+
+	/**
+	 * The address and port of a peer. The key used for lookups is reused,
+	 * the keys stored in the table are never modified.
+	 */
+	private static final class PeerKey {
+
+		private InetAddress address;
+		private int port;
+		private int hash;
+
+		private PeerKey() { }
+
+		private PeerKey(InetAddress address, int port) {
+			set(address, port);
+		}
+
+		private void set(InetAddress address, int port) {
+			this.address = address;
+			this.port = port;
+			if (address != null) {
+				int h = address.hashCode() * 31 + port;
+				this.hash = h ^ (h >>> 16);
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof PeerKey))
+				return false;
+			PeerKey other = (PeerKey) obj;
+			return port == other.port && address.equals(other.address);
+		}
+	}
+}
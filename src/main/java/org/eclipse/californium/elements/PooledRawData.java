@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link RawData} backed by a slab leased from a {@link BufferPool}.
+ * 
+ * The message is reference counted. It is created with a reference count of one,
+ * which is owned by the {@link RawDataChannel} the message is delivered to.
+ * Additional users can {@link #retain()} the message, and every user has to
+ * {@link #release()} it when done. Once the count drops to zero, the slab is
+ * returned to the pool and the message must not be accessed anymore.
+ * 
+ * Note that the public {@link #bytes} field refers to the complete slab. Only
+ * the first {@link #getSize()} bytes belong to the message. Use
+ * {@link #getByteBuffer()} to access the message without copying it.
+ */
+public class PooledRawData extends RawData {
+
+	/** The pool the slab is returned to. */
+	private final BufferPool pool;
+
+	/** The number of bytes of the slab used by the message. */
+	private final int length;
+
+	/** The number of users of this message. */
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	/**
+	 * Instantiates a new pooled raw data.
+	 * 
+	 * @param pool the pool the slab has been leased from
+	 * @param slab the slab containing the message
+	 * @param length the number of bytes of the slab used by the message
+	 * @param address the IP address and port the data has been received from
+	 * @throws NullPointerException if any of the given parameters is <code>null</code>
+	 * @throws IllegalArgumentException if length exceeds the slab
+	 */
+	public PooledRawData(BufferPool pool, byte[] slab, int length, InetSocketAddress address) {
+		super(slab, address);
+		if (pool == null)
+			throw new NullPointerException("Pool must not be null");
+		if (length < 0 || length > slab.length)
+			throw new IllegalArgumentException("Length must be within the slab");
+		this.pool = pool;
+		this.length = length;
+	}
+
+	@Override
+	public byte[] getBytes() {
+		return Arrays.copyOf(bytes, length);
+	}
+
+	@Override
+	public int getSize() {
+		return length;
+	}
+
+	@Override
+	public RawData retain() {
+		int count;
+		do {
+			count = references.get();
+			if (count <= 0)
+				throw new IllegalStateException("Message has already been released");
+		} while (!references.compareAndSet(count, count + 1));
+		return this;
+	}
+
+	@Override
+	public void release() {
+		int count = references.decrementAndGet();
+		if (count == 0) {
+			pool.release(bytes);
+		} else if (count < 0) {
+			references.incrementAndGet();
+			throw new IllegalStateException("Message has already been released");
+		}
+	}
+
+	/**
+	 * Gets the number of users currently holding this message.
+	 * 
+	 * @return the reference count
+	 */
+	public int getReferenceCount() {
+		return references.get();
+	}
+}
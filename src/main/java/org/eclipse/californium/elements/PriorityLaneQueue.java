@@ -0,0 +1,426 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded {@link BlockingQueue} of messages with one lane per priority.
+ * 
+ * Messages are put into the lane of their {@link RawData#getPriority()
+ * priority}, priorities beyond the last lane end up in the last lane. Each
+ * lane has a capacity of its own, so a burst of bulk messages cannot keep
+ * control messages from being queued. The queue can be used as outgoing
+ * queue of a connector, e.g. by means of
+ * {@link UDPConnector#setOutgoingQueue(BlockingQueue)}, and is then drained by
+ * the sender threads according to its scheduling:
+ * <ul>
+ * <li><em>strict</em>: a message is only taken from a lane if all lanes of
+ * higher priority are empty. Lower lanes may starve.</li>
+ * <li><em>weighted</em>: the lanes take turns, each lane may hand out as
+ * many messages in a row as its weight permits before the next non-empty
+ * lane takes over. Every lane gets its share even under load.</li>
+ * </ul>
+ * The order of messages within a lane is preserved. The iterator returns a
+ * snapshot of the queued messages, lane by lane, and does not support removal.
+ * 
+ * With {@link OverflowPolicy#DROP_OLDEST}, a message only evicts the oldest
+ * message of its own lane, see {@link #offerEvictingOldest(RawData)}.
+ */
+public class PriorityLaneQueue extends AbstractQueue<RawData> implements BlockingQueue<RawData> {
+
+	/** The lanes, index 0 has the highest priority. */
+	private final ArrayDeque<RawData>[] lanes;
+
+	/** The weights of the lanes, or <code>null</code> for strict scheduling. */
+	private final int[] weights;
+
+	/** The capacity of each lane. */
+	private final int laneCapacity;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	/** Signaled when a lane has room again, one condition per lane. */
+	private final Condition[] notFull;
+
+	/** The total number of queued messages. */
+	private int count;
+
+	/** The lane currently served by weighted scheduling. */
+	private int current;
+
+	/** The number of messages the current lane may still hand out in a row. */
+	private int credit;
+
+	/**
+	 * Creates a queue with strict priority scheduling.
+	 * 
+	 * @param laneCount the number of lanes
+	 * @param laneCapacity the maximum number of messages per lane
+	 * @throws IllegalArgumentException if any value is not positive
+	 */
+	public PriorityLaneQueue(int laneCount, int laneCapacity) {
+		this(laneCount, laneCapacity, null);
+	}
+
+	/**
+	 * Creates a queue with weighted scheduling.
+	 * 
+	 * @param weights the weights of the lanes, highest priority first. The
+	 *            number of weights determines the number of lanes.
+	 * @param laneCapacity the maximum number of messages per lane
+	 * @throws IllegalArgumentException if any value is not positive
+	 */
+	public PriorityLaneQueue(int[] weights, int laneCapacity) {
+		this(weights.length, laneCapacity, weights.clone());
+		for (int weight : weights) {
+			if (weight <= 0)
+				throw new IllegalArgumentException("Weights must be positive");
+		}
+		this.credit = weights[0];
+	}
+
+	private PriorityLaneQueue(int laneCount, int laneCapacity, int[] weights) {
+		if (laneCount <= 0 || laneCapacity <= 0)
+			throw new IllegalArgumentException("Lane count and capacity must be positive");
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		ArrayDeque<RawData>[] array = new ArrayDeque[laneCount];
+		this.lanes = array;
+		this.notFull = new Condition[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			lanes[i] = new ArrayDeque<RawData>();
+			notFull[i] = lock.newCondition();
+		}
+		this.laneCapacity = laneCapacity;
+		this.weights = weights;
+	}
+
+	/**
+	 * Gets the index of the lane of a message.
+	 * 
+	 * @param msg the message
+	 * @return the index of the lane
+	 */
+	private int laneOf(RawData msg) {
+		return Math.min(msg.getPriority(), lanes.length - 1);
+	}
+
+	/**
+	 * Adds a message to its lane. Must be called with the lock held.
+	 */
+	private boolean enqueue(RawData msg) {
+		ArrayDeque<RawData> lane = lanes[laneOf(msg)];
+		if (lane.size() >= laneCapacity)
+			return false;
+		lane.addLast(msg);
+		count++;
+		notEmpty.signal();
+		return true;
+	}
+
+	/**
+	 * Removes the next message according to the scheduling. Must be called
+	 * with the lock held and the queue not being empty.
+	 */
+	private RawData dequeue() {
+		int i;
+		if (weights == null) {
+			i = 0;
+			while (lanes[i].isEmpty())
+				i++;
+		} else {
+			if (credit == 0 || lanes[current].isEmpty()) {
+				do {
+					current = (current + 1) % lanes.length;
+				} while (lanes[current].isEmpty());
+				credit = weights[current];
+			}
+			i = current;
+			credit--;
+		}
+		RawData msg = lanes[i].pollFirst();
+		count--;
+		// only a message of this lane can make use of the room
+		notFull[i].signal();
+		return msg;
+	}
+
+	@Override
+	public boolean offer(RawData msg) {
+		if (msg == null)
+			throw new NullPointerException();
+		lock.lock();
+		try {
+			return enqueue(msg);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a message to its lane, evicting the oldest message of the lane if
+	 * the lane is full. Messages of other lanes are never evicted, so a burst
+	 * of bulk messages cannot drop queued control messages.
+	 * 
+	 * @param msg the message
+	 * @return the evicted message, or <code>null</code> if the lane had room
+	 */
+	public RawData offerEvictingOldest(RawData msg) {
+		if (msg == null)
+			throw new NullPointerException();
+		lock.lock();
+		try {
+			RawData evicted = null;
+			ArrayDeque<RawData> lane = lanes[laneOf(msg)];
+			if (lane.size() >= laneCapacity) {
+				evicted = lane.pollFirst();
+				count--;
+			}
+			enqueue(msg);
+			return evicted;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(RawData msg) throws InterruptedException {
+		if (msg == null)
+			throw new NullPointerException();
+		lock.lockInterruptibly();
+		try {
+			Condition laneNotFull = notFull[laneOf(msg)];
+			while (!enqueue(msg))
+				laneNotFull.await();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(RawData msg, long timeout, TimeUnit unit) throws InterruptedException {
+		if (msg == null)
+			throw new NullPointerException();
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			Condition laneNotFull = notFull[laneOf(msg)];
+			while (!enqueue(msg)) {
+				if (nanos <= 0)
+					return false;
+				nanos = laneNotFull.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public RawData poll() {
+		lock.lock();
+		try {
+			return count == 0 ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public RawData take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0)
+				notEmpty.await();
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public RawData poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the message at the head of the highest priority non-empty lane.
+	 * With weighted scheduling, this is not necessarily the message
+	 * {@link #poll()} returns next.
+	 */
+	@Override
+	public RawData peek() {
+		lock.lock();
+		try {
+			for (ArrayDeque<RawData> lane : lanes) {
+				if (!lane.isEmpty())
+					return lane.peekFirst();
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super RawData> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super RawData> c, int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		lock.lock();
+		try {
+			int n = 0;
+			while (n < maxElements && count > 0) {
+				c.add(dequeue());
+				n++;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			for (ArrayDeque<RawData> lane : lanes) {
+				lane.clear();
+			}
+			count = 0;
+			for (Condition condition : notFull) {
+				condition.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the remaining capacity of all lanes together. Note that a message
+	 * can only be queued if its own lane has room.
+	 */
+	@Override
+	public int remainingCapacity() {
+		return lanes.length * laneCapacity - size();
+	}
+
+	/**
+	 * Gets the number of messages queued in a lane.
+	 * 
+	 * @param lane the lane, 0 for the highest priority
+	 * @return the number of messages
+	 */
+	public int getLaneSize(int lane) {
+		lock.lock();
+		try {
+			return lanes[lane].size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of messages queued in each lane.
+	 * 
+	 * @return the numbers of messages, highest priority first
+	 */
+	public int[] getLaneSizes() {
+		lock.lock();
+		try {
+			int[] sizes = new int[lanes.length];
+			for (int i = 0; i < lanes.length; i++) {
+				sizes[i] = lanes[i].size();
+			}
+			return sizes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	public int getLaneCapacity() {
+		return laneCapacity;
+	}
+
+	/**
+	 * Checks whether the lanes are served with weighted scheduling.
+	 * 
+	 * @return <code>true</code> for weighted, <code>false</code> for strict
+	 *         scheduling
+	 */
+	public boolean isWeighted() {
+		return weights != null;
+	}
+
+	@Override
+	public Iterator<RawData> iterator() {
+		List<RawData> snapshot;
+		lock.lock();
+		try {
+			snapshot = new ArrayList<RawData>(count);
+			for (ArrayDeque<RawData> lane : lanes) {
+				snapshot.addAll(lane);
+			}
+		} finally {
+			lock.unlock();
+		}
+		final Iterator<RawData> it = snapshot.iterator();
+		return new Iterator<RawData>() {
+			public boolean hasNext() { return it.hasNext(); }
+			public RawData next() { return it.next(); }
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+}
@@ -19,8 +19,13 @@ package org.eclipse.californium.elements;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.security.Principal;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A container object for the data received or sent via a <code>Connector</code>.
@@ -35,10 +40,33 @@ import java.util.Arrays;
  * 
  * A message received from a client via the network may also optionally contain the
  * authenticated sender's identity as a <code>java.security.Principal</code> object.
+ * 
+ * Connectors may deliver messages backed by pooled buffers (see {@link PooledRawData}).
+ * A {@link RawDataChannel} should therefore {@link #release()} a received message
+ * once it is done with it. For plain messages, releasing has no effect.
  */
 public class RawData {
 
-	/** The raw message. */
+	private static final Logger LOGGER = Logger.getLogger(RawData.class.getName());
+
+	/** The priority of control messages such as ACKs and RSTs. */
+	public static final int PRIORITY_HIGH = 0;
+	
+	/** The default priority. */
+	public static final int PRIORITY_NORMAL = 1;
+	
+	/** The priority of bulk transfers such as notifications. */
+	public static final int PRIORITY_LOW = 2;
+
+	/**
+	 * The raw message.
+	 * 
+	 * Only for plain messages, this array holds exactly the message. A
+	 * {@link PooledRawData} holds the message in the first {@link #getSize()}
+	 * bytes of a slab shared with the pool, and the array of a
+	 * {@link SegmentedRawData} is empty. Use {@link #getBytes()},
+	 * {@link #getByteBuffer()} or {@link #writeTo(ByteBuffer)} instead.
+	 */
 	public final byte[] bytes;
 	
 	/** The source/destination address. */
@@ -49,6 +77,25 @@ public class RawData {
 	
 	private Principal senderIdentity;
 	
+	/** The priority for sending, lower values are sent first */
+	private int priority = PRIORITY_NORMAL;
+	
+	/** The {@link System#nanoTime()} after which this message is not sent anymore */
+	private long sendDeadline;
+	
+	/** Indicates if this message has a send deadline */
+	private boolean sendDeadlineSet;
+	
+	/** The callback to notify once this message has been sent */
+	private volatile SendCallback sendCallback;
+	
+	/** Clears the callback atomically, so that it is notified at most once. */
+	private static final AtomicReferenceFieldUpdater<RawData, SendCallback> SEND_CALLBACK =
+			AtomicReferenceFieldUpdater.newUpdater(RawData.class, SendCallback.class, "sendCallback");
+	
+	/** The time this message has been queued for sending, see {@link ConnectorMetrics}. */
+	long queuedNanos;
+	
 	/**
 	 * Instantiates a new raw data.
 	 *
@@ -189,6 +236,63 @@ public class RawData {
 	public int getSize() {
 		return bytes.length;
 	}
+	
+	/**
+	 * Gets the raw message without copying it.
+	 *
+	 * @return a read-only buffer containing the raw message bytes
+	 */
+	public ByteBuffer getByteBuffer() {
+		return ByteBuffer.wrap(bytes, 0, getSize()).slice().asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Copies the raw message into a buffer.
+	 * 
+	 * Connectors use this method to write a message into their send buffer
+	 * without concatenating it into an intermediate array first, see
+	 * {@link SegmentedRawData}.
+	 *
+	 * @param buffer the buffer to copy the message to
+	 * @throws java.nio.BufferOverflowException if the buffer has not enough room
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		buffer.put(bytes, 0, getSize());
+	}
+	
+	/**
+	 * Gets the array holding the raw message in its first {@link #getSize()}
+	 * bytes, so that connectors can hand it to the socket without copying.
+	 * 
+	 * @return the array, or <code>null</code> if the message is not held by
+	 *         a single array
+	 */
+	byte[] array() {
+		return bytes;
+	}
+	
+	/**
+	 * Indicates that an additional user holds on to this message.
+	 * 
+	 * Every call must be matched by a call to {@link #release()}.
+	 * For plain messages, this method has no effect.
+	 *
+	 * @return this message
+	 */
+	public RawData retain() {
+		return this;
+	}
+	
+	/**
+	 * Indicates that a user of this message is done with it.
+	 * 
+	 * Messages backed by pooled buffers return their buffer to the pool
+	 * once they have been released by all their users, and must not be
+	 * accessed anymore afterwards. For plain messages, this method has
+	 * no effect.
+	 */
+	public void release() {
+	}
 
 	/**
 	 * Gets the address.
@@ -268,4 +372,126 @@ public class RawData {
 	public Principal getSenderIdentity() {
 		return senderIdentity;
 	}
+	
+	/**
+	 * Gets the priority of this message for sending.
+	 *
+	 * @return the priority, lower values are more urgent
+	 */
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * Sets the priority of this message for sending.
+	 * 
+	 * The priority is only a hint. It takes effect if the connector's outgoing
+	 * queue is a {@link PriorityLaneQueue}, and is ignored otherwise. It must
+	 * not be changed once the message has been sent.
+	 *
+	 * @param priority the priority, e.g. {@link #PRIORITY_HIGH}
+	 * @throws IllegalArgumentException if the priority is negative
+	 */
+	public void setPriority(int priority) {
+		if (priority < 0)
+			throw new IllegalArgumentException("Priority must not be negative");
+		this.priority = priority;
+	}
+	
+	/**
+	 * Sets the time after which this message is not worth sending anymore.
+	 * 
+	 * A connector discards a message that is still queued when its deadline
+	 * has passed, instead of sending it. It must not be changed once the
+	 * message has been sent.
+	 *
+	 * @param deadline the deadline as a {@link System#nanoTime()} value
+	 */
+	public void setSendDeadline(long deadline) {
+		this.sendDeadline = deadline;
+		this.sendDeadlineSet = true;
+	}
+	
+	/**
+	 * Sets the send deadline relative to the current time.
+	 *
+	 * @param timeout the time in milliseconds this message may stay queued
+	 * @see #setSendDeadline(long)
+	 */
+	public void setSendTimeout(long timeout) {
+		setSendDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+	}
+	
+	/**
+	 * Gets the send deadline.
+	 *
+	 * @return the deadline as a {@link System#nanoTime()} value, only
+	 *         meaningful if {@link #hasSendDeadline()} returns <code>true</code>
+	 */
+	public long getSendDeadline() {
+		return sendDeadline;
+	}
+	
+	public boolean hasSendDeadline() {
+		return sendDeadlineSet;
+	}
+	
+	/**
+	 * Checks if the send deadline of this message has passed.
+	 *
+	 * @param now the current {@link System#nanoTime()}
+	 * @return <code>true</code> if this message has a deadline before now
+	 */
+	public boolean isExpired(long now) {
+		return sendDeadlineSet && now - sendDeadline > 0;
+	}
+	
+	/**
+	 * Sets the callback to notify once a connector has sent this message or
+	 * failed to do so. Only an {@link AsyncConnector} notifies the callback.
+	 * 
+	 * The callback is notified at most once and is removed from this
+	 * message when it is notified. It must not be changed once the message
+	 * has been sent.
+	 *
+	 * @param callback the callback or <code>null</code>
+	 */
+	public void setSendCallback(SendCallback callback) {
+		this.sendCallback = callback;
+	}
+	
+	public SendCallback getSendCallback() {
+		return sendCallback;
+	}
+	
+	/**
+	 * Notifies the send callback, if any, that this message has been sent.
+	 */
+	void notifySent() {
+		SendCallback callback = sendCallback == null ? null : SEND_CALLBACK.getAndSet(this, null);
+		if (callback != null) {
+			try {
+				callback.sent(this);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Send callback failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Notifies the send callback, if any, that this message has not been
+	 * sent.
+	 *
+	 * @param cause the reason
+	 */
+	void notifyFailed(Exception cause) {
+		SendCallback callback = sendCallback == null ? null : SEND_CALLBACK.getAndSet(this, null);
+		if (callback != null) {
+			try {
+				callback.failed(this, cause);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Send callback failed", e);
+			}
+		}
+	}
 }
@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+/**
+ * A handler for messages a connector refuses to send because its outgoing
+ * queue is full and its {@link OverflowPolicy} is
+ * {@link OverflowPolicy#REJECT}.
+ */
+public interface RejectedMessageHandler {
+
+	/**
+	 * Handles a message that has not been queued for sending.
+	 * 
+	 * This method is called on the thread that tried to send the message and
+	 * should return quickly.
+	 * 
+	 * @param msg the rejected message
+	 */
+	public void rejected(RawData msg);
+
+}
@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free {@link BlockingQueue} backed by a preallocated ring
+ * buffer.
+ * 
+ * Producers and consumers claim slots of the ring by means of a CAS on a
+ * sequence counter, so neither {@link #offer(Object)} nor {@link #poll()} take
+ * a lock or allocate memory. Each slot carries a sequence number telling
+ * whether it is ready to be written or read, which allows any number of
+ * producers and consumers to work on the ring concurrently. The queue can
+ * therefore be used as outgoing queue of connectors with several sender
+ * threads, e.g. by means of {@link UDPConnector#setOutgoingQueue(BlockingQueue)}.
+ * 
+ * Since there are no locks, there are no conditions to wait on either.
+ * Threads blocking in {@link #take()}, {@link #put(Object)} or their timed
+ * variants wait according to the queue's {@link WaitStrategy} and re-check the
+ * ring until they succeed.
+ * 
+ * The iterator of this queue is a best-effort snapshot of the queued elements
+ * and does not support removal.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+	/**
+	 * The strategies to wait for a ring buffer to become non-empty or
+	 * non-full.
+	 */
+	public enum WaitStrategy {
+
+		/**
+		 * Busy spin. Yields the lowest latency at the expense of occupying a
+		 * core per waiting thread. Only suitable if there are more cores than
+		 * waiting threads.
+		 */
+		SPIN,
+
+		/**
+		 * Yield the processor to other threads between attempts. Still keeps
+		 * a core busy if there is nothing else to run.
+		 */
+		YIELD,
+
+		/**
+		 * Spin a few times, then park the thread between attempts, doubling
+		 * the interval from 50 microseconds up to one millisecond. A thread
+		 * waiting on an idle queue thus wakes up about a thousand times per
+		 * second, and an element arriving at a queue that has been idle for a
+		 * while waits up to a millisecond for it.
+		 */
+		PARK
+	}
+
+	/** The number of attempts before a parking thread starts to park. */
+	private static final int SPINS_BEFORE_PARK = 100;
+
+	/** The interval a parking thread parks first. */
+	private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	/** The interval a parking thread parks at most. */
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final int mask;
+
+	private final AtomicReferenceArray<E> elements;
+
+	/**
+	 * The sequence of each slot. A slot at position p is ready to be written
+	 * if its sequence is p and ready to be read if its sequence is p + 1.
+	 */
+	private final AtomicLongArray sequences;
+
+	/** The position of the next slot to write. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** The position of the next slot to read. */
+	private final AtomicLong head = new AtomicLong();
+
+	private final WaitStrategy waitStrategy;
+
+	/**
+	 * Creates a queue parking waiting threads.
+	 * 
+	 * @param capacity the minimum capacity, rounded up to the next power of two
+	 *            and to at least two
+	 * @throws IllegalArgumentException if capacity is not positive or too large
+	 */
+	public RingBufferQueue(int capacity) {
+		this(capacity, WaitStrategy.PARK);
+	}
+
+	/**
+	 * Creates a queue.
+	 * 
+	 * @param capacity the minimum capacity, rounded up to the next power of two
+	 *            and to at least two
+	 * @param waitStrategy the strategy for threads waiting on the queue
+	 * @throws IllegalArgumentException if capacity is not positive or too large
+	 */
+	public RingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+		if (capacity <= 0 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+		if (waitStrategy == null)
+			throw new NullPointerException();
+		// with a single slot, a written slot would look ready to be written
+		// again, since its sequence p + 1 is the position of the next round
+		int size = Math.max(Integer.highestOneBit(capacity), 2);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.elements = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.waitStrategy = waitStrategy;
+	}
+
+	@Override
+	public boolean offer(E e) {
+		if (e == null)
+			throw new NullPointerException();
+		long position = tail.get();
+		for (;;) {
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					elements.lazySet(index, e);
+					// publish the element to consumers
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				// the slot has not been consumed a round ago, the ring is full
+				return false;
+			} else {
+				// another producer claimed the slot
+				position = tail.get();
+			}
+		}
+	}
+
+	@Override
+	public E poll() {
+		long position = head.get();
+		for (;;) {
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - (position + 1);
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					E e = elements.get(index);
+					elements.lazySet(index, null);
+					// hand the slot back to producers for the next round
+					sequences.lazySet(index, position + mask + 1);
+					return e;
+				}
+				position = head.get();
+			} else if (difference < 0) {
+				// the slot has not been written yet, the ring is empty
+				return null;
+			} else {
+				// another consumer claimed the slot
+				position = head.get();
+			}
+		}
+	}
+
+	@Override
+	public E peek() {
+		long position = head.get();
+		int index = (int) (position & mask);
+		if (sequences.get(index) == position + 1) {
+			return elements.get(index);
+		}
+		return null;
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		for (int attempt = 0; !offer(e); attempt++) {
+			idle(attempt);
+		}
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (int attempt = 0; !offer(e); attempt++) {
+			if (deadline - System.nanoTime() <= 0) {
+				return false;
+			}
+			idle(attempt);
+		}
+		return true;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		E e;
+		for (int attempt = 0; (e = poll()) == null; attempt++) {
+			idle(attempt);
+		}
+		return e;
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		E e;
+		for (int attempt = 0; (e = poll()) == null; attempt++) {
+			if (deadline - System.nanoTime() <= 0) {
+				return null;
+			}
+			idle(attempt);
+		}
+		return e;
+	}
+
+	/**
+	 * Waits according to the wait strategy before the next attempt.
+	 * 
+	 * @param attempt the number of failed attempts so far
+	 * @throws InterruptedException if the thread has been interrupted
+	 */
+	private void idle(int attempt) throws InterruptedException {
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		switch (waitStrategy) {
+		case YIELD:
+			Thread.yield();
+			break;
+		case PARK:
+			if (attempt >= SPINS_BEFORE_PARK) {
+				// back off exponentially, the shift is bounded to not overflow
+				int shift = Math.min(attempt - SPINS_BEFORE_PARK, 16);
+				LockSupport.parkNanos(this, Math.min(MIN_PARK_NANOS << shift, MAX_PARK_NANOS));
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		if (c == null)
+			throw new NullPointerException();
+		if (c == this)
+			throw new IllegalArgumentException();
+		int count = 0;
+		E e;
+		while (count < maxElements && (e = poll()) != null) {
+			c.add(e);
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public int size() {
+		// read head first so that the difference never gets negative
+		long h = head.get();
+		long size = tail.get() - h;
+		if (size < 0) {
+			return 0;
+		}
+		return (int) Math.min(size, mask + 1);
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return mask + 1 - size();
+	}
+
+	/**
+	 * Gets the number of slots of the ring.
+	 * 
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		long h = head.get();
+		long t = tail.get();
+		if (t <= h) {
+			return Collections.<E>emptyList().iterator();
+		}
+		List<E> snapshot = new ArrayList<E>((int) Math.min(t - h, mask + 1));
+		for (long position = h; position < t && position < h + mask + 1; position++) {
+			E e = elements.get((int) (position & mask));
+			if (e != null) {
+				snapshot.add(e);
+			}
+		}
+		return Collections.unmodifiableList(snapshot).iterator();
+	}
+}
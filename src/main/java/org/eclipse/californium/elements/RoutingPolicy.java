@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The policy of a {@link ConnectorGroup} that decides which of its
+ * connectors sends a message.
+ * 
+ * Implementations must be thread-safe, as messages may be sent and received
+ * by several threads at once. Besides the policies provided as nested
+ * classes, applications can plug in their own.
+ */
+public interface RoutingPolicy {
+
+	/**
+	 * Selects the connector to send a message.
+	 * 
+	 * @param msg the message
+	 * @param connectors the connectors of the group, never empty
+	 * @return the selected connector, one of <code>connectors</code>
+	 */
+	public Connector select(RawData msg, List<Connector> connectors);
+
+	/**
+	 * Notifies the policy about a message received by one of the connectors.
+	 * 
+	 * @param msg the message
+	 * @param connector the connector that has received the message
+	 */
+	public void received(RawData msg, Connector connector);
+
+	/**
+	 * Sends all messages to a peer via the connector that has received the
+	 * latest message from the peer. Peers that have not sent anything
+	 * (recently) are assigned to a connector by hashing their address.
+	 * 
+	 * This is the policy to use for servers bound to several ports, as a
+	 * client expects the response to come from the address it has sent the
+	 * request to. The receiving threads of the connectors do not contend
+	 * with each other, as the peers are only updated when a peer switches to
+	 * another connector. The number of peers remembered is bounded, arbitrary
+	 * peers are forgotten once it is exceeded. A forgotten peer is
+	 * remembered again with its next message.
+	 */
+	public static class Sticky implements RoutingPolicy {
+
+		/** The connectors of the latest peers. */
+		private final ConcurrentMap<InetSocketAddress, Connector> peers =
+				new ConcurrentHashMap<InetSocketAddress, Connector>();
+
+		/** The number of peers, counted separately as size() is not cheap. */
+		private final AtomicInteger peerCount = new AtomicInteger();
+
+		private final int maxPeers;
+
+		/** The connectors last passed to {@link #select(RawData, List)}. */
+		private volatile Members members;
+
+		/**
+		 * Creates a policy remembering up to 10000 peers.
+		 */
+		public Sticky() {
+			this(10000);
+		}
+
+		/**
+		 * Creates a policy remembering a given number of peers.
+		 * 
+		 * @param maxPeers the maximum number of peers
+		 */
+		public Sticky(final int maxPeers) {
+			if (maxPeers <= 0)
+				throw new IllegalArgumentException("Maximum number of peers must be positive");
+			this.maxPeers = maxPeers;
+		}
+
+		@Override
+		public Connector select(RawData msg, List<Connector> connectors) {
+			InetSocketAddress peer = msg.getInetSocketAddress();
+			Connector connector = peers.get(peer);
+			// the peer may have been received by a connector of another group
+			if (connector != null && membersOf(connectors).contains(connector))
+				return connector;
+			int h = peer.hashCode();
+			h ^= (h >>> 16);
+			return connectors.get((h & Integer.MAX_VALUE) % connectors.size());
+		}
+
+		@Override
+		public void received(RawData msg, Connector connector) {
+			InetSocketAddress peer = msg.getInetSocketAddress();
+			// most messages come from a peer via the same connector as before
+			if (peers.get(peer) == connector)
+				return;
+			if (peers.put(peer, connector) == null && peerCount.incrementAndGet() > maxPeers) {
+				Iterator<InetSocketAddress> it = peers.keySet().iterator();
+				while (peerCount.get() > maxPeers && it.hasNext()) {
+					InetSocketAddress eldest = it.next();
+					if (!eldest.equals(peer) && peers.remove(eldest) != null)
+						peerCount.decrementAndGet();
+				}
+			}
+		}
+
+		/**
+		 * Gets the connectors of a group as set. The set is only built again
+		 * if connectors have been added to the group, which is only possible
+		 * while the group is not running.
+		 * 
+		 * @param connectors the connectors of the group
+		 * @return the connectors as set
+		 */
+		private Set<Connector> membersOf(List<Connector> connectors) {
+			Members current = members;
+			if (current == null || current.list != connectors || current.set.size() != connectors.size()) {
+				current = new Members(connectors);
+				members = current;
+			}
+			return current.set;
+		}
+
+		/**
+		 * A snapshot of the connectors of a group.
+		 */
+		private static class Members {
+
+			private final List<Connector> list;
+			private final Set<Connector> set;
+
+			private Members(List<Connector> list) {
+				this.list = list;
+				this.set = new HashSet<Connector>(list);
+			}
+		}
+	}
+
+	/**
+	 * Sends the messages via the connectors in turn.
+	 */
+	public static class RoundRobin implements RoutingPolicy {
+
+		private final AtomicInteger next = new AtomicInteger();
+
+		@Override
+		public Connector select(RawData msg, List<Connector> connectors) {
+			int index = next.getAndIncrement() & Integer.MAX_VALUE;
+			return connectors.get(index % connectors.size());
+		}
+
+		@Override
+		public void received(RawData msg, Connector connector) { }
+	}
+
+	/**
+	 * Sends each message via the connector with the fewest messages waiting
+	 * in its outgoing queue. Connectors that do not implement
+	 * {@link InstrumentedConnector} are considered to have an empty queue.
+	 * Ties are resolved in favor of the first connector.
+	 */
+	public static class LeastQueueDepth implements RoutingPolicy {
+
+		@Override
+		public Connector select(RawData msg, List<Connector> connectors) {
+			Connector selected = null;
+			int minDepth = Integer.MAX_VALUE;
+			for (int i = 0; i < connectors.size(); i++) {
+				Connector connector = connectors.get(i);
+				int depth = 0;
+				if (connector instanceof InstrumentedConnector) {
+					depth = ((InstrumentedConnector) connector).getMetrics().getOutgoingQueueDepth();
+				}
+				if (depth < minDepth) {
+					selected = connector;
+					minDepth = depth;
+					if (depth == 0)
+						break;
+				}
+			}
+			return selected;
+		}
+
+		@Override
+		public void received(RawData msg, Connector connector) { }
+	}
+}
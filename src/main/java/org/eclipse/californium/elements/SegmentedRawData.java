@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link RawData} composed of several segments, e.g. a header, options and
+ * a payload that is shared by several messages.
+ * 
+ * The segments are not concatenated when the message is created. Connectors
+ * copy them directly into their send buffer via {@link #writeTo(ByteBuffer)},
+ * so each segment is copied exactly once on its way to the socket. The
+ * remaining bytes of each buffer given to the constructor make up a segment.
+ * The buffers' positions and limits are not changed, but their content must
+ * not be modified until the message has been sent.
+ * 
+ * Note that the public {@link #bytes} field is empty for segmented messages.
+ * {@link #getBytes()} and {@link #getByteBuffer()} concatenate the segments.
+ */
+public class SegmentedRawData extends RawData {
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/** The read-only segments. */
+	private final ByteBuffer[] segments;
+
+	/** The total number of bytes of all segments. */
+	private final int size;
+
+	/**
+	 * Instantiates a new segmented raw data to be sent to a peer.
+	 * 
+	 * @param address the IP address and port the data is to be sent to
+	 * @param segments the segments in the order they are to be sent
+	 * @throws NullPointerException if any of the given parameters is <code>null</code>
+	 */
+	public SegmentedRawData(InetSocketAddress address, ByteBuffer... segments) {
+		super(EMPTY, address);
+		this.segments = new ByteBuffer[segments.length];
+		int total = 0;
+		for (int i = 0; i < segments.length; i++) {
+			this.segments[i] = segments[i].asReadOnlyBuffer();
+			total += this.segments[i].remaining();
+		}
+		this.size = total;
+	}
+
+	/**
+	 * Gets the segments of the message.
+	 * 
+	 * @return read-only buffers of the segments
+	 */
+	public ByteBuffer[] getSegments() {
+		ByteBuffer[] result = new ByteBuffer[segments.length];
+		for (int i = 0; i < segments.length; i++) {
+			result[i] = segments[i].duplicate();
+		}
+		return result;
+	}
+
+	@Override
+	public byte[] getBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		writeTo(buffer);
+		return buffer.array();
+	}
+
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public ByteBuffer getByteBuffer() {
+		if (segments.length == 1)
+			return segments[0].slice();
+		return ByteBuffer.wrap(getBytes()).asReadOnlyBuffer();
+	}
+
+	@Override
+	byte[] array() {
+		return null;
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) {
+		for (ByteBuffer segment : segments) {
+			buffer.put(segment.duplicate());
+		}
+	}
+}
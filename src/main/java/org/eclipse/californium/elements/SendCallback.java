@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+/**
+ * A callback notified when a connector has finished sending a message.
+ * 
+ * The callback is registered with a message by
+ * {@link AsyncConnector#send(RawData, SendCallback)} or
+ * {@link RawData#setSendCallback(SendCallback)}. Exactly one of its methods is
+ * called once for every message a connector has accepted for sending, i.e.
+ * unless <code>send</code> throws an exception. The callback is called on a
+ * thread of the connector and should return quickly.
+ */
+public interface SendCallback {
+
+	/**
+	 * Called after the message has been handed to the network.
+	 * 
+	 * @param msg the message
+	 */
+	public void sent(RawData msg);
+
+	/**
+	 * Called if the message has not been sent.
+	 * 
+	 * The cause is an <code>IOException</code> if sending failed or the
+	 * connector has been stopped, an <code>InterruptedIOException</code> if
+	 * the sending thread has been interrupted while waiting for room in the
+	 * outgoing queue, an <code>IllegalStateException</code> if the
+	 * message has been dropped because the outgoing queue was full and a
+	 * <code>TimeoutException</code> if its
+	 * {@link RawData#setSendDeadline(long) send deadline} had passed.
+	 * 
+	 * @param msg the message
+	 * @param cause the reason
+	 */
+	public void failed(RawData msg, Exception cause);
+
+}
@@ -0,0 +1,357 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link RawDataChannel} that decouples the threads reading from the socket
+ * from the processing of the received messages.
+ * 
+ * Connectors call {@link RawDataChannel#receiveData(RawData)} on the thread
+ * that reads the socket, so a slow upper layer keeps the socket from being
+ * drained until the kernel receive buffer overflows. This channel merely
+ * puts each message into one of several bounded queues (stripes) and returns.
+ * Every stripe is served by a worker thread of its own that forwards the
+ * messages to the actual channel.
+ * 
+ * The stripe is chosen by the source address of a message, so messages from
+ * the same peer are always processed by the same worker in the order they
+ * have been received. Messages arriving while their stripe is full or the
+ * channel is not running are dropped and counted, see
+ * {@link #getDroppedMessages()}.
+ * 
+ * If the actual channel is a {@link BatchRawDataChannel}, a worker forwards
+ * all messages waiting in its stripe at once. Like the workers of a
+ * connector, the workers can run on threads of a
+ * {@link #setWorkerThreadFactory(ThreadFactory) thread factory} or of an
+ * {@link #setWorkerExecutor(Executor) executor}.
+ * 
+ * <pre>
+ * StripedRawDataChannel dispatcher = new StripedRawDataChannel(channel, 4, 1024);
+ * connector.setRawDataReceiver(dispatcher);
+ * dispatcher.start();
+ * connector.start();
+ * </pre>
+ */
+public class StripedRawDataChannel implements BatchRawDataChannel {
+
+	private final static Logger LOGGER = Logger.getLogger(StripedRawDataChannel.class.getName());
+
+	/** The maximum number of messages a worker forwards at once. */
+	private static final int MAX_BATCH_SIZE = 32;
+
+	/** The maximum time in milliseconds to wait for the workers to terminate. */
+	private static final long THREAD_JOIN_TIMEOUT = 1000;
+
+	/** The number of channels created so far, to tell their threads apart. */
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+	/** The number of this channel in thread names. */
+	private final int id = INSTANCES.incrementAndGet();
+
+	/** The channel to forward the messages to. */
+	private final RawDataChannel channel;
+
+	/** The queues of received messages, one per worker. */
+	private final BlockingQueue<RawData>[] stripes;
+
+	/** The number of messages dropped because their stripe was full. */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** The worker threads. */
+	private Worker[] workers;
+
+	/** The factory to create the worker threads, or <code>null</code> */
+	private ThreadFactory workerThreadFactory;
+
+	/** The executor to run the workers on, or <code>null</code> */
+	private Executor workerExecutor;
+
+	/** Indicates whether the workers have started and not stopped yet. */
+	private volatile boolean running;
+
+	/**
+	 * Creates a dispatcher forwarding messages to a given channel.
+	 * 
+	 * @param channel the channel to process the messages
+	 * @param stripeCount the number of stripes and worker threads
+	 * @param capacity the maximum number of messages waiting per stripe
+	 */
+	public StripedRawDataChannel(RawDataChannel channel, int stripeCount, int capacity) {
+		if (channel == null)
+			throw new NullPointerException();
+		if (stripeCount <= 0)
+			throw new IllegalArgumentException("Stripe count must be positive");
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		this.channel = channel;
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		BlockingQueue<RawData>[] array = new BlockingQueue[stripeCount];
+		this.stripes = array;
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new ArrayBlockingQueue<RawData>(capacity);
+		}
+	}
+
+	/**
+	 * Starts the worker threads.
+	 */
+	public synchronized void start() {
+		if (running) return;
+		running = true;
+		workers = new Worker[stripes.length];
+		for (int i = 0; i < stripes.length; i++) {
+			workers[i] = new Worker("RawData-Dispatcher-" + id + "[" + i + "]", stripes[i]);
+			workers[i].start(null, workerThreadFactory, workerExecutor);
+		}
+		LOGGER.log(Level.CONFIG, "StripedRawDataChannel started {0} workers", stripes.length);
+	}
+
+	/**
+	 * Stops the worker threads and waits for them to finish the messages
+	 * they are processing, but no longer than a second. Messages still
+	 * waiting are discarded.
+	 */
+	public synchronized void stop() {
+		if (!running) return;
+		running = false;
+		for (Worker worker : workers) {
+			worker.stop();
+		}
+		// a restart must not let new workers process a stripe next to an old one
+		join(workers);
+		workers = null;
+		for (BlockingQueue<RawData> stripe : stripes) {
+			RawData msg;
+			while ((msg = stripe.poll()) != null) {
+				msg.release();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the given workers to terminate, but no longer than
+	 * {@link #THREAD_JOIN_TIMEOUT} in total.
+	 * 
+	 * @param workers the workers to wait for
+	 */
+	private static void join(Worker[] workers) {
+		long deadline = System.currentTimeMillis() + THREAD_JOIN_TIMEOUT;
+		try {
+			for (Worker worker : workers) {
+				// the channel may stop the dispatcher from a worker
+				if (worker.isCurrentThread())
+					continue;
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0 || !worker.join(remaining))
+					LOGGER.log(Level.INFO, "Worker [{0}] did not terminate within {1} ms", new Object[]{worker.getName(), THREAD_JOIN_TIMEOUT});
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void receiveData(RawData raw) {
+		dispatch(raw);
+	}
+
+	@Override
+	public void receiveData(List<RawData> batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			dispatch(batch.get(i));
+		}
+	}
+
+	/**
+	 * Adds a message to the stripe of its source address or drops it if
+	 * the stripe is full or the channel is not running.
+	 * 
+	 * @param raw the message
+	 */
+	private void dispatch(RawData raw) {
+		if (!running) {
+			drop(raw, "channel is not running");
+			return;
+		}
+		BlockingQueue<RawData> stripe = stripes[indexOf(raw.getInetSocketAddress())];
+		if (!stripe.offer(raw)) {
+			drop(raw, "queue is full");
+		} else if (!running && stripe.remove(raw)) {
+			// stopped meanwhile, the stripe may have been cleared already
+			drop(raw, "channel is not running");
+		}
+	}
+
+	/**
+	 * Drops a message and releases it.
+	 * 
+	 * @param raw the message
+	 * @param reason the reason to log
+	 */
+	private void drop(RawData raw, String reason) {
+		dropped.incrementAndGet();
+		raw.release();
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.log(Level.FINE, "StripedRawDataChannel dropped message from {0}, {1}",
+					new Object[]{raw.getInetSocketAddress(), reason});
+		}
+	}
+
+	/**
+	 * Gets the stripe index of a peer.
+	 * 
+	 * @param peer the peer's address
+	 * @return the index
+	 */
+	private int indexOf(InetSocketAddress peer) {
+		int h = peer.hashCode();
+		// spread the bits as the port mostly differs in the lower ones only
+		h ^= (h >>> 16);
+		return (h & Integer.MAX_VALUE) % stripes.length;
+	}
+
+	/**
+	 * Gets the number of messages dropped because their stripe was full or
+	 * the channel was not running.
+	 * 
+	 * @return the number of dropped messages
+	 */
+	public long getDroppedMessages() {
+		return dropped.get();
+	}
+
+	/**
+	 * Gets the number of messages waiting to be processed in all stripes.
+	 * 
+	 * @return the number of waiting messages
+	 */
+	public int getQueueSize() {
+		int size = 0;
+		for (BlockingQueue<RawData> stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * Sets the factory to create the worker threads with. This method must
+	 * be called before the channel is started.
+	 * 
+	 * @param threadFactory the factory, or <code>null</code> to create daemon
+	 *            threads (default)
+	 */
+	public void setWorkerThreadFactory(ThreadFactory threadFactory) {
+		this.workerThreadFactory = threadFactory;
+	}
+
+	public ThreadFactory getWorkerThreadFactory() {
+		return workerThreadFactory;
+	}
+
+	/**
+	 * Sets the executor to run the workers on. Each worker occupies a thread
+	 * of the executor until the channel is stopped. This method must be
+	 * called before the channel is started.
+	 * 
+	 * @param executor the executor, or <code>null</code> to create a thread
+	 *            per worker (default)
+	 */
+	public void setWorkerExecutor(Executor executor) {
+		this.workerExecutor = executor;
+	}
+
+	public Executor getWorkerExecutor() {
+		return workerExecutor;
+	}
+
+	/**
+	 * A worker forwarding the messages of one stripe.
+	 */
+	private class Worker extends ConnectorWorker {
+
+		/** The stripe this worker serves. */
+		private final BlockingQueue<RawData> stripe;
+
+		/** The batch of messages for a {@link BatchRawDataChannel}. */
+		private final List<RawData> batch = new ArrayList<RawData>(MAX_BATCH_SIZE);
+
+		/**
+		 * Instantiates a new worker.
+		 *
+		 * @param name the name
+		 * @param stripe the stripe to serve
+		 */
+		private Worker(String name, BlockingQueue<RawData> stripe) {
+			super(name);
+			this.stripe = stripe;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.elements.ConnectorWorker#loop()
+		 */
+		protected void loop() {
+			LOGGER.log(Level.FINE, "Starting worker [{0}]", getName());
+			// a worker of a stopped channel must not keep on running if the
+			// channel is restarted, as two workers would break the order per peer
+			while (isActive()) {
+				try {
+					work();
+				} catch (Throwable t) {
+					if (isActive())
+						LOGGER.log(Level.WARNING, "Exception occurred in worker [" + getName() + "]: ", t);
+					else
+						LOGGER.log(Level.FINE, "Worker [{0}] has been stopped successfully", getName());
+				}
+			}
+		}
+
+		/**
+		 * Waits for messages and forwards them to the channel.
+		 * 
+		 * @throws InterruptedException if the worker has been stopped
+		 */
+		private void work() throws InterruptedException {
+			RawData raw = stripe.take();
+			if (channel instanceof BatchRawDataChannel) {
+				batch.add(raw);
+				stripe.drainTo(batch, MAX_BATCH_SIZE - 1);
+				try {
+					((BatchRawDataChannel) channel).receiveData(batch);
+				} finally {
+					batch.clear();
+				}
+			} else {
+				channel.receiveData(raw);
+			}
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+/**
+ * A handler for datagrams a connector drops because they exceed its receive
+ * buffer and have been truncated.
+ */
+public interface TruncatedMessageHandler {
+
+	/**
+	 * Handles a datagram that has not been forwarded to the receiver.
+	 * 
+	 * The message contains the bytes that fitted into the receive buffer
+	 * only, which usually suffices to read the header of the datagram, e.g.
+	 * to respond that it has been too large. This method is called on a
+	 * receiver thread of the connector and should return quickly.
+	 * 
+	 * @param msg the beginning of the truncated datagram
+	 */
+	public void truncated(RawData msg);
+
+}
@@ -17,14 +17,21 @@
 package org.eclipse.californium.elements;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,24 +46,48 @@ import java.util.logging.Logger;
  * 
  * UDP broadcast is allowed.
  * // TODO: describe that we can make many threads
+ * 
+ * By default, the connector binds a single socket that is shared by all receiver
+ * threads. On platforms supporting <code>SO_REUSEPORT</code> (e.g. Linux 3.9+), the
+ * connector can be configured to bind several sockets to the same address by means
+ * of {@link #setSocketCount(int)}. The kernel then distributes incoming flows among
+ * the sockets, each of which is served by its own receiver threads.
+ * 
+ * Since a blocking socket cannot tell whether further datagrams are readily
+ * available, received datagrams are always delivered one at a time, even to a
+ * {@link BatchRawDataChannel}. Use the {@link NioUDPConnector} for batched
+ * delivery.
+ * 
+ * In {@link #setAdaptiveTuning(boolean) adaptive mode}, the socket buffer
+ * sizes and the receiver packet size are adjusted while the connector is
+ * running, see {@link #setAdaptiveTuning(boolean)}.
  */
-public class UDPConnector implements Connector {
+public class UDPConnector implements InstrumentedConnector, BatchConnector, AsyncConnector {
 
 	public final static Logger LOGGER = Logger.getLogger(UDPConnector.class.toString());
 	
 	public static final int UNDEFINED = 0;
 	
+	/** The default number of peer addresses cached by the receivers. */
+	public static final int DEFAULT_ADDRESS_CACHE_SIZE = 1024;
+	
 	private boolean running;
 	
-	private DatagramSocket socket;
+	private List<DatagramSocket> sockets;
 	
 	private final InetSocketAddress localAddr;
 	
-	private List<Thread> receiverThreads;
-	private List<Thread> senderThreads;
+	private List<Worker> receiverThreads;
+	private List<Worker> senderThreads;
+	
+	/** The factory to create the worker threads, or <code>null</code> */
+	private ThreadFactory workerThreadFactory;
+	
+	/** The executor to run the workers on, or <code>null</code> */
+	private Executor workerExecutor;
 
 	/** The outbound message queue. */
-	private final BlockingQueue<RawData> outgoing;
+	private final OutgoingQueue outgoing;
 	
 	/** The receiver of incoming messages. */
 	private RawDataChannel receiver;
@@ -66,10 +97,40 @@ public class UDPConnector implements Connector {
 	
 	private int senderCount = 1;
 	private int receiverCount = 1;
+	private int socketCount = 1;
+	
+	/** Indicates whether <code>SO_REUSEADDR</code> is enabled on the sockets */
+	private boolean reuseAddress = false;
+	
+	private int sendBatchSize = 32;
 	
-	private int receiverPacketSize = 2048;
+	private volatile int receiverPacketSize = 2048;
+	
+	/** Indicates whether buffer and packet sizes are adjusted at runtime */
+	private boolean adaptiveTuning = false;
+	private long tuningInterval = 1000;
+	private int maxBufferSize = 8 * 1024 * 1024;
+	private Tuner tuner;
 	private boolean logPackets = false;
 	
+	/** The pool to receive datagrams into, or <code>null</code> */
+	private BufferPool receiveBufferPool;
+	
+	/** The limiter of the rate per peer, or <code>null</code> */
+	private volatile PeerRateLimiter rateLimiter;
+	
+	private int addressCacheSize = DEFAULT_ADDRESS_CACHE_SIZE;
+	
+	/** The addresses of the peers, or <code>null</code> */
+	private volatile AddressCache addressCache;
+	
+	private volatile TruncatedMessageHandler truncatedMessageHandler;
+	
+	/** Indicates whether receivers switch to a large buffer after a truncation */
+	private boolean largePacketFallback = false;
+	
+	private final ConnectorMetrics metrics = new ConnectorMetrics();
+	
 	/**
 	 * Creates a connector on the wildcard address listening on an
 	 * ephemeral port, i.e. a port chosen by the system.
@@ -95,47 +156,73 @@ public class UDPConnector implements Connector {
 		}
 		this.running = false;
 		
-		//TODO: think about restricting the outbound queue's capacity
-		this.outgoing = new LinkedBlockingQueue<RawData>();
+		this.outgoing = new OutgoingQueue(LOGGER, "UDPConnector", localAddr, metrics);
 	}
 	
 	@Override
 	public synchronized void start() throws IOException {
 		if (running) return;
 		
-		// if localAddr is null or port is 0, the system decides
-		socket = new DatagramSocket(localAddr.getPort(), localAddr.getAddress());
+		sockets = new ArrayList<DatagramSocket>(socketCount);
+		addressCache = addressCacheSize > 0 ? new AddressCache(addressCacheSize) : null;
+		try {
+			if (socketCount > 1) {
+				InetSocketAddress bindAddr = localAddr;
+				for (int i=0;i<socketCount;i++) {
+					DatagramSocket socket = new DatagramSocket((SocketAddress) null);
+					sockets.add(socket);
+					setReusePort(socket);
+					if (reuseAddress)
+						socket.setReuseAddress(true);
+					configure(socket);
+					socket.bind(bindAddr);
+					// all further sockets must share the port chosen for the first one
+					bindAddr = new InetSocketAddress(localAddr.getAddress(), socket.getLocalPort());
+				}
+			} else {
+				// if localAddr is null or port is 0, the system decides
+				DatagramSocket socket = new DatagramSocket((SocketAddress) null);
+				sockets.add(socket);
+				if (reuseAddress)
+					socket.setReuseAddress(true);
+				configure(socket);
+				socket.bind(localAddr);
+			}
+		} catch (IOException e) {
+			closeSockets();
+			throw e;
+		}
 
 		this.running = true;
 		
-		if (receiveBufferSize != UNDEFINED) {
-			socket.setReceiveBufferSize(receiveBufferSize);
-		}
-		receiveBufferSize = socket.getReceiveBufferSize();
-		
-		if (sendBufferSize != UNDEFINED) {
-			socket.setSendBufferSize(sendBufferSize);
-		}
-		sendBufferSize = socket.getSendBufferSize();
-		
 		// start receiver and sender threads
-		LOGGER.log(Level.CONFIG, "UDPConnector starts up {0} sender threads and {1} receiver threads",
-				new Object[]{senderCount, receiverCount});
+		LOGGER.log(Level.CONFIG, "UDPConnector starts up {0} sender threads and {1} receiver threads on {2} sockets",
+				new Object[]{senderCount, receiverCount * sockets.size(), sockets.size()});
 		
-		receiverThreads = new LinkedList<Thread>();
-		for (int i=0;i<receiverCount;i++) {
-			receiverThreads.add(new Receiver("UDP-Receiver-"+localAddr+"["+i+"]"));
+		receiverThreads = new LinkedList<Worker>();
+		for (int s=0;s<sockets.size();s++) {
+			for (int i=0;i<receiverCount;i++) {
+				String name = socketCount > 1
+						? "UDP-Receiver-"+localAddr+"["+s+"-"+i+"]"
+						: "UDP-Receiver-"+localAddr+"["+i+"]";
+				receiverThreads.add(new Receiver(name, sockets.get(s)));
+			}
 		}
 		
-		senderThreads = new LinkedList<Thread>();
+		senderThreads = new LinkedList<Worker>();
 		for (int i=0;i<senderCount;i++) {
-			senderThreads.add(new Sender("UDP-Sender-"+localAddr+"["+i+"]"));
+			senderThreads.add(new Sender("UDP-Sender-"+localAddr+"["+i+"]", sockets.get(i % sockets.size())));
 		}
 
-		for (Thread t:receiverThreads)
-			t.start();
-		for (Thread t:senderThreads)
-			t.start();
+		for (Worker t:receiverThreads)
+			t.start(null, workerThreadFactory, workerExecutor);
+		for (Worker t:senderThreads)
+			t.start(null, workerThreadFactory, workerExecutor);
+		
+		if (adaptiveTuning) {
+			tuner = new Tuner("UDP-Tuner-"+localAddr, sockets);
+			tuner.start(null, workerThreadFactory, workerExecutor);
+		}
 		
 		/*
 		 * Java bug: sometimes, socket.getReceiveBufferSize() and
@@ -145,11 +232,63 @@ public class UDPConnector implements Connector {
 		 */
 		
 		String startupMsg = new StringBuffer("UDPConnector listening on ")
-			.append(socket.getLocalSocketAddress()).append(", recv buf = ")
+			.append(sockets.get(0).getLocalSocketAddress()).append(", sockets = ")
+			.append(sockets.size()).append(", recv buf = ")
 			.append(receiveBufferSize).append(", send buf = ").append(sendBufferSize)
 			.append(", recv packet size = ").append(receiverPacketSize).toString();
 		LOGGER.log(Level.CONFIG, startupMsg);
 	}
+	
+	/**
+	 * Applies the configured buffer sizes to a socket and records the
+	 * values actually used by the system.
+	 * 
+	 * @param socket the socket to configure
+	 * @throws IOException if the buffer sizes cannot be set
+	 */
+	private void configure(DatagramSocket socket) throws IOException {
+		if (receiveBufferSize != UNDEFINED) {
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+		receiveBufferSize = socket.getReceiveBufferSize();
+		
+		if (sendBufferSize != UNDEFINED) {
+			socket.setSendBufferSize(sendBufferSize);
+		}
+		sendBufferSize = socket.getSendBufferSize();
+	}
+	
+	/**
+	 * Enables <code>SO_REUSEPORT</code> on an unbound socket.
+	 * 
+	 * The option is only accessible through the socket option API introduced
+	 * in Java 9 and is therefore set reflectively.
+	 * 
+	 * @param socket the socket
+	 * @throws IOException if the platform does not support the option
+	 */
+	private static void setReusePort(DatagramSocket socket) throws IOException {
+		try {
+			Class<?> optionClass = Class.forName("java.net.SocketOption");
+			Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			Method setOption = DatagramSocket.class.getMethod("setOption", optionClass, Object.class);
+			setOption.invoke(socket, option, Boolean.TRUE);
+		} catch (java.lang.reflect.InvocationTargetException e) {
+			throw new IOException("Cannot enable SO_REUSEPORT: " + e.getCause());
+		} catch (Exception e) {
+			throw new IOException("SO_REUSEPORT is not supported by this runtime: " + e);
+		}
+	}
+	
+	/**
+	 * Closes all sockets of this connector.
+	 */
+	private void closeSockets() {
+		for (DatagramSocket socket:sockets) {
+			socket.close();
+		}
+		sockets = null;
+	}
 
 	@Override
 	public synchronized void stop() {
@@ -157,18 +296,20 @@ public class UDPConnector implements Connector {
 		this.running = false;
 		// stop all threads
 		if (senderThreads!= null)
-			for (Thread t:senderThreads) {
-				t.interrupt();
+			for (Worker t:senderThreads) {
+				t.stop();
 			}
 		if (receiverThreads!= null)
-			for (Thread t:receiverThreads) {
-				t.interrupt();
+			for (Worker t:receiverThreads) {
+				t.stop();
 			}
-		outgoing.clear();
-		String address = socket.getLocalSocketAddress().toString();
-		if (socket != null)
-			socket.close();
-		socket = null;
+		if (tuner != null) {
+			tuner.stop();
+			tuner = null;
+		}
+		outgoing.discard();
+		String address = sockets.get(0).getLocalSocketAddress().toString();
+		closeSockets();
 		LOGGER.log(Level.CONFIG, "UDPConnector on [{0}] has stopped.", address);
 	}
 
@@ -183,6 +324,23 @@ public class UDPConnector implements Connector {
 			throw new NullPointerException();
 		outgoing.add(msg);
 	}
+	
+	@Override
+	public void send(List<RawData> msgs) {
+		for (int i=0;i<msgs.size();i++) {
+			send(msgs.get(i));
+		}
+	}
+
+	/**
+	 * Queues a message for sending and registers a callback to notify once it
+	 * has been sent or sending has failed.
+	 */
+	@Override
+	public void send(RawData msg, SendCallback callback) {
+		msg.setSendCallback(callback);
+		send(msg);
+	}
 
 	@Override
 	public void setRawDataReceiver(RawDataChannel receiver) {
@@ -190,32 +348,89 @@ public class UDPConnector implements Connector {
 	}
 	
 	public InetSocketAddress getAddress() {
-		if (socket == null) return localAddr;
-		else return new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort());
+		List<DatagramSocket> bound = sockets;
+		if (bound == null) return localAddr;
+		DatagramSocket socket = bound.get(0);
+		return new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort());
 	}
 	
-	private abstract class Worker extends Thread {
+	/**
+	 * Checks whether a received datagram exceeds the rate allowed for its
+	 * source.
+	 * 
+	 * @param packet the received datagram
+	 * @return <code>true</code> if the datagram must be dropped
+	 */
+	final boolean isRateLimited(DatagramPacket packet) {
+		PeerRateLimiter limiter = rateLimiter;
+		return limiter != null && !limiter.tryAcquire(packet.getAddress(), packet.getPort());
+	}
+	
+	/**
+	 * Gets the source address of a received datagram. If the address cache is
+	 * enabled, the datagrams of a peer share the same instance.
+	 * 
+	 * @param packet the received datagram
+	 * @return the source address
+	 */
+	final InetSocketAddress sourceOf(DatagramPacket packet) {
+		AddressCache cache = addressCache;
+		return cache != null
+				? cache.get(packet.getAddress(), packet.getPort())
+				: new InetSocketAddress(packet.getAddress(), packet.getPort());
+	}
+	
+	/**
+	 * Counts, logs and reports a datagram that exceeded the receive buffer.
+	 * 
+	 * @param socket the socket the datagram has been received on
+	 * @param packet the truncated datagram
+	 * @param limit the number of bytes that fitted into the buffer
+	 * @param multicast whether the datagram has been sent to a group
+	 */
+	final void discardTruncated(DatagramSocket socket, DatagramPacket packet, int limit, boolean multicast) {
+		metrics.truncated();
+		LOGGER.log(Level.FINE, "{0} ({1}) dropped datagram from {2}:{3} exceeding {4} bytes",
+				new Object[]{getClass().getSimpleName(), socket.getLocalSocketAddress(),
+					packet.getAddress(), packet.getPort(), limit});
+		TruncatedMessageHandler handler = truncatedMessageHandler;
+		if (handler != null) {
+			byte[] bytes = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + limit);
+			try {
+				handler.truncated(new RawData(bytes, packet.getAddress(), packet.getPort(), multicast));
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Truncated message handler failed", e);
+			}
+		}
+	}
+	
+	private abstract class Worker extends ConnectorWorker {
+
+		/** The socket this worker operates on. */
+		protected final DatagramSocket socket;
 
 		/**
 		 * Instantiates a new worker.
 		 *
 		 * @param name the name
+		 * @param socket the socket to operate on
 		 */
-		private Worker(String name) {
+		private Worker(String name, DatagramSocket socket) {
 			super(name);
-			setDaemon(true);
+			this.socket = socket;
 		}
 
 		/* (non-Javadoc)
-		 * @see java.lang.Thread#run()
+		 * @see org.eclipse.californium.elements.ConnectorWorker#loop()
 		 */
-		public void run() {
+		protected void loop() {
 			LOGGER.log(Level.FINE, "Starting worker [{0}]", getName());
-			while (running) {
+			// the socket is closed when the connector stops, even if it is restarted right away
+			while (running && isActive() && !socket.isClosed()) {
 				try {
 					work();
 				} catch (Throwable t) {
-					if (running)
+					if (running && !socket.isClosed())
 						LOGGER.log(Level.WARNING, "Exception occurred in Worker [" + getName() + "] (running="
 								+ running + "): ", t);
 					else
@@ -232,43 +447,275 @@ public class UDPConnector implements Connector {
 	
 	private class Receiver extends Worker {
 		
+		/** The size of the large buffer, no datagram exceeds it. */
+		private static final int LARGE_PACKET_SIZE = 65536;
+		
+		/** The number of datagrams received into the large buffer after a large one. */
+		private static final int LARGE_PACKET_RECEIVES = 16;
+		
 		private DatagramPacket datagram;
 		private int size;
+		private final BufferPool pool;
 		
-		private Receiver(String name) {
-			super(name);
+		/** The largest datagram received since the last tuning */
+		private volatile int largest;
+		
+		/** Indicates that a datagram exceeded the buffer and has been truncated */
+		private volatile boolean filled;
+		
+		/** The datagram to receive into after a truncation, or <code>null</code> */
+		private DatagramPacket large;
+		
+		/** The number of datagrams still to receive into the large buffer */
+		private int largeReceives;
+		
+		private Receiver(String name, DatagramSocket socket) {
+			super(name, socket);
 			this.size = receiverPacketSize;
-			this.datagram = new DatagramPacket(new byte[size], size);
+			this.pool = receiveBufferPool;
+			this.datagram = new DatagramPacket(new byte[size + 1], size + 1);
 		}
 		
 		protected void work() throws IOException {
-			datagram.setLength(size);
-			socket.receive(datagram);
+			if (adaptiveTuning && pool == null && size != receiverPacketSize) {
+				size = receiverPacketSize;
+				datagram = new DatagramPacket(new byte[size + 1], size + 1);
+			}
+			// the socket silently truncates datagrams exceeding the buffer, so
+			// a buffer one byte larger than the limit reveals the truncation
+			int limit = pool != null ? pool.getSlabSize() - 1 : size;
+			DatagramPacket packet = datagram;
+			byte[] slab = null;
+			if (largeReceives > 0) {
+				// large datagrams have been received recently, expect more of them
+				packet = large;
+				packet.setLength(LARGE_PACKET_SIZE);
+			} else if (pool != null) {
+				// receive directly into a slab and forward it without copying
+				slab = pool.acquire();
+				datagram.setData(slab);
+			} else {
+				datagram.setLength(size + 1);
+			}
+			try {
+				socket.receive(packet);
+			} catch (IOException e) {
+				if (slab != null)
+					pool.release(slab);
+				if (!socket.isClosed())
+					metrics.receiveFailed();
+				throw e;
+			}
+			int length = packet.getLength();
+			metrics.received(length);
+			if (adaptiveTuning) {
+				if (length > largest)
+					largest = length;
+				// a buffer allocated before the last adjustment does not count
+				if (length > size && size == receiverPacketSize)
+					filled = true;
+			}
+			if (isRateLimited(packet)) {
+				if (slab != null)
+					pool.release(slab);
+				return;
+			}
+			if (packet == large) {
+				// return to the small buffer once large datagrams have ceased
+				largeReceives = length > limit ? LARGE_PACKET_RECEIVES : largeReceives - 1;
+			} else if (length > limit) {
+				truncated(packet, limit);
+				if (slab != null)
+					pool.release(slab);
+				return;
+			}
 			if (LOGGER.isLoggable(Level.FINER)) {
 				LOGGER.log(Level.FINER, "UDPConnector ({0}) received {1} bytes from {2}:{3}",
-						new Object[]{socket.getLocalSocketAddress(), datagram.getLength(),
-							datagram.getAddress(), datagram.getPort()});
+						new Object[]{socket.getLocalSocketAddress(), length,
+							packet.getAddress(), packet.getPort()});
+			}
+			InetSocketAddress source = sourceOf(packet);
+			RawData msg;
+			if (slab != null) {
+				msg = new PooledRawData(pool, slab, length, source);
+			} else {
+				byte[] bytes = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + length);
+				msg = new RawData(bytes, source);
 			}
-			byte[] bytes = Arrays.copyOfRange(datagram.getData(), datagram.getOffset(), datagram.getLength());
-			RawData msg = new RawData(bytes, datagram.getAddress(), datagram.getPort());
 			
 			receiver.receiveData(msg);
 		}
 		
+		/**
+		 * Handles a datagram that exceeded the buffer.
+		 * 
+		 * @param packet the truncated datagram
+		 * @param limit the number of bytes that fitted into the buffer
+		 */
+		private void truncated(DatagramPacket packet, int limit) {
+			if (largePacketFallback) {
+				// the datagram is lost, but a retransmission or the next one will fit
+				if (large == null)
+					large = new DatagramPacket(new byte[LARGE_PACKET_SIZE], LARGE_PACKET_SIZE);
+				largeReceives = LARGE_PACKET_RECEIVES;
+			}
+			discardTruncated(socket, packet, limit, false);
+		}
+		
+	}
+	
+	/**
+	 * The worker adjusting the buffer and packet sizes in adaptive mode.
+	 */
+	private class Tuner extends Worker {
+		
+		private static final int MIN_PACKET_SIZE = 512;
+		private static final int MAX_PACKET_SIZE = 65536;
+		
+		private final List<DatagramSocket> tuned;
+		private final List<Worker> receivers;
+		
+		/** The inodes of the sockets of this process, or <code>null</code> */
+		private final Set<Long> inodes;
+		
+		/** The kernel drop counter at the last check, or -1 if not available */
+		private long lastDrops;
+		
+		/** The overflow counter at the last check */
+		private long lastDropped;
+		
+		private Tuner(String name, List<DatagramSocket> sockets) {
+			super(name, sockets.get(0));
+			this.tuned = sockets;
+			this.receivers = receiverThreads;
+			// the sockets exist already, so do the descriptors to tell them apart
+			this.inodes = KernelUdpStatistics.getSocketInodes();
+			this.lastDrops = KernelUdpStatistics.getDrops(socket.getLocalPort(), inodes);
+			this.lastDropped = metrics.getDroppedMessages();
+		}
+		
+		protected void work() throws Exception {
+			Thread.sleep(tuningInterval);
+			tuneReceiveBuffer();
+			tuneSendBuffer();
+			if (receiveBufferPool == null)
+				tunePacketSize();
+		}
+		
+		private void tuneReceiveBuffer() throws IOException {
+			long drops = KernelUdpStatistics.getDrops(socket.getLocalPort(), inodes);
+			if (lastDrops >= 0 && drops > lastDrops) {
+				for (DatagramSocket s : tuned) {
+					int size = s.getReceiveBufferSize();
+					if (size < maxBufferSize) {
+						s.setReceiveBufferSize(Math.min(2 * size, maxBufferSize));
+						receiveBufferSize = s.getReceiveBufferSize();
+					}
+				}
+				LOGGER.log(Level.CONFIG, "UDPConnector ({0}) has receive buffer size {1} after {2} datagrams dropped by the kernel",
+						new Object[]{localAddr, receiveBufferSize, drops - lastDrops});
+			}
+			lastDrops = drops;
+		}
+		
+		private void tuneSendBuffer() throws IOException {
+			long dropped = metrics.getDroppedMessages();
+			boolean backedUp = outgoing.size() > sendBatchSize * senderCount;
+			if (backedUp || dropped > lastDropped) {
+				for (DatagramSocket s : tuned) {
+					int size = s.getSendBufferSize();
+					if (size < maxBufferSize) {
+						s.setSendBufferSize(Math.min(2 * size, maxBufferSize));
+						sendBufferSize = s.getSendBufferSize();
+					}
+				}
+				LOGGER.log(Level.CONFIG, "UDPConnector ({0}) has send buffer size {1} after the outgoing queue backed up",
+						new Object[]{localAddr, sendBufferSize});
+			}
+			lastDropped = dropped;
+		}
+		
+		private void tunePacketSize() {
+			int largest = 0;
+			boolean filled = false;
+			for (Worker t : receivers) {
+				Receiver r = (Receiver) t;
+				largest = Math.max(largest, r.largest);
+				filled |= r.filled;
+				r.largest = 0;
+				r.filled = false;
+			}
+			int size = receiverPacketSize;
+			int adapted = size;
+			if (filled) {
+				// the actual size is unknown, shrink again once it has been seen
+				adapted = MAX_PACKET_SIZE;
+			} else if (largest > 0 && 4 * largest <= size) {
+				adapted = MIN_PACKET_SIZE;
+				while (adapted < 2 * largest)
+					adapted *= 2;
+			}
+			if (adapted != size) {
+				receiverPacketSize = adapted;
+				LOGGER.log(Level.CONFIG, "UDPConnector ({0}) has receiver packet size {1}, largest datagram received was {2} bytes",
+						new Object[]{localAddr, adapted, largest});
+			}
+		}
 	}
 	
 	private class Sender extends Worker {
 		
 		private DatagramPacket datagram;
+		private final List<RawData> batch;
+		private final int batchSize;
 		
-		private Sender(String name) {
-			super(name);
+		/** The buffer to assemble segmented messages in, or <code>null</code> */
+		private ByteBuffer assembly;
+		
+		private Sender(String name, DatagramSocket socket) {
+			super(name, socket);
 			this.datagram = new DatagramPacket(new byte[0], 0);
+			this.batchSize = sendBatchSize;
+			this.batch = new ArrayList<RawData>(batchSize);
 		}
 		
 		protected void work() throws InterruptedException, IOException {
-			RawData raw = outgoing.take(); // Blocking
-			datagram.setData(raw.getBytes());
+			batch.add(outgoing.take()); // Blocking
+			// take whatever else is queued already without blocking
+			outgoing.drainTo(batch, batchSize - 1);
+			try {
+				long now = System.nanoTime();
+				for (int i=0;i<batch.size();i++) {
+					RawData raw = batch.get(i);
+					if (raw.isExpired(now))
+						outgoing.expire(raw);
+					else
+						send(raw);
+				}
+			} catch (IOException e) {
+				// the socket has been closed, notify the messages not sent
+				for (int i=0;i<batch.size();i++) {
+					batch.get(i).notifyFailed(e);
+				}
+				throw e;
+			} finally {
+				batch.clear();
+			}
+		}
+		
+		private void send(RawData raw) throws IOException {
+			byte[] array = raw.array();
+			if (array == null) {
+				// a datagram socket cannot gather, so copy the segments once
+				if (assembly == null || assembly.capacity() < raw.getSize())
+					assembly = ByteBuffer.allocate(raw.getSize());
+				assembly.clear();
+				raw.writeTo(assembly);
+				datagram.setData(assembly.array(), 0, assembly.position());
+			} else {
+				// the socket only reads the message, so there is no need to copy it
+				datagram.setData(array, 0, raw.getSize());
+			}
 			datagram.setAddress(raw.getAddress());
 			datagram.setPort(raw.getPort());
 			if (LOGGER.isLoggable(Level.FINER)) {
@@ -276,10 +723,27 @@ public class UDPConnector implements Connector {
 						new Object[]{socket.getLocalSocketAddress(), datagram.getLength(),
 							datagram.getAddress(), datagram.getPort()});
 			}
-			socket.send(datagram);
+			try {
+				socket.send(datagram);
+				metrics.sent(raw);
+				raw.notifySent();
+			} catch (IOException e) {
+				if (socket.isClosed())
+					throw e;
+				metrics.sendFailed(raw);
+				raw.notifyFailed(e);
+				// do not let a single message spoil the rest of the batch
+				LOGGER.log(Level.WARNING, "UDPConnector (" + socket.getLocalSocketAddress() + ") could not send "
+						+ raw.getSize() + " bytes to " + raw.getInetSocketAddress(), e);
+			}
 		}
 	}
 	
+	@Override
+	public ConnectorMetrics getMetrics() {
+		return metrics;
+	}
+	
 	public void setReceiveBufferSize(int size) {
 		this.receiveBufferSize = size;
 	}
@@ -296,6 +760,100 @@ public class UDPConnector implements Connector {
 		return sendBufferSize;
 	}
 	
+	/**
+	 * Sets the factory to create the sender and receiver threads with.
+	 * 
+	 * This allows the threads to be named or prioritized by the application
+	 * or to run the workers on virtual threads. This method must be called
+	 * before the connector is started.
+	 * 
+	 * @param threadFactory the factory, or <code>null</code> to create daemon
+	 *            threads (default)
+	 */
+	public void setWorkerThreadFactory(ThreadFactory threadFactory) {
+		this.workerThreadFactory = threadFactory;
+	}
+	
+	public ThreadFactory getWorkerThreadFactory() {
+		return workerThreadFactory;
+	}
+	
+	/**
+	 * Sets the executor to run the sender and receiver workers on.
+	 * 
+	 * The executor may be shared by several connectors. Every worker occupies
+	 * a thread of the executor until the connector stops, so the executor
+	 * must provide at least as many threads as workers are started on it.
+	 * An executor takes precedence over a thread factory. This method must be
+	 * called before the connector is started.
+	 * 
+	 * @param executor the executor, or <code>null</code> to create threads
+	 */
+	public void setWorkerExecutor(Executor executor) {
+		this.workerExecutor = executor;
+	}
+	
+	public Executor getWorkerExecutor() {
+		return workerExecutor;
+	}
+	
+	/**
+	 * Sets the limiter for the rate of datagrams accepted from each peer.
+	 * 
+	 * Datagrams exceeding the rate of their peer are dropped right after
+	 * they have been read from the socket, before they are copied or
+	 * forwarded to the receiver. A limiter may be shared by several
+	 * connectors.
+	 * 
+	 * @param limiter the limiter, or <code>null</code> to accept all datagrams
+	 */
+	public void setRateLimiter(PeerRateLimiter limiter) {
+		this.rateLimiter = limiter;
+	}
+	
+	public PeerRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+	
+	/**
+	 * Sets the handler for datagrams dropped because they exceed the
+	 * {@link #setReceiverPacketSize(int) receiver packet size}.
+	 * 
+	 * Such datagrams are counted as truncated packets by the metrics, but
+	 * never forwarded to the receiver.
+	 * 
+	 * @param handler the handler or <code>null</code> to only count them
+	 */
+	public void setTruncatedMessageHandler(TruncatedMessageHandler handler) {
+		this.truncatedMessageHandler = handler;
+	}
+	
+	public TruncatedMessageHandler getTruncatedMessageHandler() {
+		return truncatedMessageHandler;
+	}
+	
+	/**
+	 * Enables or disables the fallback to large buffers.
+	 * 
+	 * A datagram exceeding the receiver packet size cannot be read again
+	 * once it has been truncated. With the fallback enabled, a receiver
+	 * thread that has dropped a truncated datagram receives the next
+	 * datagrams into a buffer large enough for any datagram, so that a
+	 * retransmission gets through, and returns to its small buffer once
+	 * several datagrams in a row have fitted into it. This method must be
+	 * called before the connector is started.
+	 * 
+	 * @param fallback <code>true</code> to enable the fallback (default
+	 *            <code>false</code>)
+	 */
+	public void setLargePacketFallback(boolean fallback) {
+		this.largePacketFallback = fallback;
+	}
+	
+	public boolean isLargePacketFallback() {
+		return largePacketFallback;
+	}
+	
 	public void setReceiverThreadCount(int count) {
 		this.receiverCount = count;
 	}
@@ -312,14 +870,270 @@ public class UDPConnector implements Connector {
 		return senderCount;
 	}
 	
+	/**
+	 * Sets the maximum number of messages in the outgoing queue.
+	 * 
+	 * Messages sent while the queue is full are handled according to the
+	 * {@link #setOverflowPolicy(OverflowPolicy) overflow policy}. This method
+	 * must be called before the connector is started.
+	 * 
+	 * @param capacity the capacity (default {@link Integer#MAX_VALUE})
+	 * @throws IllegalStateException if the connector is running
+	 */
+	public synchronized void setOutgoingCapacity(int capacity) {
+		if (running)
+			throw new IllegalStateException("Capacity cannot be changed while the connector is running");
+		outgoing.setCapacity(capacity);
+	}
+	
+	public int getOutgoingCapacity() {
+		return outgoing.getCapacity();
+	}
+	
+	/**
+	 * Sets the queue to buffer outgoing messages in.
+	 * 
+	 * By default, messages are buffered in a {@link LinkedBlockingQueue}. A
+	 * {@link RingBufferQueue} avoids the lock and the node allocation per
+	 * message at the expense of a fixed capacity. Messages queued already
+	 * are moved to the new queue as far as it has room for them. This method
+	 * must be called before the connector is started.
+	 * 
+	 * @param queue the queue
+	 * @throws IllegalStateException if the connector is running
+	 */
+	public synchronized void setOutgoingQueue(BlockingQueue<RawData> queue) {
+		if (running)
+			throw new IllegalStateException("Queue cannot be changed while the connector is running");
+		outgoing.setQueue(queue);
+	}
+	
+	/**
+	 * Gets the number of messages currently waiting in the outgoing queue.
+	 * 
+	 * @return the queue depth
+	 */
+	public int getOutgoingQueueSize() {
+		return outgoing.size();
+	}
+	
+	/**
+	 * Sets the policy to apply to messages sent while the outgoing queue is full.
+	 * 
+	 * @param policy the policy (default {@link OverflowPolicy#BLOCK})
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		outgoing.setOverflowPolicy(policy);
+	}
+	
+	public OverflowPolicy getOverflowPolicy() {
+		return outgoing.getOverflowPolicy();
+	}
+	
+	/**
+	 * Sets the handler for messages rejected according to the
+	 * {@link OverflowPolicy#REJECT} policy.
+	 * 
+	 * @param handler the handler or <code>null</code> to make sending of
+	 *            rejected messages fail with an {@link IllegalStateException}
+	 */
+	public void setRejectedMessageHandler(RejectedMessageHandler handler) {
+		outgoing.setRejectedMessageHandler(handler);
+	}
+	
+	public RejectedMessageHandler getRejectedMessageHandler() {
+		return outgoing.getRejectedMessageHandler();
+	}
+	
+	/**
+	 * Sets the handler for queued messages that are discarded because their
+	 * {@link RawData#setSendDeadline(long) send deadline} has passed.
+	 * 
+	 * @param handler the handler or <code>null</code> to only count them
+	 */
+	public void setExpiredMessageHandler(ExpiredMessageHandler handler) {
+		outgoing.setExpiredMessageHandler(handler);
+	}
+	
+	public ExpiredMessageHandler getExpiredMessageHandler() {
+		return outgoing.getExpiredMessageHandler();
+	}
+	
+	/**
+	 * Sets the maximum number of queued messages a sender thread takes from
+	 * the outgoing queue at once. The sender sends them back-to-back before
+	 * it returns to the queue, which reduces contention on the queue when
+	 * many messages are sent in a burst.
+	 * 
+	 * @param size the maximum batch size (default 32)
+	 */
+	public void setSendBatchSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		this.sendBatchSize = size;
+	}
+	
+	public int getSendBatchSize() {
+		return sendBatchSize;
+	}
+	
+	/**
+	 * Sets the number of sockets to bind to the local address.
+	 * 
+	 * A value greater than 1 binds all sockets with <code>SO_REUSEPORT</code>
+	 * enabled so that the kernel spreads incoming flows among them. Each socket
+	 * is served by {@link #getReceiverThreadCount()} receiver threads of its own,
+	 * while the sender threads are assigned to the sockets in turn.
+	 * {@link #start()} fails if the platform does not support
+	 * <code>SO_REUSEPORT</code>.
+	 * 
+	 * @param count the number of sockets (default 1)
+	 */
+	public void setSocketCount(int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("Socket count must be at least 1");
+		this.socketCount = count;
+	}
+	
+	public int getSocketCount() {
+		return socketCount;
+	}
+	
+	/**
+	 * Enables <code>SO_REUSEADDR</code> on the sockets, which allows other
+	 * sockets to bind to the same port, e.g., to receive multicast datagrams.
+	 * This method must be called before the connector is started.
+	 * 
+	 * @param reuse whether to enable the option (default <code>false</code>)
+	 */
+	public void setReuseAddress(boolean reuse) {
+		this.reuseAddress = reuse;
+	}
+	
+	public boolean isReuseAddress() {
+		return reuseAddress;
+	}
+	
 	public void setReceiverPacketSize(int size) {
 		this.receiverPacketSize = size;
 	}
 	
+	/**
+	 * Enables or disables the adaptive mode.
+	 * 
+	 * In adaptive mode, a tuner thread checks every
+	 * {@link #setTuningInterval(long) tuning interval} whether
+	 * <ul>
+	 * <li>the kernel has dropped datagrams because the receive buffer was
+	 * full (on Linux only), and doubles the receive buffer size then. On
+	 * Java 6, the drops of other processes' sockets bound to the same port
+	 * are counted as well,</li>
+	 * <li>the outgoing queue has backed up or overflowed, and doubles the
+	 * send buffer size then,</li>
+	 * <li>a received datagram has filled the receiver packet size and might
+	 * have been truncated, and raises the packet size to 64 KiB then,</li>
+	 * <li>the received datagrams are far smaller than the receiver packet
+	 * size, and shrinks it to twice the largest datagram received.</li>
+	 * </ul>
+	 * Buffer sizes grow up to the {@link #setMaxBufferSize(int) maximum
+	 * buffer size} as far as the operating system permits, and the packet
+	 * size is at least 512 bytes. The initial sizes are the configured ones.
+	 * The packet size is not adapted if a receive buffer pool is used. This
+	 * method must be called before the connector is started.
+	 * 
+	 * @param adaptive <code>true</code> to enable the adaptive mode
+	 */
+	public void setAdaptiveTuning(boolean adaptive) {
+		this.adaptiveTuning = adaptive;
+	}
+	
+	public boolean isAdaptiveTuning() {
+		return adaptiveTuning;
+	}
+	
+	/**
+	 * Sets the interval in which the sizes are adjusted in adaptive mode.
+	 * 
+	 * @param millis the interval in milliseconds (default 1000)
+	 */
+	public void setTuningInterval(long millis) {
+		if (millis <= 0)
+			throw new IllegalArgumentException("Tuning interval must be positive");
+		this.tuningInterval = millis;
+	}
+	
+	public long getTuningInterval() {
+		return tuningInterval;
+	}
+	
+	/**
+	 * Sets the size up to which the socket buffers grow in adaptive mode.
+	 * 
+	 * @param size the size in bytes (default 8 MiB)
+	 */
+	public void setMaxBufferSize(int size) {
+		this.maxBufferSize = size;
+	}
+	
+	public int getMaxBufferSize() {
+		return maxBufferSize;
+	}
+	
 	public int getReceiverPacketSize() {
 		return receiverPacketSize;
 	}
 	
+	/**
+	 * Sets a pool of buffers to receive datagrams into.
+	 * 
+	 * If set, datagrams are received directly into slabs leased from the pool
+	 * and delivered as {@link PooledRawData} without any copying. The slab size
+	 * of the pool then limits the size of received datagrams instead of the
+	 * {@link #getReceiverPacketSize() receiver packet size}, less one byte
+	 * reserved to detect truncated datagrams. The registered
+	 * {@link RawDataChannel} must {@link RawData#release() release} each message
+	 * when done with it, otherwise the pool allocates new slabs over and over.
+	 * 
+	 * @param pool the pool or <code>null</code> to receive into freshly allocated arrays
+	 */
+	public void setReceiveBufferPool(BufferPool pool) {
+		this.receiveBufferPool = pool;
+	}
+	
+	public BufferPool getReceiveBufferPool() {
+		return receiveBufferPool;
+	}
+
+	/**
+	 * Sets the number of peer addresses cached by the receiver threads.
+	 * 
+	 * Messages received from a cached peer share its {@link InetSocketAddress}
+	 * instead of allocating a new one per datagram, see {@link AddressCache}.
+	 * This method must be called before the connector is started.
+	 * 
+	 * @param size the number of addresses (default
+	 *            {@link #DEFAULT_ADDRESS_CACHE_SIZE}), or 0 to disable the cache
+	 */
+	public void setAddressCacheSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("Size must not be negative");
+		this.addressCacheSize = size;
+	}
+	
+	public int getAddressCacheSize() {
+		return addressCacheSize;
+	}
+	
+	/**
+	 * Gets the cache of peer addresses.
+	 * 
+	 * @return the cache, or <code>null</code> if the connector has not been started
+	 *         or the cache is disabled
+	 */
+	public AddressCache getAddressCache() {
+		return addressCache;
+	}
+	
 	/**
 	 * Sets whether sent and received datagram packets should be logged.
 	 * 
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+
+/*
+ * Native part of org.eclipse.californium.elements.NativeUDPConnector.
+ *
+ * Moves batches of datagrams between a UDP socket and direct byte buffers
+ * using recvmmsg(2) and sendmmsg(2), i.e. with a single system call per
+ * batch. The socket is an IPv6 socket accepting IPv4 traffic as well, so all
+ * addresses are exchanged as 16 byte IPv6 addresses, IPv4 addresses being
+ * mapped to ::ffff:a.b.c.d.
+ */
+
+#define _GNU_SOURCE
+#include <jni.h>
+#include <errno.h>
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <sys/time.h>
+#include <netinet/in.h>
+
+/* must match NativeUDPConnector.MAX_BATCH_SIZE */
+#define MAX_BATCH_SIZE 256
+
+#define ADDRESS_SIZE 16
+
+static void throwIOException(JNIEnv *env, const char *operation) {
+	char message[256];
+	jclass exceptionClass;
+
+	snprintf(message, sizeof(message), "%s failed: %s", operation, strerror(errno));
+	exceptionClass = (*env)->FindClass(env, "java/io/IOException");
+	if (exceptionClass != NULL) {
+		(*env)->ThrowNew(env, exceptionClass, message);
+	}
+}
+
+JNIEXPORT jint JNICALL
+Java_org_eclipse_californium_elements_NativeUDPConnector_nativeOpen(JNIEnv *env, jclass clazz,
+		jbyteArray address, jint port, jint receiveBufferSize, jint sendBufferSize, jint receiveTimeout) {
+	struct sockaddr_in6 local;
+	struct timeval timeout;
+	int off = 0;
+	int fd;
+
+	fd = socket(AF_INET6, SOCK_DGRAM | SOCK_CLOEXEC, 0);
+	if (fd < 0) {
+		throwIOException(env, "socket");
+		return -1;
+	}
+	if (setsockopt(fd, IPPROTO_IPV6, IPV6_V6ONLY, &off, sizeof(off)) < 0) {
+		throwIOException(env, "setsockopt(IPV6_V6ONLY)");
+		goto error;
+	}
+	if (receiveBufferSize > 0
+			&& setsockopt(fd, SOL_SOCKET, SO_RCVBUF, &receiveBufferSize, sizeof(receiveBufferSize)) < 0) {
+		throwIOException(env, "setsockopt(SO_RCVBUF)");
+		goto error;
+	}
+	if (sendBufferSize > 0
+			&& setsockopt(fd, SOL_SOCKET, SO_SNDBUF, &sendBufferSize, sizeof(sendBufferSize)) < 0) {
+		throwIOException(env, "setsockopt(SO_SNDBUF)");
+		goto error;
+	}
+	/* lets the receiver check regularly whether the connector is still running */
+	timeout.tv_sec = receiveTimeout / 1000;
+	timeout.tv_usec = (receiveTimeout % 1000) * 1000;
+	if (setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, &timeout, sizeof(timeout)) < 0) {
+		throwIOException(env, "setsockopt(SO_RCVTIMEO)");
+		goto error;
+	}
+
+	memset(&local, 0, sizeof(local));
+	local.sin6_family = AF_INET6;
+	local.sin6_port = htons((unsigned short) port);
+	(*env)->GetByteArrayRegion(env, address, 0, ADDRESS_SIZE, (jbyte *) &local.sin6_addr);
+	if (bind(fd, (struct sockaddr *) &local, sizeof(local)) < 0) {
+		throwIOException(env, "bind");
+		goto error;
+	}
+	return fd;
+
+error:
+	close(fd);
+	return -1;
+}
+
+JNIEXPORT jint JNICALL
+Java_org_eclipse_californium_elements_NativeUDPConnector_nativeGetLocalPort(JNIEnv *env, jclass clazz, jint fd) {
+	struct sockaddr_in6 local;
+	socklen_t length = sizeof(local);
+
+	if (getsockname(fd, (struct sockaddr *) &local, &length) < 0) {
+		throwIOException(env, "getsockname");
+		return -1;
+	}
+	return ntohs(local.sin6_port);
+}
+
+JNIEXPORT jint JNICALL
+Java_org_eclipse_californium_elements_NativeUDPConnector_nativeGetBufferSize(JNIEnv *env, jclass clazz,
+		jint fd, jboolean receive) {
+	int size = 0;
+	socklen_t length = sizeof(size);
+
+	if (getsockopt(fd, SOL_SOCKET, receive ? SO_RCVBUF : SO_SNDBUF, &size, &length) < 0) {
+		throwIOException(env, "getsockopt");
+		return -1;
+	}
+	return size;
+}
+
+JNIEXPORT void JNICALL
+Java_org_eclipse_californium_elements_NativeUDPConnector_nativeShutdown(JNIEnv *env, jclass clazz, jint fd) {
+	/* wakes up a thread blocked in recvmmsg, errors do not matter here */
+	shutdown(fd, SHUT_RDWR);
+}
+
+JNIEXPORT void JNICALL
+Java_org_eclipse_californium_elements_NativeUDPConnector_nativeClose(JNIEnv *env, jclass clazz, jint fd) {
+	close(fd);
+}
+
+/*
+ * Receives up to count datagrams into consecutive slots of slotSize bytes of
+ * the direct buffer. Returns the number of datagrams received, 0 if the
+ * receive timeout expired. The length of a datagram truncated to the slot
+ * size is reported as slotSize + 1.
+ */
+JNIEXPORT jint JNICALL
+Java_org_eclipse_californium_elements_NativeUDPConnector_nativeReceive(JNIEnv *env, jclass clazz,
+		jint fd, jobject buffer, jint slotSize, jint count,
+		jintArray lengths, jbyteArray addresses, jintArray ports) {
+	struct mmsghdr messages[MAX_BATCH_SIZE];
+	struct iovec vectors[MAX_BATCH_SIZE];
+	struct sockaddr_in6 sources[MAX_BATCH_SIZE];
+	jint messageLengths[MAX_BATCH_SIZE];
+	jint messagePorts[MAX_BATCH_SIZE];
+	jbyte messageAddresses[MAX_BATCH_SIZE * ADDRESS_SIZE];
+	char *base;
+	int received;
+	int i;
+
+	base = (*env)->GetDirectBufferAddress(env, buffer);
+	if (base == NULL || count > MAX_BATCH_SIZE) {
+		errno = EINVAL;
+		throwIOException(env, "recvmmsg");
+		return -1;
+	}
+	memset(messages, 0, sizeof(struct mmsghdr) * count);
+	for (i = 0; i < count; i++) {
+		vectors[i].iov_base = base + (size_t) i * slotSize;
+		vectors[i].iov_len = slotSize;
+		messages[i].msg_hdr.msg_iov = &vectors[i];
+		messages[i].msg_hdr.msg_iovlen = 1;
+		messages[i].msg_hdr.msg_name = &sources[i];
+		messages[i].msg_hdr.msg_namelen = sizeof(sources[i]);
+	}
+
+	/* block for the first datagram only and take whatever else is available */
+	received = recvmmsg(fd, messages, count, MSG_WAITFORONE, NULL);
+	if (received < 0) {
+		if (errno == EAGAIN || errno == EWOULDBLOCK || errno == EINTR) {
+			return 0;
+		}
+		throwIOException(env, "recvmmsg");
+		return -1;
+	}
+
+	for (i = 0; i < received; i++) {
+		if (messages[i].msg_hdr.msg_flags & MSG_TRUNC) {
+			messageLengths[i] = slotSize + 1;
+		} else {
+			messageLengths[i] = (jint) messages[i].msg_len;
+		}
+		messagePorts[i] = ntohs(sources[i].sin6_port);
+		memcpy(&messageAddresses[i * ADDRESS_SIZE], &sources[i].sin6_addr, ADDRESS_SIZE);
+	}
+	(*env)->SetIntArrayRegion(env, lengths, 0, received, messageLengths);
+	(*env)->SetIntArrayRegion(env, ports, 0, received, messagePorts);
+	(*env)->SetByteArrayRegion(env, addresses, 0, received * ADDRESS_SIZE, messageAddresses);
+	return received;
+}
+
+/*
+ * Sends the datagrams from index to index + count - 1. Returns the number of
+ * datagrams sent. If the first of them cannot be sent, an IOException is
+ * thrown.
+ */
+JNIEXPORT jint JNICALL
+Java_org_eclipse_californium_elements_NativeUDPConnector_nativeSend(JNIEnv *env, jclass clazz,
+		jint fd, jobject buffer, jintArray offsets, jintArray lengths, jbyteArray addresses, jintArray ports,
+		jint index, jint count) {
+	struct mmsghdr messages[MAX_BATCH_SIZE];
+	struct iovec vectors[MAX_BATCH_SIZE];
+	struct sockaddr_in6 destinations[MAX_BATCH_SIZE];
+	jint messageOffsets[MAX_BATCH_SIZE];
+	jint messageLengths[MAX_BATCH_SIZE];
+	jint messagePorts[MAX_BATCH_SIZE];
+	jbyte messageAddresses[MAX_BATCH_SIZE * ADDRESS_SIZE];
+	char *base;
+	int sent;
+	int i;
+
+	base = (*env)->GetDirectBufferAddress(env, buffer);
+	if (base == NULL || count > MAX_BATCH_SIZE) {
+		errno = EINVAL;
+		throwIOException(env, "sendmmsg");
+		return -1;
+	}
+	(*env)->GetIntArrayRegion(env, offsets, index, count, messageOffsets);
+	(*env)->GetIntArrayRegion(env, lengths, index, count, messageLengths);
+	(*env)->GetIntArrayRegion(env, ports, index, count, messagePorts);
+	(*env)->GetByteArrayRegion(env, addresses, index * ADDRESS_SIZE, count * ADDRESS_SIZE, messageAddresses);
+
+	memset(messages, 0, sizeof(struct mmsghdr) * count);
+	memset(destinations, 0, sizeof(struct sockaddr_in6) * count);
+	for (i = 0; i < count; i++) {
+		destinations[i].sin6_family = AF_INET6;
+		destinations[i].sin6_port = htons((unsigned short) messagePorts[i]);
+		memcpy(&destinations[i].sin6_addr, &messageAddresses[i * ADDRESS_SIZE], ADDRESS_SIZE);
+		vectors[i].iov_base = base + messageOffsets[i];
+		vectors[i].iov_len = messageLengths[i];
+		messages[i].msg_hdr.msg_iov = &vectors[i];
+		messages[i].msg_hdr.msg_iovlen = 1;
+		messages[i].msg_hdr.msg_name = &destinations[i];
+		messages[i].msg_hdr.msg_namelen = sizeof(destinations[i]);
+	}
+
+	do {
+		sent = sendmmsg(fd, messages, count, 0);
+	} while (sent < 0 && errno == EINTR);
+	if (sent < 0) {
+		throwIOException(env, "sendmmsg");
+		return -1;
+	}
+	return sent;
+}
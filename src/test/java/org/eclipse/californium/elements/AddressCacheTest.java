@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AddressCacheTest {
+
+	private InetAddress first;
+	private InetAddress second;
+
+	@Before
+	public void setUp() throws Exception {
+		first = InetAddress.getByName("192.0.2.1");
+		second = InetAddress.getByName("192.0.2.2");
+	}
+
+	@Test
+	public void testSizeIsRoundedUpToPowerOfTwo() {
+		assertEquals(1, new AddressCache(1).getSize());
+		assertEquals(1024, new AddressCache(1000).getSize());
+	}
+
+	@Test
+	public void testHitReturnsSameInstance() {
+		AddressCache cache = new AddressCache(64);
+		InetSocketAddress address = cache.get(first, 5683);
+		assertEquals(new InetSocketAddress(first, 5683), address);
+		assertSame(address, cache.get(first, 5683));
+		// as received, each datagram carries an InetAddress of its own
+		assertSame(address, cache.get(copyOf(first), 5683));
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testMissOnOtherAddressOrPort() {
+		AddressCache cache = new AddressCache(64);
+		InetSocketAddress address = cache.get(first, 5683);
+		InetSocketAddress otherPort = cache.get(first, 5684);
+		InetSocketAddress otherAddress = cache.get(second, 5683);
+		assertEquals(new InetSocketAddress(first, 5684), otherPort);
+		assertEquals(new InetSocketAddress(second, 5683), otherAddress);
+		assertNotSame(address, otherPort);
+		assertEquals(3, cache.getMisses());
+	}
+
+	@Test
+	public void testCollisionReplacesSlot() {
+		// a single slot, so every address collides
+		AddressCache cache = new AddressCache(1);
+		InetSocketAddress address = cache.get(first, 5683);
+		assertEquals(new InetSocketAddress(second, 5683), cache.get(second, 5683));
+		InetSocketAddress again = cache.get(first, 5683);
+		assertEquals(address, again);
+		assertNotSame(address, again);
+		assertEquals(3, cache.getMisses());
+	}
+
+	@Test
+	public void testRawAddresses() throws Exception {
+		AddressCache cache = new AddressCache(64);
+		byte[] raw = {0, 0, (byte) 192, 0, 2, 1, 0};
+		InetSocketAddress address = cache.get(raw, 2, 4, 5683);
+		assertEquals(new InetSocketAddress(first, 5683), address);
+		assertSame(address, cache.get(new byte[] {(byte) 192, 0, 2, 1}, 0, 4, 5683));
+		assertEquals(1, cache.getMisses());
+
+		// IPv4-mapped IPv6 addresses are reported as IPv4 addresses
+		byte[] mapped = new byte[16];
+		mapped[10] = (byte) 0xFF;
+		mapped[11] = (byte) 0xFF;
+		System.arraycopy(second.getAddress(), 0, mapped, 12, 4);
+		InetSocketAddress v4 = cache.get(mapped, 0, 16, 5683);
+		assertTrue(v4.getAddress() instanceof Inet4Address);
+		assertEquals(second, v4.getAddress());
+	}
+
+	@Test
+	public void testClear() {
+		AddressCache cache = new AddressCache(64);
+		InetSocketAddress address = cache.get(first, 5683);
+		cache.clear();
+		assertNotSame(address, cache.get(first, 5683));
+		assertEquals(2, cache.getMisses());
+	}
+
+	private static InetAddress copyOf(InetAddress address) {
+		try {
+			return InetAddress.getByAddress(address.getAddress());
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ConnectorBaseTest {
+
+	private BlockingConnector connector;
+
+	@After
+	public void tearDown() {
+		if (connector != null) {
+			connector.stop();
+			connector.closed.countDown();
+		}
+	}
+
+	/**
+	 * A connector whose receiver threads block until its socket is closed,
+	 * as they do in a blocking read, and which does not override
+	 * {@link ConnectorBase#unblockWorkers()}.
+	 */
+	private static class BlockingConnector extends ConnectorBase {
+
+		final CountDownLatch closed = new CountDownLatch(1);
+		final CountDownLatch receiving = new CountDownLatch(1);
+		final BlockingQueue<ThreadGroup> groups = new LinkedBlockingQueue<ThreadGroup>();
+		final AtomicInteger receivers = new AtomicInteger();
+
+		BlockingConnector() {
+			super(new InetSocketAddress(0));
+			setRawDataReceiver(new RawDataChannel() {
+				public void receiveData(RawData raw) {
+				}
+			});
+		}
+
+		@Override
+		public String getName() {
+			return "Blocking";
+		}
+
+		@Override
+		protected RawData receiveNext() throws Exception {
+			receivers.incrementAndGet();
+			groups.add(Thread.currentThread().getThreadGroup());
+			receiving.countDown();
+			try {
+				// like a blocking read, ignore interrupts until the socket is
+				// closed, and take a moment to fail then
+				long end = Long.MAX_VALUE;
+				while (System.nanoTime() < end) {
+					try {
+						if (closed.await(10, TimeUnit.MILLISECONDS) && end == Long.MAX_VALUE)
+							end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+					} catch (InterruptedException e) {
+					}
+				}
+				return null;
+			} finally {
+				receivers.decrementAndGet();
+			}
+		}
+
+		@Override
+		protected void sendNext(RawData raw) {
+		}
+	}
+
+	/**
+	 * A connector that closes its socket when it stops.
+	 */
+	private static class UnblockingConnector extends BlockingConnector {
+
+		@Override
+		protected void unblockWorkers() {
+			closed.countDown();
+		}
+	}
+
+	@Test
+	public void testStopDoesNotWaitForReceiversWithoutUnblocking() throws Exception {
+		connector = new BlockingConnector();
+		connector.start();
+		assertTrue(connector.receiving.await(1, TimeUnit.SECONDS));
+		long start = System.nanoTime();
+		connector.stop();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("stopped after " + elapsed + " ms", elapsed < connector.getThreadJoinTimeout() / 2);
+	}
+
+	@Test
+	public void testStopWaitsForUnblockedReceivers() throws Exception {
+		connector = new UnblockingConnector();
+		connector.start();
+		assertTrue(connector.receiving.await(1, TimeUnit.SECONDS));
+		connector.stop();
+		// the receiver has left receiveNext()
+		assertEquals(0, connector.receivers.get());
+	}
+
+	@Test
+	public void testRestartReusesThreadGroup() throws Exception {
+		connector = new BlockingConnector();
+		connector.start();
+		ThreadGroup group = connector.groups.poll(1, TimeUnit.SECONDS);
+		connector.stop();
+		connector.start();
+		assertSame(group, connector.groups.poll(1, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectorGroupTest {
+
+	private InetAddress loopback;
+	private DatagramSocket client;
+	private ConnectorGroup group;
+	private UDPConnector first;
+	private UDPConnector second;
+	private final LinkedBlockingQueue<RawData> received = new LinkedBlockingQueue<RawData>();
+
+	@Before
+	public void setUp() throws Exception {
+		loopback = InetAddress.getByName("127.0.0.1");
+		client = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		client.setSoTimeout(1000);
+		first = new UDPConnector(new InetSocketAddress(loopback, 0));
+		second = new UDPConnector(new InetSocketAddress(loopback, 0));
+	}
+
+	@After
+	public void tearDown() {
+		if (group != null)
+			group.stop();
+		client.close();
+	}
+
+	private void startGroup(RoutingPolicy policy) throws IOException {
+		group = new ConnectorGroup(policy);
+		group.addConnector(first);
+		group.addConnector(second);
+		group.setRawDataReceiver(new RawDataChannel() {
+			public void receiveData(RawData raw) {
+				received.add(raw);
+			}
+		});
+		group.start();
+	}
+
+	private RawData toClient() {
+		return new RawData(new byte[] {1}, (InetSocketAddress) client.getLocalSocketAddress());
+	}
+
+	/**
+	 * Receives a message at the client.
+	 *
+	 * @return the port of the connector that has sent it
+	 */
+	private int receivePort() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[16], 16);
+		client.receive(packet);
+		return packet.getPort();
+	}
+
+	private void sendFromClient(UDPConnector connector) throws Exception {
+		client.send(new DatagramPacket(new byte[] {2}, 1, connector.getAddress()));
+		RawData raw = received.poll(1, TimeUnit.SECONDS);
+		assertTrue(raw != null);
+		assertEquals(client.getLocalSocketAddress(), raw.getInetSocketAddress());
+	}
+
+	@Test
+	public void testStickyRepliesViaReceivingConnector() throws Exception {
+		startGroup(new RoutingPolicy.Sticky());
+		sendFromClient(second);
+		group.send(toClient());
+		assertEquals(second.getAddress().getPort(), receivePort());
+		sendFromClient(first);
+		group.send(toClient());
+		assertEquals(first.getAddress().getPort(), receivePort());
+	}
+
+	@Test
+	public void testStickyAssignsUnknownPeerToOneConnector() throws Exception {
+		startGroup(new RoutingPolicy.Sticky());
+		group.send(toClient());
+		int port = receivePort();
+		for (int i = 0; i < 5; i++) {
+			group.send(toClient());
+			assertEquals(port, receivePort());
+		}
+	}
+
+	@Test
+	public void testRoundRobinAlternates() throws Exception {
+		startGroup(new RoutingPolicy.RoundRobin());
+		int fromFirst = 0;
+		for (int i = 0; i < 6; i++) {
+			group.send(toClient());
+		}
+		for (int i = 0; i < 6; i++) {
+			if (receivePort() == first.getAddress().getPort())
+				fromFirst++;
+		}
+		assertEquals(3, fromFirst);
+	}
+
+	@Test
+	public void testSendListSplitsBatchByConnector() throws Exception {
+		startGroup(new RoutingPolicy.RoundRobin());
+		List<RawData> batch = new ArrayList<RawData>();
+		for (int i = 0; i < 6; i++) {
+			batch.add(toClient());
+		}
+		group.send(batch);
+		int fromFirst = 0;
+		for (int i = 0; i < 6; i++) {
+			if (receivePort() == first.getAddress().getPort())
+				fromFirst++;
+		}
+		assertEquals(3, fromFirst);
+	}
+
+	/**
+	 * Binds a socket to an address a stopped connector has used.
+	 * 
+	 * A closed socket releases its port only once its receiver thread has
+	 * left a blocking receive, which may take a moment.
+	 */
+	private static DatagramSocket bind(InetSocketAddress address) throws Exception {
+		for (int attempt = 0;; attempt++) {
+			try {
+				return new DatagramSocket(address);
+			} catch (BindException e) {
+				if (attempt == 20)
+					throw e;
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * Starts a group of a connector that implements none of the optional
+	 * interfaces.
+	 * 
+	 * @param sent the list to add the messages sent via the connector to
+	 */
+	private void startPlainGroup(final List<RawData> sent) throws IOException {
+		group = new ConnectorGroup(new RoutingPolicy.RoundRobin());
+		group.addConnector(new Connector() {
+			public void start() {
+			}
+
+			public void stop() {
+			}
+
+			public void destroy() {
+			}
+
+			public void send(RawData msg) {
+				sent.add(msg);
+			}
+
+			public void setRawDataReceiver(RawDataChannel messageHandler) {
+			}
+
+			public InetSocketAddress getAddress() {
+				return null;
+			}
+		});
+		group.start();
+	}
+
+	@Test
+	public void testSendListFallsBackToSingleMessages() throws Exception {
+		List<RawData> sent = new ArrayList<RawData>();
+		startPlainGroup(sent);
+		List<RawData> batch = new ArrayList<RawData>();
+		for (int i = 0; i < 3; i++) {
+			batch.add(toClient());
+		}
+		group.send(batch);
+		assertEquals(batch, sent);
+	}
+
+	@Test
+	public void testCallbackRequiresAsyncConnector() throws Exception {
+		List<RawData> sent = new ArrayList<RawData>();
+		startPlainGroup(sent);
+		try {
+			group.send(toClient(), new SendCallback() {
+				public void sent(RawData msg) {
+				}
+
+				public void failed(RawData msg, Exception cause) {
+				}
+			});
+			fail("callback accepted by a connector that never notifies it");
+		} catch (UnsupportedOperationException expected) {
+		}
+		assertTrue(sent.isEmpty());
+	}
+
+	@Test
+	public void testFailedStartStopsStartedConnectors() throws Exception {
+		DatagramSocket probe = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		InetSocketAddress free = (InetSocketAddress) probe.getLocalSocketAddress();
+		probe.close();
+		DatagramSocket blocker = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		try {
+			first = new UDPConnector(free);
+			second = new UDPConnector((InetSocketAddress) blocker.getLocalSocketAddress());
+			try {
+				startGroup(new RoutingPolicy.RoundRobin());
+				fail("group started with a port in use");
+			} catch (IOException expected) {
+			}
+			// the first connector has released its port again
+			bind(free).close();
+		} finally {
+			blocker.close();
+		}
+	}
+}
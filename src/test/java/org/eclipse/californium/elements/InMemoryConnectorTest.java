@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InMemoryConnectorTest {
+
+	private InMemoryNetwork network;
+	private InMemoryConnector client;
+	private InMemoryConnector server;
+	private final LinkedBlockingQueue<RawData> received = new LinkedBlockingQueue<RawData>();
+
+	@Before
+	public void setUp() throws Exception {
+		network = new InMemoryNetwork();
+		InetAddress address = InetAddress.getByName("192.0.2.1");
+		client = new InMemoryConnector(network, new InetSocketAddress(address, 0));
+		server = new InMemoryConnector(network, new InetSocketAddress(address, 5683));
+		client.start();
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		client.stop();
+		server.stop();
+	}
+
+	private RawData toServer(int id) {
+		return new RawData(new byte[] {(byte) id}, server.getAddress());
+	}
+
+	private void receiveAtServer() {
+		server.setRawDataReceiver(new RawDataChannel() {
+			public void receiveData(RawData raw) {
+				received.add(raw);
+			}
+		});
+	}
+
+	@Test
+	public void testMessagesWithoutReceiverAreDropped() throws Exception {
+		final List<LogRecord> warnings = new CopyOnWriteArrayList<LogRecord>();
+		Handler handler = new Handler() {
+			public void publish(LogRecord record) {
+				if (record.getLevel().intValue() >= Level.WARNING.intValue())
+					warnings.add(record);
+			}
+
+			public void flush() {
+			}
+
+			public void close() {
+			}
+		};
+		InMemoryConnector.LOGGER.addHandler(handler);
+		try {
+			for (int i = 0; i < 3; i++) {
+				client.send(toServer(i));
+			}
+			for (int i = 0; i < 100 && server.getMetrics().getReceivedPackets() < 3; i++) {
+				Thread.sleep(10);
+			}
+		} finally {
+			InMemoryConnector.LOGGER.removeHandler(handler);
+		}
+		assertEquals(3, server.getMetrics().getReceivedPackets());
+		assertTrue(warnings.isEmpty());
+		// the receiver thread keeps on serving the connector
+		receiveAtServer();
+		client.send(toServer(3));
+		assertEquals(3, received.poll(1, TimeUnit.SECONDS).getBytes()[0]);
+		assertTrue(received.isEmpty());
+	}
+
+	@Test
+	public void testLossIsReproducibleWithSeed() throws Exception {
+		receiveAtServer();
+		network.setLossRate(0.5);
+		List<Integer> first = sendWithSeed(42);
+		List<Integer> second = sendWithSeed(42);
+		assertTrue(first.size() > 20 && first.size() < 80);
+		assertEquals(first, second);
+	}
+
+	/**
+	 * Sends 100 messages from a fresh thread after setting the seed.
+	 * 
+	 * @return the ids of the messages that have not been lost
+	 */
+	private List<Integer> sendWithSeed(long seed) throws Exception {
+		network.setSeed(seed);
+		long lost = network.getLostMessages();
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 100; i++) {
+					client.send(toServer(i));
+				}
+			}
+		});
+		sender.start();
+		sender.join(1000);
+		int expected = (int) (100 - (network.getLostMessages() - lost));
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = 0; i < expected; i++) {
+			ids.add((int) received.poll(1, TimeUnit.SECONDS).getBytes()[0]);
+		}
+		return ids;
+	}
+}
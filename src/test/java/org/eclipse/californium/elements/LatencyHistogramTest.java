@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	/**
+	 * Records a value and a larger one, so that the median reports the upper
+	 * bound of the value's bucket rather than the recorded maximum.
+	 */
+	private static long upperBoundOf(long value) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(value);
+		histogram.record(Long.MAX_VALUE);
+		return histogram.getValueAtPercentile(50);
+	}
+
+	@Test
+	public void testEmptyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		assertEquals(0, histogram.getCount());
+		assertEquals(0.0, histogram.getMean(), 0.0);
+	}
+
+	@Test
+	public void testSmallValuesAreExact() {
+		for (long value = 0; value < 16; value++) {
+			assertEquals(value, upperBoundOf(value));
+		}
+	}
+
+	@Test
+	public void testBucketBounds() {
+		// from 16 on, every power of two is split into 16 buckets
+		assertEquals(16, upperBoundOf(16));
+		assertEquals(31, upperBoundOf(31));
+		assertEquals(33, upperBoundOf(32));
+		assertEquals(33, upperBoundOf(33));
+		assertEquals(35, upperBoundOf(34));
+		assertEquals(1087, upperBoundOf(1024));
+		assertEquals(1023, upperBoundOf(1000));
+		assertEquals(Long.MAX_VALUE, upperBoundOf(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testRelativeErrorIsBounded() {
+		for (long value = 16; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+			long bound = upperBoundOf(value);
+			assertTrue(value + " -> " + bound, bound >= value);
+			assertTrue(value + " -> " + bound, bound - value <= value / 16);
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10000; i++) {
+			histogram.record(i);
+		}
+		assertEquals(10000, histogram.getCount());
+		assertEquals(5000.5, histogram.getMean(), 0.0);
+		assertEquals(10000, histogram.getMax());
+		assertEquals(1, histogram.getValueAtPercentile(0));
+		assertWithin(5000, histogram.getValueAtPercentile(50));
+		assertWithin(9900, histogram.getValueAtPercentile(99));
+		assertEquals(10000, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testNegativeValuesAndReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		assertEquals(0, histogram.getValueAtPercentile(100));
+		histogram.record(100);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(expected + " != " + actual, actual >= expected && actual - expected <= expected / 16);
+	}
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.eclipse.californium.elements.MessageFraming.CoapOverTcp;
+import org.eclipse.californium.elements.MessageFraming.LengthPrefix;
+import org.junit.Test;
+
+public class MessageFramingTest {
+
+	/**
+	 * Creates a CoAP over TCP message with a given length of options and
+	 * payload, using the shortest length encoding of RFC 8323.
+	 */
+	private static byte[] coapMessage(int length, int tokenLength) {
+		int nibble;
+		int extended;
+		long value;
+		if (length < 13) {
+			nibble = length; extended = 0; value = 0;
+		} else if (length < 269) {
+			nibble = 13; extended = 1; value = length - 13;
+		} else if (length < 65805) {
+			nibble = 14; extended = 2; value = length - 269;
+		} else {
+			nibble = 15; extended = 4; value = length - 65805L;
+		}
+		byte[] msg = new byte[1 + extended + 1 + tokenLength + length];
+		msg[0] = (byte) (nibble << 4 | tokenLength);
+		for (int i = 1; i <= extended; i++) {
+			msg[i] = (byte) (value >>> (8 * (extended - i)));
+		}
+		msg[1 + extended] = 0x45; // 2.05 Content
+		for (int i = 2 + extended; i < msg.length; i++) {
+			msg[i] = (byte) i;
+		}
+		return msg;
+	}
+
+	private static void assertDecodes(MessageFraming framing, byte[] frame, byte[] expected) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(frame);
+		assertArrayEquals(expected, framing.decode(in));
+		assertEquals(frame.length, in.position());
+	}
+
+	@Test
+	public void testCoapOverTcpLengthBoundaries() throws IOException {
+		CoapOverTcp framing = new CoapOverTcp(1 << 20);
+		int[] lengths = {0, 12, 13, 268, 269, 65804, 65805, 70000};
+		int[] nibbles = {0, 12, 13, 13, 14, 14, 15, 15};
+		for (int i = 0; i < lengths.length; i++) {
+			byte[] msg = coapMessage(lengths[i], 2);
+			assertEquals("length " + lengths[i], nibbles[i], (msg[0] & 0xFF) >>> 4);
+			assertDecodes(framing, msg, msg);
+		}
+	}
+
+	@Test
+	public void testCoapOverTcpPartialFrames() throws IOException {
+		CoapOverTcp framing = new CoapOverTcp();
+		byte[] msg = coapMessage(300, 4);
+		for (int received = 0; received < msg.length; received++) {
+			ByteBuffer in = ByteBuffer.wrap(msg, 0, received);
+			assertNull("received " + received, framing.decode(in));
+			assertEquals(0, in.position());
+		}
+		assertDecodes(framing, msg, msg);
+	}
+
+	@Test
+	public void testCoapOverTcpConsecutiveFrames() throws IOException {
+		CoapOverTcp framing = new CoapOverTcp();
+		byte[] first = coapMessage(5, 1);
+		byte[] second = coapMessage(20, 8);
+		ByteBuffer in = ByteBuffer.allocate(first.length + second.length);
+		in.put(first).put(second).flip();
+		assertArrayEquals(first, framing.decode(in));
+		assertArrayEquals(second, framing.decode(in));
+		assertNull(framing.decode(in));
+	}
+
+	@Test
+	public void testCoapOverTcpRejectsOversizeFrameFromHeader() {
+		CoapOverTcp framing = new CoapOverTcp(100);
+		byte[] msg = coapMessage(200, 0);
+		try {
+			// the header suffices to reject the frame
+			framing.decode(ByteBuffer.wrap(msg, 0, 2));
+			fail("oversize frame accepted");
+		} catch (IOException expected) {
+		}
+		assertEquals(100, framing.getMaxFrameSize());
+	}
+
+	@Test(expected = IOException.class)
+	public void testCoapOverTcpRejectsInvalidTokenLength() throws IOException {
+		byte[] msg = coapMessage(0, 0);
+		msg[0] = 0x09;
+		new CoapOverTcp().decode(ByteBuffer.wrap(msg));
+	}
+
+	@Test
+	public void testCoapOverTcpEncodesMessageAsIs() {
+		CoapOverTcp framing = new CoapOverTcp();
+		byte[] msg = coapMessage(20, 2);
+		assertEquals(msg.length, framing.getFrameSize(msg.length));
+		ByteBuffer out = ByteBuffer.allocate(framing.getFrameSize(msg.length));
+		framing.encode(new RawData(msg), out);
+		assertArrayEquals(msg, out.array());
+	}
+
+	@Test
+	public void testLengthPrefixRoundTrip() throws IOException {
+		LengthPrefix framing = new LengthPrefix();
+		int[] sizes = {0, 1, 255, 256, LengthPrefix.MAX_MESSAGE_SIZE};
+		for (int size : sizes) {
+			byte[] msg = new byte[size];
+			for (int i = 0; i < size; i++) {
+				msg[i] = (byte) i;
+			}
+			ByteBuffer out = ByteBuffer.allocate(framing.getFrameSize(size));
+			framing.encode(new RawData(msg), out);
+			assertEquals(0, out.remaining());
+			assertDecodes(framing, out.array(), msg);
+		}
+	}
+
+	@Test
+	public void testLengthPrefixPartialFrames() throws IOException {
+		LengthPrefix framing = new LengthPrefix();
+		byte[] frame = {0x01, 0x02, 0x00};
+		for (int received = 0; received < 3; received++) {
+			ByteBuffer in = ByteBuffer.wrap(frame, 0, received);
+			assertNull(framing.decode(in));
+			assertEquals(0, in.position());
+		}
+		// 258 bytes announced, 1 received
+		ByteBuffer in = ByteBuffer.wrap(frame);
+		assertNull(framing.decode(in));
+		assertEquals(0, in.position());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLengthPrefixRejectsOversizeMessage() {
+		LengthPrefix framing = new LengthPrefix();
+		framing.encode(new RawData(new byte[LengthPrefix.MAX_MESSAGE_SIZE + 1]), ByteBuffer.allocate(70000));
+	}
+}
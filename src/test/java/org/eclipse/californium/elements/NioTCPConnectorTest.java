@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioTCPConnectorTest {
+
+	private static final int MESSAGE_SIZE = 1000;
+
+	private InetAddress loopback;
+	private NioTCPConnector connector;
+	private final LinkedBlockingQueue<RawData> received = new LinkedBlockingQueue<RawData>();
+
+	@Before
+	public void setUp() throws Exception {
+		loopback = InetAddress.getByName("127.0.0.1");
+		connector = new NioTCPConnector(new InetSocketAddress(loopback, 0));
+		connector.setMessageFraming(new MessageFraming.LengthPrefix());
+		connector.setRawDataReceiver(new RawDataChannel() {
+			public void receiveData(RawData raw) {
+				received.add(raw);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		connector.stop();
+	}
+
+	/**
+	 * Counts the notifications of the callbacks of several messages.
+	 */
+	private static class Callbacks implements SendCallback {
+
+		final CountDownLatch notified;
+		final AtomicInteger sent = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+
+		Callbacks(int messages) {
+			notified = new CountDownLatch(messages);
+		}
+
+		public void sent(RawData msg) {
+			sent.incrementAndGet();
+			notified.countDown();
+		}
+
+		public void failed(RawData msg, Exception cause) {
+			assertTrue(cause instanceof IllegalStateException);
+			failed.incrementAndGet();
+			notified.countDown();
+		}
+	}
+
+	private static RawData message(int index, InetSocketAddress peer) {
+		byte[] bytes = new byte[MESSAGE_SIZE];
+		ByteBuffer.wrap(bytes).putInt(index);
+		return new RawData(bytes, peer);
+	}
+
+	/**
+	 * Reads the next length prefixed message.
+	 *
+	 * @return the index of the message
+	 */
+	private static int readMessage(DataInputStream in) throws Exception {
+		assertEquals(MESSAGE_SIZE, in.readUnsignedShort());
+		byte[] bytes = new byte[MESSAGE_SIZE];
+		in.readFully(bytes);
+		return ByteBuffer.wrap(bytes).getInt();
+	}
+
+	/**
+	 * Creates a peer that does not read until told to, so that the
+	 * connector's writes to it soon remain partial.
+	 */
+	private static ServerSocket slowPeer() throws Exception {
+		ServerSocket server = new ServerSocket();
+		server.setReceiveBufferSize(4096);
+		server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		return server;
+	}
+
+	@Test
+	public void testFramesSplitAcrossReads() throws Exception {
+		connector.start();
+		Socket socket = new Socket(loopback, connector.getAddress().getPort());
+		try {
+			socket.setTcpNoDelay(true);
+			OutputStream out = socket.getOutputStream();
+			byte[] frames = {0, 5, 'h', 'e', 'l', 'l', 'o', 0, 5, 'w', 'o', 'r', 'l', 'd'};
+			int[] splits = {3, 7, 8, 14};
+			int start = 0;
+			for (int split : splits) {
+				out.write(frames, start, split - start);
+				out.flush();
+				start = split;
+				Thread.sleep(50);
+			}
+			RawData first = received.poll(1, TimeUnit.SECONDS);
+			RawData second = received.poll(1, TimeUnit.SECONDS);
+			assertArrayEquals("hello".getBytes(), first.getBytes());
+			assertArrayEquals("world".getBytes(), second.getBytes());
+			assertEquals(socket.getLocalSocketAddress(), first.getInetSocketAddress());
+			assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testReplyUsesAcceptedConnection() throws Exception {
+		connector.start();
+		Socket socket = new Socket(loopback, connector.getAddress().getPort());
+		try {
+			socket.getOutputStream().write(new byte[] {0, 2, 'h', 'i'});
+			RawData request = received.poll(1, TimeUnit.SECONDS);
+			connector.send(message(7, request.getInetSocketAddress()));
+			socket.setSoTimeout(1000);
+			assertEquals(7, readMessage(new DataInputStream(socket.getInputStream())));
+			assertEquals(1, connector.getConnectionCount());
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testRepliesFromReceiverDoNotBlockOnFullQueue() throws Exception {
+		final int replies = 5;
+		final Callbacks callbacks = new Callbacks(replies);
+		connector.setOutgoingCapacity(1);
+		connector.setOverflowPolicy(OverflowPolicy.BLOCK);
+		connector.setRawDataReceiver(new RawDataChannel() {
+			public void receiveData(RawData raw) {
+				// the selector thread cannot flush the queue while it is here
+				for (int i = 0; i < replies; i++) {
+					connector.send(message(i, raw.getInetSocketAddress()), callbacks);
+				}
+			}
+		});
+		connector.start();
+		Socket socket = new Socket(loopback, connector.getAddress().getPort());
+		try {
+			socket.getOutputStream().write(new byte[] {0, 2, 'h', 'i'});
+			assertTrue(callbacks.notified.await(1, TimeUnit.SECONDS));
+			assertEquals(replies - 1, callbacks.failed.get());
+			socket.setSoTimeout(1000);
+			assertEquals(0, readMessage(new DataInputStream(socket.getInputStream())));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testPartialWritesKeepOrder() throws Exception {
+		int count = 300;
+		connector.setSendBufferSize(4096);
+		connector.start();
+		ServerSocket server = slowPeer();
+		try {
+			InetSocketAddress peer = (InetSocketAddress) server.getLocalSocketAddress();
+			Callbacks callbacks = new Callbacks(count);
+			for (int i = 0; i < count; i++) {
+				connector.send(message(i, peer), callbacks);
+			}
+			Socket socket = server.accept();
+			socket.setSoTimeout(5000);
+			// let the socket buffers fill up before reading
+			Thread.sleep(200);
+			assertTrue(callbacks.sent.get() < count);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			for (int i = 0; i < count; i++) {
+				assertEquals(i, readMessage(in));
+			}
+			assertTrue(callbacks.notified.await(1, TimeUnit.SECONDS));
+			assertEquals(count, callbacks.sent.get());
+			socket.close();
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testConnectionBacklogOverflowFailsMessages() throws Exception {
+		int count = 300;
+		connector.setSendBufferSize(4096);
+		connector.setMaxPendingMessages(10);
+		connector.start();
+		ServerSocket server = slowPeer();
+		try {
+			InetSocketAddress peer = (InetSocketAddress) server.getLocalSocketAddress();
+			Callbacks callbacks = new Callbacks(count);
+			for (int i = 0; i < count; i++) {
+				connector.send(message(i, peer), callbacks);
+			}
+			Socket socket = server.accept();
+			socket.setSoTimeout(5000);
+			Thread.sleep(200);
+			int failed = callbacks.failed.get();
+			assertTrue(failed > 0);
+			assertEquals(failed, connector.getMetrics().getDroppedMessages());
+			// the messages kept are written completely and in order
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			int last = -1;
+			for (int i = 0; i < count - failed; i++) {
+				int index = readMessage(in);
+				assertTrue(index > last);
+				last = index;
+			}
+			assertTrue(callbacks.notified.await(1, TimeUnit.SECONDS));
+			assertEquals(count - failed, callbacks.sent.get());
+			socket.close();
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testIdleConnectionIsClosed() throws Exception {
+		connector.setIdleTimeout(200);
+		connector.start();
+		Socket socket = new Socket(loopback, connector.getAddress().getPort());
+		try {
+			socket.setSoTimeout(3000);
+			long start = System.nanoTime();
+			assertEquals(-1, socket.getInputStream().read());
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue("closed after " + elapsed + " ms", elapsed >= 150);
+			assertEquals(0, connector.getConnectionCount());
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioUDPConnectorTest {
+
+	private DatagramSocket peer;
+	private NioUDPConnector connector;
+	private final LinkedBlockingQueue<RawData> received = new LinkedBlockingQueue<RawData>();
+
+	@Before
+	public void setUp() throws Exception {
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		peer = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		peer.setSoTimeout(1000);
+		connector = new NioUDPConnector(new InetSocketAddress(loopback, 0));
+		connector.setRawDataReceiver(new RawDataChannel() {
+			public void receiveData(RawData raw) {
+				received.add(raw);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		connector.stop();
+		peer.close();
+	}
+
+	@Test
+	public void testOversizeDatagramIsNotDelivered() throws Exception {
+		final LinkedBlockingQueue<RawData> truncated = new LinkedBlockingQueue<RawData>();
+		connector.setTruncatedMessageHandler(new TruncatedMessageHandler() {
+			public void truncated(RawData msg) {
+				truncated.add(msg);
+			}
+		});
+		connector.setReceiverPacketSize(8);
+		connector.start();
+		byte[] oversize = new byte[20];
+		for (int i = 0; i < oversize.length; i++) {
+			oversize[i] = (byte) i;
+		}
+		peer.send(new DatagramPacket(oversize, oversize.length, connector.getAddress()));
+		peer.send(new DatagramPacket(new byte[8], 8, connector.getAddress()));
+		RawData msg = truncated.poll(1, TimeUnit.SECONDS);
+		assertArrayEquals(Arrays.copyOf(oversize, 8), msg.getBytes());
+		assertEquals(peer.getLocalSocketAddress(), msg.getInetSocketAddress());
+		// only the datagram that fits is delivered
+		assertEquals(8, received.poll(1, TimeUnit.SECONDS).getBytes().length);
+		assertTrue(received.isEmpty());
+		assertEquals(1, connector.getMetrics().getTruncatedPackets());
+	}
+
+	@Test
+	public void testPacketSizeCannotChangeWhileRunning() throws Exception {
+		connector.setReceiverPacketSize(8);
+		connector.start();
+		try {
+			connector.setReceiverPacketSize(32);
+			fail("packet size changed while the receive buffer is in use");
+		} catch (IllegalStateException expected) {
+		}
+		assertEquals(8, connector.getReceiverPacketSize());
+		connector.stop();
+		// the receive buffer is allocated anew on start
+		connector.setReceiverPacketSize(32);
+		connector.start();
+		peer.send(new DatagramPacket(new byte[32], 32, connector.getAddress()));
+		assertEquals(32, received.poll(1, TimeUnit.SECONDS).getBytes().length);
+	}
+
+	@Test
+	public void testRepliesFromReceiverDoNotBlockOnFullQueue() throws Exception {
+		final int replies = 5;
+		final CountDownLatch handled = new CountDownLatch(1);
+		final AtomicInteger failed = new AtomicInteger();
+		final SendCallback callback = new SendCallback() {
+			public void sent(RawData msg) {
+			}
+
+			public void failed(RawData msg, Exception cause) {
+				assertTrue(cause instanceof IllegalStateException);
+				failed.incrementAndGet();
+			}
+		};
+		connector.setOutgoingCapacity(1);
+		connector.setOverflowPolicy(OverflowPolicy.BLOCK);
+		connector.setRawDataReceiver(new RawDataChannel() {
+			public void receiveData(RawData raw) {
+				// the selector thread cannot flush the queue while it is here
+				for (int i = 0; i < replies; i++) {
+					connector.send(new RawData(new byte[] {(byte) i}, raw.getInetSocketAddress()), callback);
+				}
+				handled.countDown();
+			}
+		});
+		connector.start();
+		peer.send(new DatagramPacket(new byte[1], 1, connector.getAddress()));
+		assertTrue(handled.await(1, TimeUnit.SECONDS));
+		assertEquals(replies - 1, failed.get());
+		assertEquals(replies - 1, connector.getMetrics().getDroppedMessages());
+		DatagramPacket packet = new DatagramPacket(new byte[16], 16);
+		peer.receive(packet);
+		assertEquals(0, packet.getData()[0]);
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PeerRateLimiterTest {
+
+	private InetAddress peer;
+
+	@Before
+	public void setUp() throws Exception {
+		peer = InetAddress.getByName("192.0.2.1");
+	}
+
+	@Test
+	public void testBurstThenRejectThenRefill() throws Exception {
+		// one token every 100 ms
+		PeerRateLimiter limiter = new PeerRateLimiter(10, 5, 64);
+		for (int i = 0; i < 5; i++) {
+			assertTrue("datagram " + i, limiter.tryAcquire(peer, 5683));
+		}
+		assertFalse(limiter.tryAcquire(peer, 5683));
+		assertFalse(limiter.tryAcquire(peer, 5683));
+		assertEquals(5, limiter.getAdmitted());
+		assertEquals(2, limiter.getRejected());
+
+		Thread.sleep(250);
+		assertTrue(limiter.tryAcquire(peer, 5683));
+		assertTrue(limiter.tryAcquire(peer, 5683));
+		// the bucket refills at the rate, not up to the burst at once
+		boolean rejected = false;
+		for (int i = 0; i < 5 && !rejected; i++) {
+			rejected = !limiter.tryAcquire(peer, 5683);
+		}
+		assertTrue(rejected);
+	}
+
+	@Test
+	public void testPeersHaveBucketsOfTheirOwn() throws Exception {
+		PeerRateLimiter limiter = new PeerRateLimiter(1, 1, 64);
+		assertTrue(limiter.tryAcquire(peer, 5683));
+		assertFalse(limiter.tryAcquire(peer, 5683));
+		assertTrue(limiter.tryAcquire(peer, 5684));
+		assertTrue(limiter.tryAcquire(InetAddress.getByName("192.0.2.2"), 5683));
+		assertEquals(3, limiter.getPeerCount());
+	}
+
+	@Test
+	public void testNumberOfPeersIsBounded() throws Exception {
+		PeerRateLimiter limiter = new PeerRateLimiter(1, 1, 32);
+		for (int port = 1; port <= 1000; port++) {
+			assertTrue(limiter.tryAcquire(peer, port));
+		}
+		assertTrue(limiter.getPeerCount() <= 32);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsNonPositiveBurst() {
+		new PeerRateLimiter(10, 0, 64);
+	}
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PriorityLaneQueueTest {
+
+	private static RawData message(String name, int priority) {
+		RawData msg = new RawData(name.getBytes());
+		msg.setPriority(priority);
+		return msg;
+	}
+
+	private static String next(PriorityLaneQueue queue) {
+		RawData msg = queue.poll();
+		return msg == null ? null : new String(msg.getBytes());
+	}
+
+	@Test
+	public void testStrictServesHigherLanesFirst() {
+		PriorityLaneQueue queue = new PriorityLaneQueue(3, 4);
+		queue.offer(message("c0", 2));
+		queue.offer(message("b0", 1));
+		queue.offer(message("a0", 0));
+		queue.offer(message("b1", 1));
+		queue.offer(message("a1", 0));
+		assertFalse(queue.isWeighted());
+		assertEquals("a0", next(queue));
+		assertEquals("a1", next(queue));
+		assertEquals("b0", next(queue));
+		queue.offer(message("a2", 0));
+		assertEquals("a2", next(queue));
+		assertEquals("b1", next(queue));
+		assertEquals("c0", next(queue));
+		assertNull(next(queue));
+	}
+
+	@Test
+	public void testPrioritiesBeyondLastLaneUseLastLane() {
+		PriorityLaneQueue queue = new PriorityLaneQueue(2, 4);
+		queue.offer(message("x", 7));
+		assertArrayEquals(new int[] {0, 1}, queue.getLaneSizes());
+	}
+
+	@Test
+	public void testWeightedLanesTakeTurns() {
+		PriorityLaneQueue queue = new PriorityLaneQueue(new int[] {2, 1}, 4);
+		for (int i = 0; i < 4; i++) {
+			queue.offer(message("b" + i, 1));
+		}
+		for (int i = 0; i < 4; i++) {
+			queue.offer(message("a" + i, 0));
+		}
+		assertTrue(queue.isWeighted());
+		String[] expected = {"a0", "a1", "b0", "a2", "a3", "b1", "b2", "b3"};
+		for (String name : expected) {
+			assertEquals(name, next(queue));
+		}
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testLanesHaveCapacitiesOfTheirOwn() {
+		PriorityLaneQueue queue = new PriorityLaneQueue(2, 2);
+		assertTrue(queue.offer(message("b0", 1)));
+		assertTrue(queue.offer(message("b1", 1)));
+		assertFalse(queue.offer(message("b2", 1)));
+		assertTrue(queue.offer(message("a0", 0)));
+		assertEquals(3, queue.size());
+		assertEquals(1, queue.remainingCapacity());
+	}
+
+	@Test
+	public void testEvictingOldestOnlyEvictsOwnLane() {
+		PriorityLaneQueue queue = new PriorityLaneQueue(2, 2);
+		RawData a0 = message("a0", 0);
+		queue.offer(a0);
+		queue.offer(message("a1", 0));
+		queue.offer(message("b0", 1));
+		assertNull(queue.offerEvictingOldest(message("b1", 1)));
+		RawData evicted = queue.offerEvictingOldest(message("b2", 1));
+		assertEquals("b0", new String(evicted.getBytes()));
+		assertArrayEquals(new int[] {2, 2}, queue.getLaneSizes());
+		assertSame(a0, queue.offerEvictingOldest(message("a2", 0)));
+		assertEquals("a1", next(queue));
+		assertEquals("a2", next(queue));
+		assertEquals("b1", next(queue));
+		assertEquals("b2", next(queue));
+	}
+
+	@Test
+	public void testPutBlocksUntilItsLaneHasRoom() throws Exception {
+		final PriorityLaneQueue queue = new PriorityLaneQueue(2, 1);
+		queue.put(message("b0", 1));
+		queue.put(message("a0", 0));
+		final CountDownLatch added = new CountDownLatch(1);
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					queue.put(message("b1", 1));
+					added.countDown();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		producer.start();
+		assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+		// room in another lane does not release the producer
+		assertEquals("a0", next(queue));
+		assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+		assertEquals("b0", next(queue));
+		assertTrue(added.await(1, TimeUnit.SECONDS));
+		assertEquals("b1", next(queue));
+		producer.join(1000);
+	}
+
+	@Test
+	public void testTakeBlocksUntilMessageArrives() throws Exception {
+		final PriorityLaneQueue queue = new PriorityLaneQueue(2, 1);
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+		assertTrue(queue.offer(message("x", 0), 10, TimeUnit.MILLISECONDS));
+		assertFalse(queue.offer(message("y", 0), 10, TimeUnit.MILLISECONDS));
+		queue.clear();
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+					queue.put(message("late", 1));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}).start();
+		assertEquals("late", new String(queue.take().getBytes()));
+	}
+}
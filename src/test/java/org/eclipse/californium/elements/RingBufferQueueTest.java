@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.californium.elements.RingBufferQueue.WaitStrategy;
+import org.junit.Test;
+
+public class RingBufferQueueTest {
+
+	@Test
+	public void testCapacityIsRoundedUpToPowerOfTwo() {
+		assertEquals(2, new RingBufferQueue<Integer>(1).getCapacity());
+		assertEquals(8, new RingBufferQueue<Integer>(5).getCapacity());
+		assertEquals(8, new RingBufferQueue<Integer>(8).getCapacity());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsNonPositiveCapacity() {
+		new RingBufferQueue<Integer>(0);
+	}
+
+	@Test
+	public void testEmptyAndFull() {
+		RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(4);
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+		assertNull(queue.peek());
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertEquals(4, queue.size());
+		assertEquals(0, queue.remainingCapacity());
+		assertFalse(queue.offer(4));
+		assertEquals(Integer.valueOf(0), queue.poll());
+		assertTrue(queue.offer(4));
+		assertFalse(queue.offer(5));
+	}
+
+	@Test
+	public void testWrapsAroundInOrder() {
+		RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(4);
+		int next = 0;
+		for (int i = 0; i < 100; i++) {
+			// leave the queue partly filled so positions cross the end of the buffer
+			assertTrue(queue.offer(i));
+			if (i % 3 != 0) {
+				assertEquals(Integer.valueOf(next++), queue.poll());
+			}
+			assertTrue(queue.size() <= 4);
+			if (queue.remainingCapacity() == 0) {
+				while (!queue.isEmpty()) {
+					assertEquals(Integer.valueOf(next++), queue.poll());
+				}
+			}
+		}
+		while (!queue.isEmpty()) {
+			assertEquals(Integer.valueOf(next++), queue.poll());
+		}
+		assertEquals(100, next);
+	}
+
+	@Test
+	public void testDrainTo() {
+		RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(8);
+		for (int i = 0; i < 6; i++) {
+			queue.offer(i);
+		}
+		List<Integer> drained = new ArrayList<Integer>();
+		assertEquals(4, queue.drainTo(drained, 4));
+		assertEquals(2, queue.drainTo(drained));
+		assertEquals(6, drained.size());
+		for (int i = 0; i < 6; i++) {
+			assertEquals(Integer.valueOf(i), drained.get(i));
+		}
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testTimedOperationsTimeOut() throws Exception {
+		RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(2);
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+		queue.put(1);
+		queue.put(2);
+		assertFalse(queue.offer(3, 10, TimeUnit.MILLISECONDS));
+		assertEquals(Integer.valueOf(1), queue.poll(10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testIdleParkingConsumerWakesUpPromptly() throws Exception {
+		final RingBufferQueue<Long> queue = new RingBufferQueue<Long>(4, WaitStrategy.PARK);
+		final AtomicLong latency = new AtomicLong(-1);
+		Thread consumer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					long offered = queue.take();
+					latency.set(System.nanoTime() - offered);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		consumer.start();
+		// let the consumer back off to the longest park interval
+		Thread.sleep(200);
+		queue.offer(System.nanoTime());
+		consumer.join(1000);
+		assertTrue(latency.get() >= 0);
+		assertTrue(latency.get() < TimeUnit.MILLISECONDS.toNanos(50));
+	}
+
+	@Test
+	public void testSingleSlotIsNotOverwritten() {
+		RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(1);
+		for (int i = 0; i < queue.getCapacity(); i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertFalse(queue.offer(-1));
+		assertEquals(Integer.valueOf(0), queue.poll());
+	}
+
+	@Test
+	public void testMultipleProducersAndConsumers() throws Exception {
+		testMultipleProducersAndConsumers(WaitStrategy.PARK);
+		testMultipleProducersAndConsumers(WaitStrategy.YIELD);
+		// spinning threads only make progress with a core each
+		if (Runtime.getRuntime().availableProcessors() > 8) {
+			testMultipleProducersAndConsumers(WaitStrategy.SPIN);
+		}
+	}
+
+	/**
+	 * Passes distinct elements from several producers to several consumers
+	 * through a small queue and checks that each is received exactly once.
+	 */
+	private void testMultipleProducersAndConsumers(WaitStrategy strategy) throws Exception {
+		final int producers = 4;
+		final int consumers = 4;
+		final int perProducer = 20000;
+		final RingBufferQueue<Long> queue = new RingBufferQueue<Long>(16, strategy);
+		final AtomicLong sum = new AtomicLong();
+		final AtomicLong count = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(producers + consumers);
+		for (int p = 0; p < producers; p++) {
+			final long base = (long) p * perProducer;
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 1; i <= perProducer; i++) {
+							queue.put(base + i);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		final int total = producers * perProducer;
+		for (int c = 0; c < consumers; c++) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (count.get() < total) {
+							Long value = queue.poll(10, TimeUnit.MILLISECONDS);
+							if (value != null) {
+								sum.addAndGet(value);
+								count.incrementAndGet();
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		assertTrue(strategy + " timed out", done.await(30, TimeUnit.SECONDS));
+		long n = total;
+		assertEquals(total, count.get());
+		assertEquals(n * (n + 1) / 2, sum.get());
+		assertTrue(queue.isEmpty());
+	}
+}
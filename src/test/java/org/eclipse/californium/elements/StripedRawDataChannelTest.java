@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StripedRawDataChannelTest {
+
+	private static final int PRODUCERS = 4;
+	private static final int PEERS_PER_PRODUCER = 8;
+	private static final int MESSAGES_PER_PEER = 500;
+
+	private StripedRawDataChannel dispatcher;
+
+	@After
+	public void tearDown() {
+		if (dispatcher != null)
+			dispatcher.stop();
+	}
+
+	private static RawData message(InetSocketAddress peer, int sequence) {
+		return new RawData(ByteBuffer.allocate(4).putInt(sequence).array(), peer);
+	}
+
+	private static int sequenceOf(RawData msg) {
+		return ByteBuffer.wrap(msg.getBytes()).getInt();
+	}
+
+	/**
+	 * Records the sequence numbers received from each peer.
+	 */
+	private static class Recorder implements RawDataChannel {
+
+		final Map<InetSocketAddress, List<Integer>> received = new ConcurrentHashMap<InetSocketAddress, List<Integer>>();
+		final CountDownLatch done;
+
+		Recorder(int expected) {
+			done = new CountDownLatch(expected);
+		}
+
+		public void receiveData(RawData msg) {
+			List<Integer> sequences = received.get(msg.getInetSocketAddress());
+			if (sequences == null) {
+				// only the worker of the peer's stripe adds to its list
+				sequences = new ArrayList<Integer>();
+				received.put(msg.getInetSocketAddress(), sequences);
+			}
+			sequences.add(sequenceOf(msg));
+			done.countDown();
+		}
+	}
+
+	private static class BatchRecorder extends Recorder implements BatchRawDataChannel {
+
+		BatchRecorder(int expected) {
+			super(expected);
+		}
+
+		public void receiveData(List<RawData> batch) {
+			for (RawData msg : batch) {
+				receiveData(msg);
+			}
+		}
+	}
+
+	@Test
+	public void testMessagesOfPeerKeepOrder() throws Exception {
+		Recorder recorder = new Recorder(PRODUCERS * PEERS_PER_PRODUCER * MESSAGES_PER_PEER);
+		dispatchConcurrently(recorder);
+	}
+
+	@Test
+	public void testBatchChannelMessagesOfPeerKeepOrder() throws Exception {
+		Recorder recorder = new BatchRecorder(PRODUCERS * PEERS_PER_PRODUCER * MESSAGES_PER_PEER);
+		dispatchConcurrently(recorder);
+	}
+
+	/**
+	 * Dispatches the messages of several peers from several threads, as
+	 * receiver threads of a connector do, and checks that every peer's
+	 * messages are processed completely and in order.
+	 */
+	private void dispatchConcurrently(Recorder recorder) throws Exception {
+		dispatcher = new StripedRawDataChannel(recorder, 4, 100000);
+		dispatcher.start();
+		final InetAddress address = InetAddress.getByName("192.0.2.1");
+		Thread[] producers = new Thread[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int firstPort = 5683 + p * PEERS_PER_PRODUCER;
+			producers[p] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < MESSAGES_PER_PEER; i++) {
+						for (int port = firstPort; port < firstPort + PEERS_PER_PRODUCER; port++) {
+							dispatcher.receiveData(message(new InetSocketAddress(address, port), i));
+						}
+					}
+				}
+			});
+			producers[p].start();
+		}
+		assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, dispatcher.getDroppedMessages());
+		assertEquals(PRODUCERS * PEERS_PER_PRODUCER, recorder.received.size());
+		for (Map.Entry<InetSocketAddress, List<Integer>> entry : recorder.received.entrySet()) {
+			List<Integer> sequences = entry.getValue();
+			assertEquals(MESSAGES_PER_PEER, sequences.size());
+			for (int i = 0; i < sequences.size(); i++) {
+				assertEquals(entry.getKey().toString(), Integer.valueOf(i), sequences.get(i));
+			}
+		}
+		for (Thread producer : producers) {
+			producer.join(1000);
+		}
+	}
+
+	@Test
+	public void testFullStripeDropsMessages() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Recorder recorder = new Recorder(3) {
+			@Override
+			public void receiveData(RawData msg) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.receiveData(msg);
+			}
+		};
+		dispatcher = new StripedRawDataChannel(recorder, 1, 2);
+		dispatcher.start();
+		InetSocketAddress peer = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 5683);
+		dispatcher.receiveData(message(peer, 0));
+		// the worker holds the first message, the stripe takes two more
+		assertTrue(entered.await(1, TimeUnit.SECONDS));
+		dispatcher.receiveData(message(peer, 1));
+		dispatcher.receiveData(message(peer, 2));
+		dispatcher.receiveData(message(peer, 3));
+		assertEquals(1, dispatcher.getDroppedMessages());
+		assertEquals(2, dispatcher.getQueueSize());
+		release.countDown();
+		assertTrue(recorder.done.await(1, TimeUnit.SECONDS));
+		List<Integer> sequences = recorder.received.get(peer);
+		assertEquals(3, sequences.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(Integer.valueOf(i), sequences.get(i));
+		}
+	}
+
+	@Test
+	public void testStopWaitsForWorkers() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final AtomicBoolean finished = new AtomicBoolean();
+		dispatcher = new StripedRawDataChannel(new RawDataChannel() {
+			public void receiveData(RawData msg) {
+				entered.countDown();
+				// a channel that does not react to being interrupted
+				long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+				while (System.nanoTime() < end) {
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {
+					}
+				}
+				finished.set(true);
+			}
+		}, 1, 2);
+		dispatcher.start();
+		dispatcher.receiveData(message(new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 5683), 0));
+		assertTrue(entered.await(1, TimeUnit.SECONDS));
+		dispatcher.stop();
+		assertTrue(finished.get());
+	}
+}
@@ -0,0 +1,317 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Institute for Pervasive Computing, ETH Zurich - initial implementation
+ ******************************************************************************/
+package org.eclipse.californium.elements;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UDPConnectorTest {
+
+	private InetAddress loopback;
+	private DatagramSocket peer;
+	private UDPConnector connector;
+
+	@Before
+	public void setUp() throws Exception {
+		loopback = InetAddress.getByName("127.0.0.1");
+		peer = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		peer.setSoTimeout(1000);
+		connector = new UDPConnector(new InetSocketAddress(loopback, 0));
+	}
+
+	@After
+	public void tearDown() {
+		connector.stop();
+		peer.close();
+	}
+
+	/**
+	 * Records the notifications of a message's callback.
+	 */
+	private static class Callback implements SendCallback {
+
+		final CountDownLatch notified = new CountDownLatch(1);
+		volatile int sent;
+		volatile int failed;
+		volatile Exception cause;
+
+		public void sent(RawData msg) {
+			sent++;
+			notified.countDown();
+		}
+
+		public void failed(RawData msg, Exception cause) {
+			failed++;
+			this.cause = cause;
+			notified.countDown();
+		}
+
+		void await() throws InterruptedException {
+			assertTrue(notified.await(1, TimeUnit.SECONDS));
+			// a second notification would come right after the first
+			Thread.sleep(20);
+			assertEquals(1, sent + failed);
+		}
+	}
+
+	private RawData message(int id) {
+		return new RawData(new byte[] {(byte) id}, (InetSocketAddress) peer.getLocalSocketAddress());
+	}
+
+	/**
+	 * Receives a message sent to the peer.
+	 *
+	 * @return the id of the message, or -1 if none has been received in time
+	 */
+	private int receive() throws Exception {
+		DatagramPacket packet = new DatagramPacket(new byte[16], 16);
+		try {
+			peer.receive(packet);
+		} catch (SocketTimeoutException e) {
+			return -1;
+		}
+		return packet.getData()[0];
+	}
+
+	/**
+	 * Starts the connector and checks that exactly the given messages are
+	 * sent to the peer.
+	 */
+	private void assertSent(int... ids) throws Exception {
+		connector.start();
+		for (int id : ids) {
+			assertEquals(id, receive());
+		}
+		peer.setSoTimeout(100);
+		assertEquals(-1, receive());
+	}
+
+	@Test
+	public void testDropNewestKeepsQueuedMessages() throws Exception {
+		connector.setOutgoingCapacity(2);
+		connector.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+		connector.send(message(1));
+		connector.send(message(2));
+		connector.send(message(3));
+		assertEquals(2, connector.getOutgoingQueueSize());
+		assertSent(1, 2);
+	}
+
+	@Test
+	public void testDropOldestMakesRoom() throws Exception {
+		connector.setOutgoingCapacity(2);
+		connector.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		connector.send(message(1));
+		connector.send(message(2));
+		connector.send(message(3));
+		assertEquals(2, connector.getOutgoingQueueSize());
+		assertSent(2, 3);
+	}
+
+	@Test
+	public void testRejectHandsMessageToHandler() throws Exception {
+		final List<RawData> rejected = new CopyOnWriteArrayList<RawData>();
+		connector.setOutgoingCapacity(2);
+		connector.setOverflowPolicy(OverflowPolicy.REJECT);
+		connector.setRejectedMessageHandler(new RejectedMessageHandler() {
+			public void rejected(RawData msg) {
+				rejected.add(msg);
+			}
+		});
+		RawData third = message(3);
+		connector.send(message(1));
+		connector.send(message(2));
+		connector.send(third);
+		assertEquals(1, rejected.size());
+		assertTrue(rejected.get(0) == third);
+		assertSent(1, 2);
+	}
+
+	@Test
+	public void testRejectWithoutHandlerFails() throws Exception {
+		connector.setOutgoingCapacity(1);
+		connector.setOverflowPolicy(OverflowPolicy.REJECT);
+		connector.send(message(1));
+		Callback callback = new Callback();
+		try {
+			connector.send(message(2), callback);
+			fail("message to a full queue accepted");
+		} catch (IllegalStateException expected) {
+		}
+		assertSent(1);
+		// a message that send has not accepted is not notified
+		assertEquals(1, callback.notified.getCount());
+	}
+
+	@Test
+	public void testBlockWaitsForRoom() throws Exception {
+		connector.setOutgoingCapacity(1);
+		connector.send(message(1));
+		final CountDownLatch queued = new CountDownLatch(1);
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				connector.send(message(2));
+				queued.countDown();
+			}
+		});
+		sender.start();
+		assertFalse(queued.await(100, TimeUnit.MILLISECONDS));
+		connector.start();
+		assertTrue(queued.await(1, TimeUnit.SECONDS));
+		assertEquals(1, receive());
+		assertEquals(2, receive());
+		sender.join(1000);
+	}
+
+	@Test
+	public void testExpiredMessagesAreNotSent() throws Exception {
+		final List<RawData> expired = new CopyOnWriteArrayList<RawData>();
+		connector.setExpiredMessageHandler(new ExpiredMessageHandler() {
+			public void expired(RawData msg) {
+				expired.add(msg);
+			}
+		});
+		RawData late = message(1);
+		late.setSendDeadline(System.nanoTime() - 1);
+		RawData expiring = message(2);
+		expiring.setSendTimeout(50);
+		RawData timely = message(3);
+		timely.setSendTimeout(10000);
+		connector.send(late);
+		connector.send(expiring);
+		connector.send(timely);
+		connector.send(message(4));
+		Thread.sleep(100);
+		assertSent(3, 4);
+		assertEquals(2, expired.size());
+		assertTrue(expired.get(0) == late);
+		assertTrue(expired.get(1) == expiring);
+		assertEquals(2, connector.getMetrics().getExpiredMessages());
+	}
+
+	@Test
+	public void testCallbackNotifiedWhenSent() throws Exception {
+		connector.start();
+		Callback callback = new Callback();
+		connector.send(message(1), callback);
+		callback.await();
+		assertEquals(1, callback.sent);
+		assertEquals(1, receive());
+	}
+
+	@Test
+	public void testCallbackNotifiedOfDroppedMessages() throws Exception {
+		connector.setOutgoingCapacity(1);
+		connector.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+		connector.send(message(1));
+		Callback newest = new Callback();
+		connector.send(message(2), newest);
+		newest.await();
+		assertTrue(newest.cause instanceof IllegalStateException);
+
+		connector.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		Callback oldest = new Callback();
+		connector.send(message(3), oldest);
+		Callback kept = new Callback();
+		connector.send(message(4), kept);
+		oldest.await();
+		assertTrue(oldest.cause instanceof IllegalStateException);
+		assertEquals(1, kept.notified.getCount());
+		assertSent(4);
+		kept.await();
+		assertEquals(1, kept.sent);
+	}
+
+	@Test
+	public void testCallbackNotifiedOfInterruptedSend() throws Exception {
+		connector.setOutgoingCapacity(1);
+		connector.send(message(1));
+		Callback callback = new Callback();
+		Thread.currentThread().interrupt();
+		try {
+			connector.send(message(2), callback);
+			assertTrue(Thread.interrupted());
+		} finally {
+			Thread.interrupted();
+		}
+		callback.await();
+		assertTrue(callback.cause instanceof InterruptedIOException);
+		assertSent(1);
+	}
+
+	@Test
+	public void testCallbackNotifiedOfExpiredMessage() throws Exception {
+		Callback callback = new Callback();
+		RawData late = message(1);
+		late.setSendDeadline(System.nanoTime() - 1);
+		connector.send(late, callback);
+		connector.start();
+		callback.await();
+		assertTrue(callback.cause instanceof TimeoutException);
+	}
+
+	@Test
+	public void testOversizeDatagramIsNotDelivered() throws Exception {
+		final LinkedBlockingQueue<RawData> received = new LinkedBlockingQueue<RawData>();
+		final LinkedBlockingQueue<RawData> truncated = new LinkedBlockingQueue<RawData>();
+		connector.setRawDataReceiver(new RawDataChannel() {
+			public void receiveData(RawData raw) {
+				received.add(raw);
+			}
+		});
+		connector.setTruncatedMessageHandler(new TruncatedMessageHandler() {
+			public void truncated(RawData msg) {
+				truncated.add(msg);
+			}
+		});
+		connector.setReceiverPacketSize(8);
+		connector.start();
+		byte[] oversize = new byte[20];
+		for (int i = 0; i < oversize.length; i++) {
+			oversize[i] = (byte) i;
+		}
+		peer.send(new DatagramPacket(oversize, oversize.length, connector.getAddress()));
+		peer.send(new DatagramPacket(new byte[8], 8, connector.getAddress()));
+		RawData msg = truncated.poll(1, TimeUnit.SECONDS);
+		assertArrayEquals(Arrays.copyOf(oversize, 8), msg.getBytes());
+		assertEquals(peer.getLocalSocketAddress(), msg.getInetSocketAddress());
+		// only the datagram that fits is delivered
+		assertEquals(8, received.poll(1, TimeUnit.SECONDS).getBytes().length);
+		assertTrue(received.isEmpty());
+		assertEquals(1, connector.getMetrics().getTruncatedPackets());
+	}
+}